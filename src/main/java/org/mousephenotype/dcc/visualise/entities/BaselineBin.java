@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.entities;
+
+import javax.xml.bind.annotation.XmlElement;
+
+/**
+ * Descriptive statistics for the wildtype measurements of one meta-data
+ * group and sex that fall within an interval of the x-axis, which are
+ * returned by the MeasurementsFacadeREST web service instead of the
+ * wildtype measurements when a resolution is requested.
+ *
+ * The x-axis is either the increment ('i') or, if there are no numeric
+ * increments, the measurement date ('d') in milliseconds since the epoch.
+ * A bin includes its lower bound, and excludes its upper bound unless it
+ * is the last bin. A null sex means that the bin combines both sexes.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class BaselineBin extends GroupStatistics {
+
+    private static final long serialVersionUID = 1L;
+    private Long metadataGroupIndex;
+    private String axis;
+    private double lower;
+    private double upper;
+
+    public BaselineBin() {
+    }
+
+    public BaselineBin(Integer sex, Long metadataGroupIndex, String axis,
+            double lower, double upper) {
+        super(true, sex, null, null);
+        this.metadataGroupIndex = metadataGroupIndex;
+        this.axis = axis;
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    @XmlElement(name = "e")
+    public Long getMetadataGroupIndex() {
+        return metadataGroupIndex;
+    }
+
+    public void setMetadataGroupIndex(Long metadataGroupIndex) {
+        this.metadataGroupIndex = metadataGroupIndex;
+    }
+
+    @XmlElement(name = "x")
+    public String getAxis() {
+        return axis;
+    }
+
+    public void setAxis(String axis) {
+        this.axis = axis;
+    }
+
+    @XmlElement(name = "l")
+    public double getLower() {
+        return lower;
+    }
+
+    public void setLower(double lower) {
+        this.lower = lower;
+    }
+
+    @XmlElement(name = "u")
+    public double getUpper() {
+        return upper;
+    }
+
+    public void setUpper(double upper) {
+        this.upper = upper;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.entities;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The structure of the connection pool statistics that is returned by the
+ * StatusFacadeREST web service.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+@XmlRootElement
+public class ConnectionPoolStatistics {
+
+    private int size;
+    private int maxActive;
+    private int active;
+    private int idle;
+    private int waiting;
+    private long numAcquired;
+    private double averageWait; /* in milliseconds */
+
+    public ConnectionPoolStatistics() {
+    }
+
+    @XmlElement(name = "size")
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    @XmlElement(name = "maxActive")
+    public int getMaxActive() {
+        return maxActive;
+    }
+
+    public void setMaxActive(int maxActive) {
+        this.maxActive = maxActive;
+    }
+
+    @XmlElement(name = "active")
+    public int getActive() {
+        return active;
+    }
+
+    public void setActive(int active) {
+        this.active = active;
+    }
+
+    @XmlElement(name = "idle")
+    public int getIdle() {
+        return idle;
+    }
+
+    public void setIdle(int idle) {
+        this.idle = idle;
+    }
+
+    @XmlElement(name = "waiting")
+    public int getWaiting() {
+        return waiting;
+    }
+
+    public void setWaiting(int waiting) {
+        this.waiting = waiting;
+    }
+
+    @XmlElement(name = "acquired")
+    public long getNumAcquired() {
+        return numAcquired;
+    }
+
+    public void setNumAcquired(long numAcquired) {
+        this.numAcquired = numAcquired;
+    }
+
+    @XmlElement(name = "averageWait")
+    public double getAverageWait() {
+        return averageWait;
+    }
+
+    public void setAverageWait(double averageWait) {
+        this.averageWait = averageWait;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.entities;
+
+import java.io.Serializable;
+import javax.xml.bind.annotation.XmlElement;
+
+/**
+ * Descriptive statistics for a group of measurements, which is returned by
+ * the MeasurementsFacadeREST web service when statistics are requested.
+ *
+ * A group is identified by genotype (mutant or wildtype), sex, zygosity and
+ * x-value (increment, or measurement date if there are no increments). A
+ * null sex, zygosity or x-value means that the group combines all of them.
+ * The values are the same as those calculated by calculateColumnStatistics()
+ * in visualise.js; the quartiles are only available for two or more values.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class GroupStatistics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private boolean wildtype;
+    private Integer sex;
+    private Integer zygosity;
+    private String key;
+    private int count;
+    private double sum;
+    private double min;
+    private double max;
+    private double mean;
+    private double median;
+    private double sd;
+    private double se;
+    private Double q1;
+    private Double q3;
+
+    public GroupStatistics() {
+    }
+
+    public GroupStatistics(boolean wildtype, Integer sex, Integer zygosity,
+            String key) {
+        this.wildtype = wildtype;
+        this.sex = sex;
+        this.zygosity = zygosity;
+        this.key = key;
+    }
+
+    @XmlElement(name = "w")
+    public boolean isWildtype() {
+        return wildtype;
+    }
+
+    public void setWildtype(boolean wildtype) {
+        this.wildtype = wildtype;
+    }
+
+    @XmlElement(name = "s")
+    public Integer getSex() {
+        return sex;
+    }
+
+    public void setSex(Integer sex) {
+        this.sex = sex;
+    }
+
+    @XmlElement(name = "z")
+    public Integer getZygosity() {
+        return zygosity;
+    }
+
+    public void setZygosity(Integer zygosity) {
+        this.zygosity = zygosity;
+    }
+
+    @XmlElement(name = "k")
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    @XmlElement(name = "c")
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    @XmlElement(name = "sum")
+    public double getSum() {
+        return sum;
+    }
+
+    public void setSum(double sum) {
+        this.sum = sum;
+    }
+
+    @XmlElement(name = "min")
+    public double getMin() {
+        return min;
+    }
+
+    public void setMin(double min) {
+        this.min = min;
+    }
+
+    @XmlElement(name = "max")
+    public double getMax() {
+        return max;
+    }
+
+    public void setMax(double max) {
+        this.max = max;
+    }
+
+    @XmlElement(name = "mean")
+    public double getMean() {
+        return mean;
+    }
+
+    public void setMean(double mean) {
+        this.mean = mean;
+    }
+
+    @XmlElement(name = "median")
+    public double getMedian() {
+        return median;
+    }
+
+    public void setMedian(double median) {
+        this.median = median;
+    }
+
+    @XmlElement(name = "sd")
+    public double getSd() {
+        return sd;
+    }
+
+    public void setSd(double sd) {
+        this.sd = sd;
+    }
+
+    @XmlElement(name = "se")
+    public double getSe() {
+        return se;
+    }
+
+    public void setSe(double se) {
+        this.se = se;
+    }
+
+    @XmlElement(name = "q1")
+    public Double getQ1() {
+        return q1;
+    }
+
+    public void setQ1(Double q1) {
+        this.q1 = q1;
+    }
+
+    @XmlElement(name = "q3")
+    public Double getQ3() {
+        return q3;
+    }
+
+    public void setQ3(Double q3) {
+        this.q3 = q3;
+    }
+}
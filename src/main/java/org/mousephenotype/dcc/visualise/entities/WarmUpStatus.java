@@ -0,0 +1,74 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.entities;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The structure of the catalogue warm-up status that is returned by the
+ * StatusFacadeREST web service. The build times are in milliseconds, and
+ * are -1 if the catalogue has not been built yet.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+@XmlRootElement
+public class WarmUpStatus {
+
+    private boolean ready;
+    private long parameters = -1L;
+    private long procedures = -1L;
+    private long geneStrains = -1L;
+
+    public WarmUpStatus() {
+    }
+
+    @XmlElement(name = "ready")
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    @XmlElement(name = "parameters")
+    public long getParameters() {
+        return parameters;
+    }
+
+    public void setParameters(long parameters) {
+        this.parameters = parameters;
+    }
+
+    @XmlElement(name = "procedures")
+    public long getProcedures() {
+        return procedures;
+    }
+
+    public void setProcedures(long procedures) {
+        this.procedures = procedures;
+    }
+
+    @XmlElement(name = "genestrains")
+    public long getGeneStrains() {
+        return geneStrains;
+    }
+
+    public void setGeneStrains(long geneStrains) {
+        this.geneStrains = geneStrains;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.persistence;
+
+import java.util.Date;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import org.mousephenotype.dcc.visualise.entities.AnnotationData;
+
+/**
+ * In-process cache for the annotations, shared by all of the annotation
+ * web services.
+ *
+ * The start time of the latest annotation session is the change marker
+ * that the data version watcher polls for the annotations. Hence, the last
+ * update of the annotations is read from the watcher, instead of being
+ * queried for every request. The version of the annotations, together with
+ * the version of IMPReSS from which the MP terms are decorated, is also
+ * part of every cache key, so that annotations are not served after a new
+ * annotation session has been detected.
+ *
+ * The cached annotations are shared by all of the requests, and must not
+ * be modified.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class AnnotationCache {
+
+    private static final String LAST_UPDATE_QUERY
+            = "SELECT s.started FROM AnnotationSession s ORDER BY s.sessionId DESC";
+
+    private final NearCache<String, List<AnnotationData>> nearCache;
+    private final DataVersionWatcher watcher;
+
+    /**
+     * Creates an annotation cache.
+     *
+     * @param maximumAnnotations Maximum number of cached annotations.
+     * @param timeToLive Seconds after which an entry expires.
+     * @param watcher Data version watcher.
+     */
+    public AnnotationCache(long maximumAnnotations, long timeToLive,
+            DataVersionWatcher watcher) {
+        this.nearCache = new NearCache<>(maximumAnnotations,
+                timeToLive * 1000L,
+                new NearCache.Weigher<List<AnnotationData>>() {
+                    @Override
+                    public long weigh(List<AnnotationData> value) {
+                        return Math.max(1L, value.size());
+                    }
+                });
+        this.watcher = watcher;
+    }
+
+    /**
+     * Returns the cache key for the annotations of a genotype and parameter
+     * at the current versions. The key must be read before the annotations
+     * are queried, so that annotations that were read before a change are
+     * not cached under the key for the new versions.
+     *
+     * @param genotypeId Genotype id.
+     * @param parameterKey Parameter key.
+     * @return Cache key.
+     */
+    public String getKey(Integer genotypeId, String parameterKey) {
+        return genotypeId + ":" + parameterKey
+                + "@" + watcher.getVersion(DataVersionWatcher.Source.ANNOTATIONS)
+                + "/" + watcher.getVersion(DataVersionWatcher.Source.IMPRESS);
+    }
+
+    /**
+     * Returns the cached annotations.
+     *
+     * @param key Cache key.
+     * @return The annotations, or null if they are not cached.
+     */
+    public List<AnnotationData> get(String key) {
+        return nearCache.get(key);
+    }
+
+    /**
+     * Caches the decorated annotations, if they were decorated with the MP
+     * terms of the version of IMPReSS in the cache key.
+     *
+     * @param key Cache key, which was read before the annotations.
+     * @param impressVersion Version of IMPReSS from which the MP terms were
+     * loaded.
+     * @param annotations The annotations, which must not be modified.
+     */
+    public void put(String key, long impressVersion,
+            List<AnnotationData> annotations) {
+        if (key.endsWith("/" + impressVersion)) {
+            nearCache.put(key, annotations);
+        }
+    }
+
+    /**
+     * Returns the start time of the latest annotation session. This is
+     * only queried when the data version watcher has not read it yet.
+     *
+     * @param em Entity manager for querying the annotation sessions.
+     * @return Start time of the latest annotation session.
+     */
+    public Date getLastUpdate(EntityManager em) {
+        Object value = watcher.getValue(DataVersionWatcher.Source.ANNOTATIONS);
+        if (value instanceof Date) {
+            return (Date) value;
+        }
+        TypedQuery<Date> q = em.createQuery(LAST_UPDATE_QUERY, Date.class);
+        q.setMaxResults(1);
+        return q.getSingleResult();
+    }
+
+    public void shutdown() {
+        nearCache.invalidateAll();
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.persistence;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.mousephenotype.dcc.entities.overviews.MeasuredValues;
+import org.mousephenotype.dcc.entities.overviews.ProcedureMetadataGroup;
+import org.mousephenotype.dcc.visualise.entities.BaselineBin;
+import org.mousephenotype.dcc.visualise.entities.GroupStatistics;
+
+/**
+ * In-process cache for the baseline (wildtype) measurements.
+ *
+ * All of the mutant genes at the same centre, strain and procedure share
+ * the same baseline, which can have thousands of measurements. Hence, when
+ * a user compares several genes, the baseline is only retrieved once. The
+ * cache is bounded by the total number of measurements, and the keys
+ * include the version of the QC data source, so that a baseline is not
+ * served after the data version watcher has detected a change.
+ *
+ * When a baseline is missing, only one of the concurrent requests runs the
+ * loader; all of the others wait for, and receive, its result.
+ *
+ * The bins of a baseline at a given resolution are cached separately with
+ * the same keys, so that a baseline is only binned once for each
+ * resolution. Likewise, the statistics of the wildtype groups are cached
+ * for each set of baselines that a data context combines, so that they
+ * are only calculated once for all of the genes that share the baselines.
+ *
+ * The cached measurements are shared by all of the requests, and must not
+ * be modified, except for setting the meta-data group index, which is the
+ * same for every request.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class BaselineCache {
+
+    /**
+     * Loads the baseline measurements from the database when they are not
+     * cached.
+     */
+    public interface Loader {
+
+        List<MeasuredValues> load();
+    }
+
+    /**
+     * Bins the baseline measurements when the bins are not cached.
+     */
+    public interface Binner {
+
+        List<BaselineBin> bin(List<MeasuredValues> baseline) throws IOException;
+    }
+
+    /**
+     * Calculates the statistics of the baseline measurements when they are
+     * not cached.
+     */
+    public interface Calculator {
+
+        List<GroupStatistics> calculate() throws IOException;
+    }
+
+    private final NearCache<String, List<MeasuredValues>> nearCache;
+    private final NearCache<String, List<BaselineBin>> binCache;
+    private final NearCache<String, List<GroupStatistics>> statisticsCache;
+    private final DataVersionWatcher watcher;
+    private final ConcurrentHashMap<String, FutureTask<List<MeasuredValues>>> inFlight
+            = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a baseline cache.
+     *
+     * @param maximumMeasurements Maximum number of cached measurements.
+     * @param timeToLive Seconds after which an entry expires.
+     * @param watcher Data version watcher.
+     */
+    public BaselineCache(long maximumMeasurements, long timeToLive,
+            DataVersionWatcher watcher) {
+        this.nearCache = new NearCache<>(maximumMeasurements,
+                timeToLive * 1000L,
+                new NearCache.Weigher<List<MeasuredValues>>() {
+                    @Override
+                    public long weigh(List<MeasuredValues> value) {
+                        return Math.max(1L, value.size());
+                    }
+                });
+        this.binCache = new NearCache<>(maximumMeasurements,
+                timeToLive * 1000L,
+                new NearCache.Weigher<List<BaselineBin>>() {
+                    @Override
+                    public long weigh(List<BaselineBin> value) {
+                        return Math.max(1L, value.size());
+                    }
+                });
+        this.statisticsCache = new NearCache<>(maximumMeasurements,
+                timeToLive * 1000L,
+                new NearCache.Weigher<List<GroupStatistics>>() {
+                    @Override
+                    public long weigh(List<GroupStatistics> value) {
+                        return Math.max(1L, value.size());
+                    }
+                });
+        this.watcher = watcher;
+    }
+
+    private String getKey(Integer centreId, Integer strainId,
+            String parameterKey, ProcedureMetadataGroup t) {
+        return centreId + ":" + strainId + ":" + t.getProcedureId()
+                + ":" + t.getMetadataGroup() + ":" + t.getPipeline()
+                + ":" + parameterKey
+                + "@" + watcher.getVersion(DataVersionWatcher.Source.QC);
+    }
+
+    /**
+     * Returns the baseline measurements for a procedure meta-data group.
+     *
+     * @param centreId Centre id.
+     * @param strainId Strain id.
+     * @param parameterKey Parameter key.
+     * @param t Procedure, meta-data group and pipeline.
+     * @param loader Loads the measurements if they are not cached.
+     * @return The baseline measurements, which must not be modified.
+     */
+    public List<MeasuredValues> get(Integer centreId, Integer strainId,
+            String parameterKey, ProcedureMetadataGroup t,
+            final Loader loader) {
+        final String key = getKey(centreId, strainId, parameterKey, t);
+        List<MeasuredValues> v = nearCache.get(key);
+        if (v != null) {
+            return v;
+        }
+        FutureTask<List<MeasuredValues>> task = new FutureTask<>(
+                new Callable<List<MeasuredValues>>() {
+                    @Override
+                    public List<MeasuredValues> call() throws Exception {
+                        List<MeasuredValues> v = nearCache.get(key);
+                        if (v == null) {
+                            v = loader.load();
+                            nearCache.put(key, v);
+                        }
+                        return v;
+                    }
+                });
+        FutureTask<List<MeasuredValues>> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Returns the bins of the baseline measurements for a procedure
+     * meta-data group at the supplied resolution.
+     *
+     * @param centreId Centre id.
+     * @param strainId Strain id.
+     * @param parameterKey Parameter key.
+     * @param t Procedure, meta-data group and pipeline.
+     * @param resolution Number of intervals on the x-axis.
+     * @param loader Loads the measurements if they are not cached.
+     * @param binner Bins the measurements if the bins are not cached.
+     * @return The bins, which must not be modified; or null, if the
+     * measurements cannot be binned.
+     * @throws IOException If the measurements could not be binned.
+     */
+    public List<BaselineBin> getBins(Integer centreId, Integer strainId,
+            String parameterKey, ProcedureMetadataGroup t, int resolution,
+            Loader loader, Binner binner) throws IOException {
+        String key = getKey(centreId, strainId, parameterKey, t)
+                + "#" + resolution;
+        List<BaselineBin> b = binCache.get(key);
+        if (b == null) {
+            b = binner.bin(get(centreId, strainId, parameterKey, t, loader));
+            if (b != null) {
+                binCache.put(key, b);
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Returns the statistics of the wildtype groups of the baseline
+     * measurements for a set of procedure meta-data groups.
+     *
+     * @param centreId Centre id.
+     * @param strainId Strain id.
+     * @param parameterKey Parameter key.
+     * @param groups Procedures, meta-data groups and pipelines.
+     * @param calculator Calculates the statistics if they are not cached.
+     * @return The statistics, which must not be modified.
+     * @throws IOException If the statistics could not be calculated.
+     */
+    public List<GroupStatistics> getStatistics(Integer centreId,
+            Integer strainId, String parameterKey,
+            List<ProcedureMetadataGroup> groups, Calculator calculator)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (ProcedureMetadataGroup t : groups) {
+            sb.append(getKey(centreId, strainId, parameterKey, t)).append(';');
+        }
+        String key = sb.toString();
+        List<GroupStatistics> s = statisticsCache.get(key);
+        if (s == null) {
+            s = calculator.calculate();
+            statisticsCache.put(key, s);
+        }
+        return s;
+    }
+
+    public long getHits() {
+        return nearCache.getHits();
+    }
+
+    public long getMisses() {
+        return nearCache.getMisses();
+    }
+
+    public long getSize() {
+        return nearCache.getWeight();
+    }
+
+    public void shutdown() {
+        nearCache.invalidateAll();
+        binCache.invalidateAll();
+        statisticsCache.invalidateAll();
+    }
+}
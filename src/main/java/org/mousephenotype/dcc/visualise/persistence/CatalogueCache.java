@@ -0,0 +1,291 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.persistence;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.mousephenotype.dcc.entities.overviews.ACentre;
+import org.mousephenotype.dcc.visualise.entities.ActivityData;
+import org.mousephenotype.dcc.visualise.entities.GeneStrain;
+import org.mousephenotype.dcc.visualise.entities.ParameterData;
+import org.mousephenotype.dcc.visualise.entities.ProcedureData;
+
+/**
+ * Two-tier cache for the catalogues (parameters, procedures, gene/strains,
+ * centres and centre activity) that are shared by all of the users.
+ *
+ * The first tier (L1) is a bounded in-process near-cache that holds the
+ * deserialised objects, so that the most frequently requested catalogues do
+ * not have to be deserialised from memcached on every request. The second
+ * tier (L2) is memcached, which is shared by all of the Tomcat nodes. A miss
+ * in L1 is filled from L2. When memcached is disabled (e.g., for tests and
+ * single-node installations) only L1 is used.
+ *
+ * The L1 keys include the version of the data source that the catalogue is
+ * derived from, so that a catalogue is not served from L1 after the data
+ * version watcher has detected a change. The L2 entries are stored in one
+ * memcached value together with the cluster-wide token of the data source,
+ * and an L2 entry whose token does not match the current token is treated
+ * as a miss. If the memcached client could not be created, L2 is not
+ * used.
+ *
+ * When a catalogue is missing from both tiers, only one of the concurrent
+ * requests in this JVM runs the loader; all of the others wait for, and
+ * receive, its result. Across Tomcat nodes, the node that acquires the
+ * memcached lease for the catalogue and token rebuilds it, while the other
+ * nodes wait for the rebuilt catalogue with the same token to appear in
+ * memcached.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class CatalogueCache {
+
+    private static final long LEASE_POLL_INTERVAL = 250L; /* milliseconds */
+
+    /**
+     * Loads a catalogue from the database when it is not cached.
+     */
+    public interface Loader<V> {
+
+        V load();
+    }
+
+    private enum Catalogue {
+
+        PARAMETERS("parameters", DataVersionWatcher.Source.IMPRESS, true),
+        PROCEDURES("procedures", DataVersionWatcher.Source.IMPRESS, true),
+        GENE_STRAINS("genestrains", DataVersionWatcher.Source.QC, true),
+        /* catalogues that are not stored in memcached are only cached in L1,
+         * and are cheap enough for every node to build its own copy */
+        CENTRES("centres", DataVersionWatcher.Source.QC, false),
+        CENTRE_ACTIVITY("activity", DataVersionWatcher.Source.RAW, false);
+
+        final String name;
+        final DataVersionWatcher.Source source;
+        final boolean shared;
+
+        private Catalogue(String name, DataVersionWatcher.Source source,
+                boolean shared) {
+            this.name = name;
+            this.source = source;
+            this.shared = shared;
+        }
+    }
+
+    private final NearCache<String, Object> nearCache;
+    private final MemcacheLease lease;
+    private final DataVersionWatcher watcher;
+    private final ConcurrentHashMap<String, FutureTask<Object>> inFlight
+            = new ConcurrentHashMap<>();
+    private volatile GeneStrainIndex geneStrainIndex;
+
+    /**
+     * Creates a two-tier catalogue cache.
+     *
+     * @param maximumSize Maximum number of entries in the L1 cache.
+     * @param timeToLive Seconds after which an L1 entry expires.
+     * @param lease Memcached client for the leases and the shared entries;
+     * or null, for L1 only.
+     * @param watcher Data version watcher.
+     */
+    public CatalogueCache(int maximumSize, long timeToLive,
+            MemcacheLease lease, DataVersionWatcher watcher) {
+        this.nearCache = new NearCache<>(maximumSize, timeToLive * 1000L);
+        this.lease = lease;
+        this.watcher = watcher;
+    }
+
+    public boolean isMemcacheEnabled() {
+        return lease != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public HashMap<Integer, ParameterData> getParameters(
+            Loader<HashMap<Integer, ParameterData>> loader) {
+        return (HashMap<Integer, ParameterData>) get(Catalogue.PARAMETERS,
+                loader);
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<ProcedureData> getProcedures(Loader<List<ProcedureData>> loader) {
+        return (List<ProcedureData>) get(Catalogue.PROCEDURES, loader);
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<GeneStrain> getGeneStrains(Loader<List<GeneStrain>> loader) {
+        return (List<GeneStrain>) get(Catalogue.GENE_STRAINS, loader);
+    }
+
+    /**
+     * Returns the search index for the gene/strain catalogue. The index is
+     * rebuilt whenever the cached catalogue has been replaced, e.g., after
+     * the data version watcher has detected a change.
+     *
+     * @param loader Loads the gene/strains if they are not cached.
+     * @return Search index for the current gene/strain catalogue.
+     */
+    public GeneStrainIndex getGeneStrainIndex(
+            Loader<List<GeneStrain>> loader) {
+        List<GeneStrain> geneStrains = getGeneStrains(loader);
+        GeneStrainIndex index = geneStrainIndex;
+        if (index == null || !index.isBuiltFrom(geneStrains)) {
+            synchronized (this) {
+                index = geneStrainIndex;
+                if (index == null || !index.isBuiltFrom(geneStrains)) {
+                    index = new GeneStrainIndex(geneStrains);
+                    geneStrainIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<ACentre> getCentres(Loader<List<ACentre>> loader) {
+        return (List<ACentre>) get(Catalogue.CENTRES, loader);
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<ActivityData> getCentreActivity(
+            Loader<List<ActivityData>> loader) {
+        return (List<ActivityData>) get(Catalogue.CENTRE_ACTIVITY, loader);
+    }
+
+    public void shutdown() {
+        nearCache.invalidateAll();
+        geneStrainIndex = null;
+        if (lease != null) {
+            lease.shutdown();
+        }
+    }
+
+    private String getKey(Catalogue c) {
+        return c.name + "@" + watcher.getVersion(c.source);
+    }
+
+    private boolean isShared(Catalogue c) {
+        return lease != null && c.shared;
+    }
+
+    // A memcached entry is only used if it was stored with the token of the
+    // current data; an entry that was written before the data changed is
+    // treated as a miss.
+    private Object readShared(Catalogue c, String token) {
+        return lease.getEntry(c.name, token);
+    }
+
+    private void writeShared(Catalogue c, String token, Object v) {
+        lease.setEntry(c.name, token, v);
+    }
+
+    private Object getCached(Catalogue c, String key, String token) {
+        Object v = nearCache.get(key);
+        if (v == null && isShared(c)) {
+            v = readShared(c, token);
+            if (v != null) {
+                nearCache.put(key, v);
+            }
+        }
+        return v;
+    }
+
+    private Object get(final Catalogue c, final Loader<?> loader) {
+        final String key = getKey(c);
+        final String token = watcher.getToken(c.source);
+        Object v = getCached(c, key, token);
+        if (v != null) {
+            return v;
+        }
+        FutureTask<Object> task = new FutureTask<>(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                Object v = getCached(c, key, token);
+                if (v == null) {
+                    v = loadShared(c, key, token, loader);
+                }
+                return v;
+            }
+        });
+        FutureTask<Object> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    // The lease is named after the cluster-wide token of the data, so that
+    // all of the nodes that miss the same data ask for the same lease. If
+    // another node holds the lease, we wait for its result, with the same
+    // token, to appear in memcached. If it does not appear before the lease
+    // expires, we assume that the other node failed, and load the catalogue
+    // ourselves.
+    private Object loadShared(Catalogue c, String key, String token,
+            Loader<?> loader) {
+        String leaseName = c.name + "@" + token;
+        boolean acquired = !isShared(c) || lease.acquire(leaseName);
+        if (!acquired) {
+            long deadline = System.currentTimeMillis()
+                    + lease.getLeaseTime() * 1000L;
+            while (System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(LEASE_POLL_INTERVAL);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                Object v = readShared(c, token);
+                if (v != null) {
+                    nearCache.put(key, v);
+                    return v;
+                }
+            }
+        }
+        try {
+            Object v = loader.load();
+            if (v != null) {
+                nearCache.put(key, v);
+                if (isShared(c)) {
+                    writeShared(c, token, v);
+                }
+            }
+            return v;
+        } finally {
+            if (acquired && isShared(c)) {
+                lease.release(leaseName);
+            }
+        }
+    }
+}
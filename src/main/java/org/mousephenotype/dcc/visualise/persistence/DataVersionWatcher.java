@@ -0,0 +1,451 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.mousephenotype.dcc.crawler.entities.AResource;
+import org.mousephenotype.dcc.crawler.entities.AStatus;
+import org.mousephenotype.dcc.crawler.entities.AUser;
+import org.mousephenotype.dcc.crawler.entities.AnException;
+import org.mousephenotype.dcc.crawler.entities.Centre;
+import org.mousephenotype.dcc.crawler.entities.Credential;
+import org.mousephenotype.dcc.crawler.entities.CrawlingSession;
+import org.mousephenotype.dcc.crawler.entities.FileSource;
+import org.mousephenotype.dcc.crawler.entities.FileSourceHasZip;
+import org.mousephenotype.dcc.crawler.entities.Phase;
+import org.mousephenotype.dcc.crawler.entities.ProcessingType;
+import org.mousephenotype.dcc.crawler.entities.ResourceState;
+import org.mousephenotype.dcc.crawler.entities.SessionTask;
+import org.mousephenotype.dcc.crawler.entities.SourceProtocol;
+import org.mousephenotype.dcc.crawler.entities.XmlFile;
+import org.mousephenotype.dcc.crawler.entities.XmlLog;
+import org.mousephenotype.dcc.crawler.entities.ZipAction;
+import org.mousephenotype.dcc.crawler.entities.ZipDownload;
+import org.mousephenotype.dcc.crawler.entities.ZipFile;
+import org.mousephenotype.dcc.crawler.entities.ZipLog;
+import org.mousephenotype.dcc.entities.context.Context;
+import org.mousephenotype.dcc.entities.context.Types;
+import org.mousephenotype.dcc.entities.impress.IgnoreProcedures;
+import org.mousephenotype.dcc.entities.impress.ParamIncrement;
+import org.mousephenotype.dcc.entities.impress.ParamMpterm;
+import org.mousephenotype.dcc.entities.impress.ParamOption;
+import org.mousephenotype.dcc.entities.impress.Parameter;
+import org.mousephenotype.dcc.entities.impress.ParameterHasOptions;
+import org.mousephenotype.dcc.entities.impress.Pipeline;
+import org.mousephenotype.dcc.entities.impress.PipelineHasProcedures;
+import org.mousephenotype.dcc.entities.impress.Procedure;
+import org.mousephenotype.dcc.entities.impress.ProcedureHasParameters;
+import org.mousephenotype.dcc.entities.impress.ProcedureHasSuperType;
+import org.mousephenotype.dcc.entities.impress.ProcedureType;
+import org.mousephenotype.dcc.entities.impress.ProcedureWeek;
+import org.mousephenotype.dcc.entities.impress.Section;
+import org.mousephenotype.dcc.entities.impress.SectionTitle;
+import org.mousephenotype.dcc.entities.impress.Sop;
+import org.mousephenotype.dcc.entities.impress.Units;
+import org.mousephenotype.dcc.entities.overviews.ACentre;
+import org.mousephenotype.dcc.entities.overviews.AnimalOverview;
+import org.mousephenotype.dcc.entities.overviews.Genotype;
+import org.mousephenotype.dcc.entities.overviews.MeasuredValues;
+import org.mousephenotype.dcc.entities.overviews.MeasurementsPerformed;
+import org.mousephenotype.dcc.entities.overviews.MetadataGroupToValues;
+import org.mousephenotype.dcc.entities.overviews.ProcedureAnimalOverview;
+import org.mousephenotype.dcc.entities.overviews.ProcedureMetadataGroup;
+import org.mousephenotype.dcc.entities.overviews.ProceduresPerformed;
+import org.mousephenotype.dcc.entities.overviews.Strain;
+import org.mousephenotype.dcc.entities.qc.AState;
+import org.mousephenotype.dcc.entities.qc.ActionType;
+import org.mousephenotype.dcc.entities.qc.AnAction;
+import org.mousephenotype.dcc.entities.qc.AnIssue;
+import org.mousephenotype.dcc.entities.qc.CitedDataPoint;
+import org.mousephenotype.dcc.entities.qc.DataContext;
+import org.mousephenotype.dcc.entities.qc.History;
+import org.mousephenotype.dcc.entities.qc.IssueStatus;
+import org.mousephenotype.dcc.entities.raw.Centreprocedure;
+import org.mousephenotype.dcc.entities.raw.Centreprocedureset;
+import org.mousephenotype.dcc.entities.raw.Line;
+import org.mousephenotype.dcc.entities.raw.ProcedureFromRaw;
+import org.mousephenotype.dcc.entities.raw.Seriesparameter;
+import org.mousephenotype.dcc.entities.raw.Simpleparameter;
+import org.mousephenotype.dcc.entities.raw.Submission;
+import org.mousephenotype.dcc.entities.raw.Submissionset;
+import org.mousephenotype.dcc.visualise.entities.Annotation;
+import org.mousephenotype.dcc.visualise.entities.AnnotationSession;
+import org.mousephenotype.dcc.visualise.entities.Association;
+import org.mousephenotype.dcc.visualise.entities.GeneStrain;
+import org.mousephenotype.dcc.visualise.entities.MeasurementContext;
+import org.mousephenotype.dcc.visualise.entities.ParameterData;
+import org.mousephenotype.dcc.visualise.entities.ParametersForProcedureType;
+
+/**
+ * Watches cheap change markers in the databases and evicts from the shared
+ * (L2) entity cache only those entity classes whose data has changed.
+ *
+ * Previously, the entire shared cache was evicted before every request, so
+ * that every request went to MySQL cold. Now, a background thread polls one
+ * marker query for each of the data sources. When the value returned by a
+ * marker query moves, the version for that source is incremented and the
+ * entity classes that belong to the source are evicted. IMPReSS has no
+ * change column, so its marker is a checksum over the rows of its tables.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class DataVersionWatcher implements Runnable {
+
+    /**
+     * The data sources that are watched, with the marker query that signals
+     * a change, and the entity classes that must be evicted when it does.
+     */
+    public enum Source {
+
+        ANNOTATIONS("SELECT s.started FROM AnnotationSession s ORDER BY s.sessionId DESC",
+                Annotation.class, AnnotationSession.class),
+        QC("SELECT MAX(c.lastUpdate) FROM DataContext c",
+                DataContext.class, AnIssue.class, AnAction.class,
+                ActionType.class, AState.class, CitedDataPoint.class,
+                History.class, IssueStatus.class, ACentre.class,
+                AnimalOverview.class, Genotype.class, MeasuredValues.class,
+                MeasurementsPerformed.class, MetadataGroupToValues.class,
+                ProcedureAnimalOverview.class, ProcedureMetadataGroup.class,
+                ProceduresPerformed.class, Strain.class, GeneStrain.class,
+                MeasurementContext.class),
+        RAW("SELECT MAX(x.lastUpdate) FROM XmlFile x",
+                XmlFile.class, XmlLog.class, AResource.class, AStatus.class,
+                AUser.class, AnException.class, Centre.class,
+                Credential.class, CrawlingSession.class, FileSource.class,
+                FileSourceHasZip.class, Phase.class, ProcessingType.class,
+                ResourceState.class, SessionTask.class, SourceProtocol.class,
+                ZipAction.class, ZipDownload.class, ZipFile.class,
+                ZipLog.class, Centreprocedure.class, Centreprocedureset.class,
+                Line.class, ProcedureFromRaw.class, Seriesparameter.class,
+                Simpleparameter.class, Submission.class, Submissionset.class,
+                Context.class, Types.class, Association.class),
+        /* IMPReSS has no last-modified column, and a re-import can edit
+         * rows without adding any, so its marker is a checksum over the
+         * columns that the visualisation uses */
+        IMPRESS(new String[]{
+            "SELECT q.parameterId, q.parameterKey, q.name, q.graphType, q.valueType, q.isAnnotation FROM Parameter q",
+            "SELECT m.mpId, m.mpTerm, m.selectionOutcome FROM ParamMpterm m",
+            "SELECT o.name, o.isActive, o.deleted FROM ParamOption o",
+            "SELECT u.unit FROM Units u",
+            "SELECT i.paramIncrementId, i.incrementMin, i.incrementType, i.incrementUnit, i.incrementString FROM ParamIncrement i",
+            "SELECT p.procedureId, p.procedureKey, p.name, p.majorVersion, p.minorVersion FROM Procedure p",
+            "SELECT php.procedureId.procedureId, php.parameterId.parameterId FROM ProcedureHasParameters php",
+            "SELECT phs.procedureId, phs.type FROM ProcedureHasSuperType phs"},
+                Parameter.class, Procedure.class, ParamOption.class,
+                Units.class, ParamIncrement.class, ParamMpterm.class,
+                ParameterHasOptions.class, Pipeline.class,
+                PipelineHasProcedures.class, ProcedureHasParameters.class,
+                ProcedureHasSuperType.class, ProcedureType.class,
+                ProcedureWeek.class, IgnoreProcedures.class, Section.class,
+                SectionTitle.class, Sop.class, ParameterData.class,
+                ParametersForProcedureType.class);
+
+        private final String markerQuery;
+        private final List<String> checksumQueries;
+        private final List<Class<?>> entityClasses;
+
+        private Source(String markerQuery, Class<?>... entityClasses) {
+            this.markerQuery = markerQuery;
+            this.checksumQueries = null;
+            this.entityClasses = Arrays.asList(entityClasses);
+        }
+
+        private Source(String[] checksumQueries,
+                Class<?>... entityClasses) {
+            this.markerQuery = null;
+            this.checksumQueries = Arrays.asList(checksumQueries);
+            this.entityClasses = Arrays.asList(entityClasses);
+        }
+
+        /**
+         * Returns the query whose single result is the marker; or null, if
+         * the marker is a checksum over the results of several queries.
+         */
+        public String getMarkerQuery() {
+            return markerQuery;
+        }
+
+        /**
+         * Returns the queries whose results are checksummed; or null, if
+         * the marker is the result of a single query.
+         */
+        public List<String> getChecksumQueries() {
+            return checksumQueries;
+        }
+
+        public List<Class<?>> getEntityClasses() {
+            return entityClasses;
+        }
+    }
+
+    private final PersistenceManager pm;
+    private final long pollInterval;
+    private final Map<Source, String> markers = new EnumMap<>(Source.class);
+    private final Map<Source, Object> values = new EnumMap<>(Source.class);
+    private final Map<Source, Long> versions = new EnumMap<>(Source.class);
+    private final Map<Source, Date> lastChanged = new EnumMap<>(Source.class);
+    private final long startedAt = System.currentTimeMillis();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates a watcher for the supplied persistence manager.
+     *
+     * @param pm Persistence manager that supplies the entity manager factory.
+     * @param pollInterval Number of seconds between consecutive polls.
+     */
+    public DataVersionWatcher(PersistenceManager pm, long pollInterval) {
+        this.pm = pm;
+        this.pollInterval = pollInterval;
+        Date now = new Date();
+        for (Source s : Source.values()) {
+            versions.put(s, 0L);
+            lastChanged.put(s, now);
+        }
+    }
+
+    /**
+     * Reads the first markers, and then polls them in the background. The
+     * first poll completes before this returns, so that the tokens that are
+     * used for leases, stamps and entity tags from then on are derived from
+     * the databases, and agree between the Tomcat nodes. If the first poll
+     * fails, the tokens remain specific to this node until a poll succeeds.
+     */
+    public void start() {
+        ScheduledExecutorService s;
+        synchronized (this) {
+            if (scheduler != null) {
+                return;
+            }
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "data-version-watcher");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            s = scheduler;
+        }
+        run();
+        try {
+            s.scheduleWithFixedDelay(this, pollInterval, pollInterval,
+                    TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            return;
+        }
+        System.out.println("Data version watcher was started at "
+                + new java.util.Date() + " (polling every "
+                + pollInterval + " seconds)");
+    }
+
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+            System.out.println("Data version watcher was stopped at "
+                    + new java.util.Date());
+        }
+    }
+
+    /**
+     * Returns the current version of the data in the supplied source. The
+     * version is incremented every time a change is detected.
+     *
+     * @param source Data source.
+     * @return Monotonically increasing version number.
+     */
+    public synchronized long getVersion(Source source) {
+        return versions.get(source);
+    }
+
+    /**
+     * Returns the value that was last returned by the marker query of the
+     * supplied source, e.g., the start time of the latest annotation
+     * session. Until the first marker has been read, this is null.
+     *
+     * @param source Data source.
+     * @return Latest marker value, or null if none has been read.
+     */
+    public synchronized Object getValue(Source source) {
+        return values.get(source);
+    }
+
+    /**
+     * Returns the time when a change was last detected in the supplied
+     * source. Before the first change, this is the start-up time.
+     *
+     * @param source Data source.
+     * @return Time of the last detected change.
+     */
+    public synchronized Date getLastChanged(Source source) {
+        return lastChanged.get(source);
+    }
+
+    /**
+     * Returns a token that identifies the current state of the supplied
+     * sources. The token is derived from the change markers read from the
+     * databases, so that all of the Tomcat nodes return the same token for
+     * the same data. Until the first markers have been read, the token is
+     * specific to this node and its start-up time.
+     *
+     * @param sources Data sources.
+     * @return Short hexadecimal token.
+     */
+    public synchronized String getToken(Source... sources) {
+        StringBuilder sb = new StringBuilder();
+        for (Source s : sources) {
+            String marker = markers.get(s);
+            sb.append(s.name()).append('=');
+            if (marker == null) {
+                sb.append(startedAt).append('/').append(versions.get(s));
+            } else {
+                sb.append(marker);
+            }
+            sb.append(';');
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(
+                    sb.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder token = new StringBuilder();
+            for (int i = 0; i < 8; ++i) {
+                token.append(String.format("%02x", digest[i]));
+            }
+            return token.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(sb.toString().hashCode());
+        }
+    }
+
+    @Override
+    public void run() {
+        EntityManagerFactory emf = pm.getEntityManagerFactory();
+        EntityManager em = null;
+        try {
+            em = emf.createEntityManager();
+            for (Source s : Source.values()) {
+                Object value = readMarker(em, s);
+                if (value != null && hasMoved(s, value)) {
+                    evict(emf.getCache(), s);
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Data version watcher: " + e.getMessage());
+        } finally {
+            if (em != null) {
+                em.close();
+            }
+        }
+    }
+
+    private Object readMarker(EntityManager em, Source s) {
+        if (s.getChecksumQueries() != null) {
+            return readChecksum(em, s);
+        }
+        Object marker = null;
+        try {
+            Query q = em.createQuery(s.getMarkerQuery());
+            q.setMaxResults(1);
+            marker = q.getSingleResult();
+        } catch (Exception e) {
+            System.err.println("Data version watcher: could not read marker for "
+                    + s + ": " + e.getMessage());
+        }
+        return marker;
+    }
+
+    // The checksum is a sum of row digests, so that it does not depend on
+    // the order in which the rows are returned. If any of the queries
+    // fails, no checksum is returned and the poll is skipped, since a
+    // partial checksum would be mistaken for a change.
+    private Object readChecksum(EntityManager em, Source s) {
+        long checksum = 0L;
+        long rows = 0L;
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+        for (String query : s.getChecksumQueries()) {
+            try {
+                Query q = em.createQuery(query);
+                q.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+                for (Object r : q.getResultList()) {
+                    String row = query.hashCode() + ":"
+                            + (r instanceof Object[]
+                                    ? Arrays.toString((Object[]) r)
+                                    : String.valueOf(r));
+                    byte[] d = md.digest(
+                            row.getBytes(StandardCharsets.UTF_8));
+                    long h = 0L;
+                    for (int i = 0; i < 8; ++i) {
+                        h = (h << 8) | (d[i] & 0xffL);
+                    }
+                    checksum += h;
+                    ++rows;
+                }
+            } catch (Exception e) {
+                System.err.println("Data version watcher: could not read checksum for "
+                        + s + ": " + e.getMessage());
+                return null;
+            }
+        }
+        return rows + "/" + Long.toHexString(checksum);
+    }
+
+    // The very first marker that is read only records the baseline; the
+    // shared cache is empty at start-up, so there is nothing to evict.
+    private synchronized boolean hasMoved(Source s, Object value) {
+        String marker = value instanceof Object[]
+                ? Arrays.toString((Object[]) value) : String.valueOf(value);
+        values.put(s, value);
+        String previous = markers.put(s, marker);
+        if (previous == null || previous.equals(marker)) {
+            return false;
+        }
+        versions.put(s, versions.get(s) + 1L);
+        lastChanged.put(s, new Date());
+        return true;
+    }
+
+    private void evict(Cache cache, Source s) {
+        for (Class<?> c : s.getEntityClasses()) {
+            cache.evict(c);
+        }
+        System.out.println("Data version watcher: " + s
+                + " changed; evicted " + s.getEntityClasses().size()
+                + " entity classes at " + new java.util.Date());
+    }
+}
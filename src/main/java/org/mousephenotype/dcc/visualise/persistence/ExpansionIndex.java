@@ -0,0 +1,293 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.persistence;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+
+/**
+ * Process-wide bitmap index for expanding MP terms and procedure types into
+ * the annotated parameters of a set of genotypes, e.g., when a row or
+ * column of the heatmap is expanded.
+ *
+ * Every annotated parameter is assigned a bit. For each MP term, the index
+ * holds a bitset of the parameters annotated with the term for each
+ * genotype; for each genotype, a bitset of all of its annotated
+ * parameters; and for each procedure super type, a bitset of the
+ * annotation parameters in the procedures of that type. An expansion is
+ * then a union of bitsets, instead of a join across the annotations and
+ * IMPReSS for every request.
+ *
+ * The index is immutable, and is replaced atomically when the data version
+ * watcher detects a change to the annotations or to IMPReSS. Since this
+ * scans all of the annotations, the index is rebuilt on a background
+ * thread, and no request waits for it; requests query the database
+ * meanwhile, since the previous index is out of date and the entity tags
+ * of their responses are already derived from the new version. If the
+ * index could not be built, it is not rebuilt for a minute. The bitsets in
+ * the index must not be modified.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class ExpansionIndex {
+
+    private static final String ANNOTATIONS_QUERY
+            = "SELECT DISTINCT a.genotypeId, a.parameterId, a.yMP, a.yMP1 FROM Annotation a";
+    private static final String PROCEDURE_TYPES_QUERY
+            = "SELECT DISTINCT q.parameterKey, phs.type FROM Parameter q, Procedure p, ProcedureHasParameters php, ProcedureHasSuperType phs WHERE q.parameterId = php.parameterId.parameterId AND p.procedureId = php.procedureId.procedureId AND p.procedureId = phs.procedureId AND q.isAnnotation = 1";
+
+    private static final long RETRY_INTERVAL = 60000L;
+
+    /**
+     * The bitsets that were built for a version of the annotations and
+     * IMPReSS.
+     */
+    private static class Bitmaps {
+
+        final String version;
+        final List<String> parameters;
+        final Map<String, Map<Integer, BitSet>> byMpTerm;
+        final Map<Integer, BitSet> byGenotype;
+        final Map<Integer, BitSet> byProcedureType;
+
+        Bitmaps(String version, List<String> parameters,
+                Map<String, Map<Integer, BitSet>> byMpTerm,
+                Map<Integer, BitSet> byGenotype,
+                Map<Integer, BitSet> byProcedureType) {
+            this.version = version;
+            this.parameters = parameters;
+            this.byMpTerm = byMpTerm;
+            this.byGenotype = byGenotype;
+            this.byProcedureType = byProcedureType;
+        }
+    }
+
+    private final PersistenceManager pm;
+    private final DataVersionWatcher watcher;
+    private final ExecutorService builder;
+    private final AtomicBoolean building = new AtomicBoolean();
+    private volatile Bitmaps current;
+    private volatile long retryAt;
+
+    public ExpansionIndex(PersistenceManager pm, DataVersionWatcher watcher) {
+        this.pm = pm;
+        this.watcher = watcher;
+        this.builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "expansion-index-builder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private String getVersion() {
+        return watcher.getVersion(DataVersionWatcher.Source.ANNOTATIONS)
+                + "/" + watcher.getVersion(DataVersionWatcher.Source.IMPRESS);
+    }
+
+    // Returns the bitsets of the current version, or null. If they have not
+    // been built since the last change, they are rebuilt in the background,
+    // unless the last build failed less than a minute ago.
+    private Bitmaps getBitmaps() {
+        final String version = getVersion();
+        Bitmaps b = current;
+        if ((b == null || !b.version.equals(version))
+                && System.currentTimeMillis() >= retryAt
+                && building.compareAndSet(false, true)) {
+            try {
+                builder.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Bitmaps temp = build(version);
+                            if (temp == null) {
+                                retryAt = System.currentTimeMillis()
+                                        + RETRY_INTERVAL;
+                            } else {
+                                current = temp;
+                            }
+                        } finally {
+                            building.set(false);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                building.set(false);
+            }
+        }
+        return b == null || !b.version.equals(version) ? null : b;
+    }
+
+    /**
+     * Returns the parameters annotated for any of the genotypes with any of
+     * the MP terms, or any of the annotated parameters of the genotypes in
+     * procedures of any of the procedure super types.
+     *
+     * @param genotypeIds Genotype ids.
+     * @param mpTerms MP term ids.
+     * @param procedureTypes Procedure super type ids.
+     * @return Parameter keys, in no particular order; or null, if the index
+     * has not been built yet for the current version.
+     */
+    public List<String> expand(Collection<Integer> genotypeIds,
+            Collection<String> mpTerms, Collection<Integer> procedureTypes) {
+        Bitmaps b = getBitmaps();
+        if (b == null) {
+            return null;
+        }
+        BitSet result = new BitSet(b.parameters.size());
+        for (String m : mpTerms) {
+            Map<Integer, BitSet> byGenotype = b.byMpTerm.get(m);
+            if (byGenotype != null) {
+                for (Integer g : genotypeIds) {
+                    BitSet s = byGenotype.get(g);
+                    if (s != null) {
+                        result.or(s);
+                    }
+                }
+            }
+        }
+        if (!procedureTypes.isEmpty()) {
+            BitSet types = new BitSet(b.parameters.size());
+            for (Integer t : procedureTypes) {
+                BitSet s = b.byProcedureType.get(t);
+                if (s != null) {
+                    types.or(s);
+                }
+            }
+            BitSet annotated = new BitSet(b.parameters.size());
+            for (Integer g : genotypeIds) {
+                BitSet s = b.byGenotype.get(g);
+                if (s != null) {
+                    annotated.or(s);
+                }
+            }
+            types.and(annotated);
+            result.or(types);
+        }
+        List<String> r = new ArrayList<>(result.cardinality());
+        for (int i = result.nextSetBit(0); i >= 0;
+                i = result.nextSetBit(i + 1)) {
+            r.add(b.parameters.get(i));
+        }
+        return r;
+    }
+
+    private Bitmaps build(String version) {
+        EntityManager em = null;
+        try {
+            em = pm.getEntityManagerFactory().createEntityManager();
+            long start = System.currentTimeMillis();
+            List<String> parameters = new ArrayList<>();
+            Map<String, Integer> bits = new HashMap<>();
+            Map<String, Map<Integer, BitSet>> byMpTerm = new HashMap<>();
+            Map<Integer, BitSet> byGenotype = new HashMap<>();
+            Map<Integer, BitSet> byProcedureType = new HashMap<>();
+
+            TypedQuery<Object[]> q = em.createQuery(ANNOTATIONS_QUERY,
+                    Object[].class);
+            q.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+            for (Object[] r : q.getResultList()) {
+                Integer g = (Integer) r[0];
+                String k = (String) r[1];
+                if (g == null || k == null) {
+                    continue;
+                }
+                int bit = getBit(k, bits, parameters);
+                getBitSet(byGenotype, g).set(bit);
+                for (int i = 2; i < 4; ++i) {
+                    String m = (String) r[i];
+                    if (m != null) {
+                        Map<Integer, BitSet> t = byMpTerm.get(m);
+                        if (t == null) {
+                            t = new HashMap<>();
+                            byMpTerm.put(m, t);
+                        }
+                        getBitSet(t, g).set(bit);
+                    }
+                }
+            }
+
+            q = em.createQuery(PROCEDURE_TYPES_QUERY, Object[].class);
+            q.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+            for (Object[] r : q.getResultList()) {
+                String k = (String) r[0];
+                if (k == null || r[1] == null) {
+                    continue;
+                }
+                getBitSet(byProcedureType, ((Number) r[1]).intValue())
+                        .set(getBit(k, bits, parameters));
+            }
+
+            System.out.println("Expansion index was built with "
+                    + parameters.size() + " parameters, "
+                    + byGenotype.size() + " genotypes and "
+                    + byMpTerm.size() + " MP terms in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            return new Bitmaps(version,
+                    Collections.unmodifiableList(parameters),
+                    byMpTerm, byGenotype, byProcedureType);
+        } catch (Exception e) {
+            System.err.println("Could not build the expansion index: "
+                    + e.getMessage());
+            return null;
+        } finally {
+            if (em != null) {
+                em.close();
+            }
+        }
+    }
+
+    private static int getBit(String parameterKey, Map<String, Integer> bits,
+            List<String> parameters) {
+        Integer bit = bits.get(parameterKey);
+        if (bit == null) {
+            bit = parameters.size();
+            bits.put(parameterKey, bit);
+            parameters.add(parameterKey);
+        }
+        return bit;
+    }
+
+    public void shutdown() {
+        builder.shutdownNow();
+    }
+
+    private static <K> BitSet getBitSet(Map<K, BitSet> m, K key) {
+        BitSet s = m.get(key);
+        if (s == null) {
+            s = new BitSet();
+            m.put(key, s);
+        }
+        return s;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.mousephenotype.dcc.visualise.entities.GeneStrain;
+
+/**
+ * In-memory search index over the cached gene/strains.
+ *
+ * The gene symbol, allele name, strain, MGI gene id and MGI strain id of
+ * every gene/strain are indexed by their character trigrams, so that a
+ * search only verifies the gene/strains that contain all of the trigrams
+ * in the query string, instead of running a LIKE query on the database for
+ * every keystroke. Queries shorter than a trigram are answered by scanning
+ * the lower-cased fields.
+ *
+ * The results are ranked by how well the best field matches: exact matches
+ * first, then prefix matches, then substring matches. Within the same rank,
+ * the order of the catalogue (strain, then gene symbol) is retained.
+ *
+ * The index is immutable. It is built from a gene/strain catalogue, and is
+ * replaced when the catalogue is reloaded.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class GeneStrainIndex {
+
+    private static final int GRAM = 3;
+    private static final int EXACT = 0;
+    private static final int PREFIX = 1;
+    private static final int SUBSTRING = 2;
+    private static final int NO_MATCH = 3;
+
+    private final List<GeneStrain> source;
+    private final GeneStrain[] records;
+    private final String[][] fields;
+    private final Map<String, int[]> postings;
+
+    /**
+     * Builds the index for a gene/strain catalogue.
+     *
+     * @param geneStrains The catalogue, which must not be modified.
+     */
+    public GeneStrainIndex(List<GeneStrain> geneStrains) {
+        this.source = geneStrains;
+        int n = geneStrains == null ? 0 : geneStrains.size();
+        this.records = new GeneStrain[n];
+        this.fields = new String[n][];
+        Map<String, List<Integer>> temp = new HashMap<>();
+        for (int i = 0; i < n; ++i) {
+            GeneStrain g = geneStrains.get(i);
+            records[i] = g;
+            fields[i] = new String[]{
+                normalise(g.getGeneSymbol()),
+                normalise(g.getAlleleName()),
+                normalise(g.getStrain()),
+                normalise(g.getGeneId()),
+                normalise(g.getMgiStrainId())
+            };
+            for (String f : fields[i]) {
+                for (int j = 0; j + GRAM <= f.length(); ++j) {
+                    String gram = f.substring(j, j + GRAM);
+                    List<Integer> p = temp.get(gram);
+                    if (p == null) {
+                        p = new ArrayList<>();
+                        temp.put(gram, p);
+                    }
+                    /* a record is added once, even when the trigram
+                     * appears several times or in several fields */
+                    if (p.isEmpty() || p.get(p.size() - 1) != i) {
+                        p.add(i);
+                    }
+                }
+            }
+        }
+        this.postings = new HashMap<>(temp.size() * 2);
+        for (Map.Entry<String, List<Integer>> e : temp.entrySet()) {
+            List<Integer> p = e.getValue();
+            int[] ids = new int[p.size()];
+            for (int i = 0; i < ids.length; ++i) {
+                ids[i] = p.get(i);
+            }
+            postings.put(e.getKey(), ids);
+        }
+    }
+
+    private static String normalise(String value) {
+        return value == null ? "" : value.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns true if this index was built from the supplied catalogue.
+     *
+     * @param geneStrains Gene/strain catalogue.
+     * @return True if the catalogue is the one that was indexed.
+     */
+    public boolean isBuiltFrom(List<GeneStrain> geneStrains) {
+        return source == geneStrains;
+    }
+
+    public int size() {
+        return records.length;
+    }
+
+    /**
+     * Returns the gene/strains with a field that contains the query string,
+     * ranked by exact, prefix and substring matches.
+     *
+     * @param queryString Case-insensitive query string.
+     * @return The matching gene/strains, which must not be modified.
+     */
+    public List<GeneStrain> search(String queryString) {
+        String q = normalise(queryString);
+        List<GeneStrain> result = new ArrayList<>();
+        if (q.isEmpty() || records.length == 0) {
+            return result;
+        }
+        int[] candidates = getCandidates(q);
+        if (candidates != null && candidates.length == 0) {
+            return result;
+        }
+        int n = candidates == null ? records.length : candidates.length;
+        int[] ranks = new int[n];
+        int[] count = new int[NO_MATCH + 1];
+        for (int i = 0; i < n; ++i) {
+            int r = candidates == null ? i : candidates[i];
+            ranks[i] = rank(fields[r], q);
+            ++count[ranks[i]];
+        }
+        /* counting sort by rank, which retains the catalogue order */
+        int[] start = new int[NO_MATCH + 1];
+        for (int k = 1; k <= NO_MATCH; ++k) {
+            start[k] = start[k - 1] + count[k - 1];
+        }
+        GeneStrain[] sorted = new GeneStrain[n - count[NO_MATCH]];
+        for (int i = 0; i < n; ++i) {
+            if (ranks[i] != NO_MATCH) {
+                sorted[start[ranks[i]]++]
+                        = records[candidates == null ? i : candidates[i]];
+            }
+        }
+        result.addAll(Arrays.asList(sorted));
+        return result;
+    }
+
+    // Returns the records that contain every trigram of the query string,
+    // or null if the query string is too short to have any trigrams.
+    private int[] getCandidates(String q) {
+        if (q.length() < GRAM) {
+            return null;
+        }
+        int[] candidates = null;
+        for (int j = 0; j + GRAM <= q.length(); ++j) {
+            int[] p = postings.get(q.substring(j, j + GRAM));
+            if (p == null) {
+                return new int[0];
+            }
+            candidates = candidates == null ? p : intersect(candidates, p);
+            if (candidates.length == 0) {
+                break;
+            }
+        }
+        return candidates;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] r = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                ++i;
+            } else if (a[i] > b[j]) {
+                ++j;
+            } else {
+                r[k++] = a[i];
+                ++i;
+                ++j;
+            }
+        }
+        return Arrays.copyOf(r, k);
+    }
+
+    private static int rank(String[] fields, String q) {
+        int best = NO_MATCH;
+        for (String f : fields) {
+            if (f.equals(q)) {
+                return EXACT;
+            } else if (f.startsWith(q)) {
+                best = PREFIX;
+            } else if (best == NO_MATCH && f.contains(q)) {
+                best = SUBSTRING;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.persistence;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+import org.apache.tomcat.jdbc.pool.DataSourceFactory;
+import org.apache.tomcat.jdbc.pool.PoolConfiguration;
+import org.mousephenotype.dcc.visualise.entities.ConnectionPoolStatistics;
+
+/**
+ * A JDBC connection pool that is handed to EclipseLink as the non-JTA data
+ * source of the persistence unit.
+ *
+ * Pooling, validation on borrow and leak detection (connections that are
+ * held for longer than the suspect timeout are logged, but not reclaimed)
+ * are provided by the Tomcat JDBC pool. This class adds the instrumentation
+ * that the Tomcat pool does not provide, i.e., the number of threads that
+ * are currently waiting for a connection, and the average time taken to
+ * acquire a connection.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class InstrumentedConnectionPool implements DataSource {
+
+    private final org.apache.tomcat.jdbc.pool.DataSource pool;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong numAcquired = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    /**
+     * Creates a connection pool using the Tomcat JDBC pool properties.
+     *
+     * @param properties Pool properties, e.g., url, maxActive, minIdle.
+     */
+    public InstrumentedConnectionPool(Properties properties) {
+        PoolConfiguration config
+                = DataSourceFactory.parsePoolProperties(properties);
+        pool = new org.apache.tomcat.jdbc.pool.DataSource(config);
+    }
+
+    /**
+     * Creates the pool with the initial number of connections, and then
+     * borrows enough connections to fill the minimum idle count, so that
+     * the first requests do not pay for opening connections.
+     *
+     * @return Number of connections that were warmed.
+     */
+    public int warmUp() {
+        List<Connection> warmed = new ArrayList<>();
+        try {
+            pool.createPool();
+            int n = pool.getMinIdle();
+            for (int i = 0; i < n; ++i) {
+                warmed.add(pool.getConnection());
+            }
+        } catch (SQLException e) {
+            System.err.println("Connection pool warm-up failed: "
+                    + e.getMessage());
+        } finally {
+            for (Connection c : warmed) {
+                try {
+                    c.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+        return warmed.size();
+    }
+
+    public void close() {
+        pool.close(true);
+    }
+
+    public ConnectionPoolStatistics getStatistics() {
+        ConnectionPoolStatistics s = new ConnectionPoolStatistics();
+        s.setSize(pool.getSize());
+        s.setMaxActive(pool.getMaxActive());
+        s.setActive(pool.getActive());
+        s.setIdle(pool.getIdle());
+        s.setWaiting(waiting.get());
+        long n = numAcquired.get();
+        s.setNumAcquired(n);
+        s.setAverageWait(n == 0L
+                ? 0.0 : totalWaitNanos.get() / (n * 1000000.0));
+        return s;
+    }
+
+    private Connection acquire(String username, String password)
+            throws SQLException {
+        long start = System.nanoTime();
+        waiting.incrementAndGet();
+        try {
+            return username == null
+                    ? pool.getConnection()
+                    : pool.getConnection(username, password);
+        } finally {
+            waiting.decrementAndGet();
+            totalWaitNanos.addAndGet(System.nanoTime() - start);
+            numAcquired.incrementAndGet();
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return acquire(null, null);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password)
+            throws SQLException {
+        return acquire(username, password);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return pool.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        pool.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        pool.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return pool.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return pool.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || pool.isWrapperFor(iface);
+    }
+}
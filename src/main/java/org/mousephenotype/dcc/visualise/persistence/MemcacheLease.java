@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.persistence;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import net.spy.memcached.AddrUtil;
+import net.spy.memcached.MemcachedClient;
+
+/**
+ * Short-lived leases (locks) held in memcached, so that only one of the
+ * Tomcat nodes rebuilds an expired cache entry at a time.
+ *
+ * A lease is acquired with the memcached 'add' operation, which only
+ * succeeds if the key does not exist. The lease expires by itself after
+ * the lease time, so that a node which dies while holding a lease does not
+ * block the others forever.
+ *
+ * The same client also stores the shared cache entries, each together
+ * with the token of the data that it was built from. Since the token and
+ * the value are one memcached value, they are written and read atomically.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class MemcacheLease {
+
+    private static final long OPERATION_TIMEOUT = 2000L; /* milliseconds */
+    private static final String ENTRY = "entry:";
+
+    /**
+     * A shared cache entry, and the token of the data it was built from.
+     */
+    private static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private final String token;
+        private final Object value;
+
+        Entry(String token, Object value) {
+            this.token = token;
+            this.value = value;
+        }
+    }
+
+    private final MemcachedClient client;
+    private final String prefix;
+    private final int leaseTime;
+    private final String owner;
+
+    /**
+     * Creates a lease manager.
+     *
+     * @param servers Space separated list of memcached host:port.
+     * @param prefix Prefix for the lease keys, unique to the deployment.
+     * @param leaseTime Seconds after which a lease expires.
+     * @throws IOException If the memcached client could not be created.
+     */
+    public MemcacheLease(String servers, String prefix, int leaseTime)
+            throws IOException {
+        this.client = new MemcachedClient(AddrUtil.getAddresses(servers));
+        this.prefix = prefix;
+        this.leaseTime = leaseTime;
+        this.owner = ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    public int getLeaseTime() {
+        return leaseTime;
+    }
+
+    /**
+     * Tries to acquire the lease with the supplied name.
+     *
+     * @param name Lease name.
+     * @return True if the lease was acquired. If memcached cannot be
+     * reached, we return true, so that the caller carries on with the load.
+     */
+    public boolean acquire(String name) {
+        try {
+            return client.add(prefix + name, leaseTime, owner)
+                    .get(OPERATION_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            System.err.println("Could not acquire lease '" + name + "': "
+                    + e.getMessage());
+            return true;
+        }
+    }
+
+    public void release(String name) {
+        try {
+            client.delete(prefix + name);
+        } catch (Exception e) {
+            System.err.println("Could not release lease '" + name + "': "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the shared cache entry with the supplied name, if it was built
+     * from the data with the supplied token.
+     *
+     * @param name Entry name.
+     * @param token Token of the current data.
+     * @return The value; or null, if there is none, it was built from other
+     * data, or memcached cannot be reached.
+     */
+    public Object getEntry(String name, String token) {
+        try {
+            Object e = client.asyncGet(prefix + ENTRY + name)
+                    .get(OPERATION_TIMEOUT, TimeUnit.MILLISECONDS);
+            return e instanceof Entry && token.equals(((Entry) e).token)
+                    ? ((Entry) e).value : null;
+        } catch (Exception e) {
+            System.err.println("Could not read entry '" + name + "': "
+                    + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores a shared cache entry, together with the token of the data that
+     * it was built from.
+     *
+     * @param name Entry name.
+     * @param token Token of the data.
+     * @param value Serializable value.
+     */
+    public void setEntry(String name, String token, Object value) {
+        try {
+            client.set(prefix + ENTRY + name, 0, new Entry(token, value))
+                    .get(OPERATION_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            System.err.println("Could not write entry '" + name + "': "
+                    + e.getMessage());
+        }
+    }
+
+    public void shutdown() {
+        client.shutdown(OPERATION_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.mousephenotype.dcc.entities.overviews.MetadataGroupToValues;
+
+/**
+ * Process-wide dictionary from meta-data group checksums to the meta-data
+ * group values, shared by all of the requests and downloads.
+ *
+ * A meta-data group is identified by the checksum of its values, so that
+ * an entry never changes once it has been written. Hence, the dictionary is
+ * filled lazily and never invalidated. Checksums that are missing from the
+ * dictionary are retrieved together with one query (for every batch of
+ * checksums). Checksums without meta-data group values are not remembered,
+ * since the values may be written later.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class MetadataGroupDictionary {
+
+    private static final int BATCH_SIZE = 500;
+    private final ConcurrentHashMap<String, MetadataGroupToValues> groups
+            = new ConcurrentHashMap<>();
+
+    public MetadataGroupDictionary() {
+    }
+
+    /**
+     * Returns the meta-data group values for a checksum, if they are known.
+     *
+     * @param checksum Meta-data group checksum.
+     * @return Meta-data group values; or null, if not in the dictionary.
+     */
+    public MetadataGroupToValues get(String checksum) {
+        return checksum == null ? null : groups.get(checksum);
+    }
+
+    /**
+     * Returns the meta-data group values for the supplied checksums,
+     * retrieving those that are not in the dictionary.
+     *
+     * @param em Entity manager for retrieving the missing values.
+     * @param checksums Meta-data group checksums.
+     * @return Meta-data group values for each checksum that has them.
+     */
+    public Map<String, MetadataGroupToValues> resolve(EntityManager em,
+            Collection<String> checksums) {
+        Map<String, MetadataGroupToValues> resolved = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String c : new LinkedHashSet<>(checksums)) {
+            if (c == null) {
+                continue;
+            }
+            MetadataGroupToValues v = groups.get(c);
+            if (v == null) {
+                missing.add(c);
+            } else {
+                resolved.put(c, v);
+            }
+        }
+        for (int i = 0; i < missing.size(); i += BATCH_SIZE) {
+            for (MetadataGroupToValues v : retrieve(em, missing.subList(i,
+                    Math.min(i + BATCH_SIZE, missing.size())))) {
+                groups.putIfAbsent(v.getMetadataGroup(), v);
+                resolved.put(v.getMetadataGroup(), v);
+            }
+        }
+        return resolved;
+    }
+
+    public int size() {
+        return groups.size();
+    }
+
+    private List<MetadataGroupToValues> retrieve(EntityManager em,
+            List<String> checksums) {
+        List<MetadataGroupToValues> values = new ArrayList<>();
+        TypedQuery<MetadataGroupToValues> q = em.createQuery(
+                "SELECT m FROM MetadataGroupToValues m WHERE m.metadataGroup IN :metadataGroups",
+                MetadataGroupToValues.class);
+        q.setParameter("metadataGroups", checksums);
+        /* the values are shared by all of the requests, so they must not
+         * be managed by the entity manager of any one request */
+        q.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+        try {
+            values = q.getResultList();
+        } catch (Exception e) {
+            System.err.println("Could not retrieve meta-data groups: "
+                    + e.getMessage());
+        }
+        return values;
+    }
+}
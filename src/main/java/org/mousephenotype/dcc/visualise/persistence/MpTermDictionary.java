@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.persistence;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.mousephenotype.dcc.visualise.entities.MpDetails;
+
+/**
+ * Process-wide dictionary from mammalian phenotype (MP) term ids to their
+ * descriptions and selection outcomes, shared by all of the requests.
+ *
+ * The MP terms are small in number, and only change when IMPReSS is
+ * re-imported. Hence, all of the terms are loaded with one query into an
+ * immutable map, which is replaced atomically when the data version watcher
+ * detects a change to IMPReSS. Only one request reloads the terms; the
+ * requests that arrive meanwhile do not wait, and use the previous map,
+ * which carries the version of IMPReSS that it was loaded from. If
+ * the terms could not be loaded, they are not reloaded for a minute, so
+ * that a failing database is not queried by every request.
+ *
+ * The MP details in the map are shared by all of the requests, and must not
+ * be modified.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class MpTermDictionary {
+
+    private static final String QUERY
+            = "SELECT m.mpId, m.mpTerm, m.selectionOutcome FROM ParamMpterm m";
+    private static final long RETRY_INTERVAL = 60000L;
+
+    /**
+     * The MP terms that were loaded for a version of IMPReSS.
+     */
+    public static class Terms {
+
+        private final long version;
+        private final Map<String, MpDetails> terms;
+
+        Terms(long version, Map<String, MpDetails> terms) {
+            this.version = version;
+            this.terms = terms;
+        }
+
+        /**
+         * Returns the version of IMPReSS from which the terms were loaded.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Returns the immutable map from MP term id to its details.
+         */
+        public Map<String, MpDetails> getTerms() {
+            return terms;
+        }
+    }
+
+    private final DataVersionWatcher watcher;
+    private final AtomicBoolean loading = new AtomicBoolean();
+    private volatile Terms current;
+    private volatile long retryAt;
+
+    public MpTermDictionary(DataVersionWatcher watcher) {
+        this.watcher = watcher;
+    }
+
+    /**
+     * Returns the MP terms for the current version of IMPReSS. If they have
+     * not been loaded since the last change, the first caller loads them,
+     * while the other callers continue to use the previous terms. Hence,
+     * the callers must compare the version of the terms with the version
+     * of IMPReSS before they cache, or tag, a response that was decorated
+     * with them.
+     *
+     * @param em Entity manager for loading the terms.
+     * @return The MP terms, which may be for a previous version of IMPReSS;
+     * or null, if the terms have not been loaded yet.
+     */
+    public Terms getTerms(EntityManager em) {
+        long version = watcher.getVersion(DataVersionWatcher.Source.IMPRESS);
+        Terms t = current;
+        if ((t != null && t.version == version)
+                || System.currentTimeMillis() < retryAt
+                || !loading.compareAndSet(false, true)) {
+            return t;
+        }
+        try {
+            Map<String, MpDetails> terms = load(em);
+            if (terms == null) {
+                retryAt = System.currentTimeMillis() + RETRY_INTERVAL;
+            } else {
+                t = new Terms(version, terms);
+                current = t;
+            }
+        } finally {
+            loading.set(false);
+        }
+        return t;
+    }
+
+    // A term can be associated with several parameters, in which case the
+    // first one is used, as with the single-term lookup.
+    private Map<String, MpDetails> load(EntityManager em) {
+        try {
+            TypedQuery<Object[]> q = em.createQuery(QUERY, Object[].class);
+            q.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+            List<Object[]> rows = q.getResultList();
+            Map<String, MpDetails> terms = new HashMap<>(rows.size() * 2);
+            for (Object[] r : rows) {
+                String id = (String) r[0];
+                if (id != null && !terms.containsKey(id)) {
+                    terms.put(id, new MpDetails(id, (String) r[1],
+                            (String) r[2]));
+                }
+            }
+            System.out.println("MP term dictionary was loaded with "
+                    + terms.size() + " terms");
+            return Collections.unmodifiableMap(terms);
+        } catch (Exception e) {
+            System.err.println("Could not load the MP term dictionary: "
+                    + e.getMessage());
+            return null;
+        }
+    }
+}
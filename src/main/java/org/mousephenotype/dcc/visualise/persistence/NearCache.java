@@ -0,0 +1,212 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.persistence;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded in-process cache with frequency-aware eviction.
+ *
+ * Every entry has a weight (by default 1, so that the bound is the number
+ * of entries). When adding an entry would exceed the maximum weight, we
+ * examine a small window of the least recently used entries and evict the
+ * one that was used least frequently. Access frequencies are halved
+ * periodically, so that entries which were popular a long time ago do not
+ * stay in the cache forever. Entries also expire after a fixed time.
+ *
+ * Cached values are shared by all of the callers, and must not be modified.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class NearCache<K, V> {
+
+    /**
+     * Determines the weight of a cached value.
+     */
+    public interface Weigher<V> {
+
+        long weigh(V value);
+    }
+
+    private static final int EVICTION_WINDOW = 8;
+    private static final int MAX_FREQUENCY = 255;
+
+    private final long maximumWeight;
+    private final long timeToLive;
+    private final Weigher<V> weigher;
+    private final LinkedHashMap<K, Entry<V>> entries
+            = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0L;
+    private long accesses = 0L;
+    private long hits = 0L;
+    private long misses = 0L;
+    private long evictions = 0L;
+
+    private static class Entry<V> {
+
+        final V value;
+        final long weight;
+        final long expires;
+        int frequency = 1;
+
+        Entry(V value, long weight, long expires) {
+            this.value = value;
+            this.weight = weight;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Creates a cache that is bounded by the number of entries.
+     *
+     * @param maximumSize Maximum number of entries.
+     * @param timeToLive Milliseconds after which an entry expires.
+     */
+    public NearCache(long maximumSize, long timeToLive) {
+        this(maximumSize, timeToLive, new Weigher<V>() {
+            @Override
+            public long weigh(V value) {
+                return 1L;
+            }
+        });
+    }
+
+    /**
+     * Creates a cache that is bounded by the total weight of the entries.
+     *
+     * @param maximumWeight Maximum total weight of the cached values.
+     * @param timeToLive Milliseconds after which an entry expires.
+     * @param weigher Determines the weight of each value.
+     */
+    public NearCache(long maximumWeight, long timeToLive, Weigher<V> weigher) {
+        this.maximumWeight = maximumWeight;
+        this.timeToLive = timeToLive;
+        this.weigher = weigher;
+    }
+
+    public synchronized V get(K key) {
+        Entry<V> e = entries.get(key);
+        if (e != null && e.expires < System.currentTimeMillis()) {
+            remove(key);
+            e = null;
+        }
+        if (e == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        if (e.frequency < MAX_FREQUENCY) {
+            ++e.frequency;
+        }
+        if (++accesses > 10L * (entries.size() + 1L)) {
+            age();
+        }
+        return e.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        if (value == null) {
+            return;
+        }
+        long w = weigher.weigh(value);
+        Entry<V> previous = entries.get(key);
+        if (previous != null) {
+            remove(key);
+        }
+        if (w > maximumWeight) {
+            return;
+        }
+        while (weight + w > maximumWeight && !entries.isEmpty()) {
+            evict();
+        }
+        Entry<V> e = new Entry<>(value, w,
+                System.currentTimeMillis() + timeToLive);
+        if (previous != null) {
+            e.frequency = previous.frequency;
+        }
+        entries.put(key, e);
+        weight += w;
+    }
+
+    public synchronized void invalidate(K key) {
+        remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+        weight = 0L;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(K key) {
+        Entry<V> e = entries.remove(key);
+        if (e != null) {
+            weight -= e.weight;
+        }
+    }
+
+    // The iteration order of an access-ordered LinkedHashMap starts with the
+    // least recently used entry, so the first few entries are the window.
+    private void evict() {
+        K victim = null;
+        int lowest = Integer.MAX_VALUE;
+        int n = 0;
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<K, Entry<V>>> i = entries.entrySet().iterator();
+        while (i.hasNext() && n++ < EVICTION_WINDOW) {
+            Map.Entry<K, Entry<V>> me = i.next();
+            Entry<V> e = me.getValue();
+            if (e.expires < now) {
+                victim = me.getKey();
+                break;
+            }
+            if (e.frequency < lowest) {
+                lowest = e.frequency;
+                victim = me.getKey();
+            }
+        }
+        remove(victim);
+        ++evictions;
+    }
+
+    private void age() {
+        for (Entry<V> e : entries.values()) {
+            e.frequency = (e.frequency + 1) / 2;
+        }
+        accesses = 0L;
+    }
+}
@@ -15,9 +15,12 @@
  */
 package org.mousephenotype.dcc.visualise.persistence;
 
+import java.io.File;
+import java.io.IOException;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
+import org.mousephenotype.dcc.visualise.webservice.CatalogueWarmer;
 
 /**
  *
@@ -25,33 +28,276 @@ import javax.servlet.ServletContextListener;
  */
 public class PersistenceListener implements ServletContextListener {
 
+    private static final long DEFAULT_DATA_VERSION_POLL_INTERVAL = 60L;
+    private static final long DEFAULT_CATALOGUE_CACHE_SIZE = 32L;
+    private static final long DEFAULT_CATALOGUE_CACHE_TTL = 3600L;
+    private static final long DEFAULT_CATALOGUE_LEASE_TIME = 120L;
+    private static final String DEFAULT_MEMCACHE_SERVERS = "localhost:11211";
+    private static final long DEFAULT_BASELINE_CACHE_SIZE = 500000L;
+    private static final long DEFAULT_BASELINE_CACHE_TTL = 3600L;
+    private static final long DEFAULT_ANNOTATION_CACHE_SIZE = 100000L;
+    private static final long DEFAULT_ANNOTATION_CACHE_TTL = 3600L;
+    private static final long DEFAULT_REQUEST_THREADS = 16L;
+    private static final long DEFAULT_REQUEST_QUEUE_SIZE = 64L;
+    private static final long DEFAULT_REQUEST_TIME_BUDGET = 10000L;
+    private static final long DEFAULT_DOWNLOAD_THREADS = 8L;
+    private static final long DEFAULT_DOWNLOAD_QUEUE_SIZE = 32L;
+    private static final long DEFAULT_DOWNLOAD_CONCURRENCY = 4L;
+    private static final long DEFAULT_ASYNC_THREADS = 16L;
+    private static final long DEFAULT_ASYNC_QUEUE_SIZE = 64L;
+    private static final long DEFAULT_ASYNC_TIMEOUT = 300000L;
+    private static final long DEFAULT_READ_MODEL_MAX_SIZE = 1024L; /* MB */
+
+    private static long getLongParameter(ServletContext ctx, String name,
+            long defaultValue) {
+        String value = ctx.getInitParameter(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid value '" + value
+                        + "' for context parameter '" + name + "'");
+            }
+        }
+        return defaultValue;
+    }
+
+    private static boolean getBooleanParameter(ServletContext ctx,
+            String name, boolean defaultValue) {
+        String value = ctx.getInitParameter(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
     @Override
     public void contextInitialized(ServletContextEvent event) {
         ServletContext ctx = event.getServletContext();
         PersistenceManager pm
                 = (PersistenceManager) ctx.getAttribute("PersistenceManager");
         if (pm == null) {
-            ctx.setAttribute("PersistenceManager", new PersistenceManager());
+            pm = new PersistenceManager();
+            ctx.setAttribute("PersistenceManager", pm);
+        }
+        pm.warmUp();
+        DataVersionWatcher dvw
+                = (DataVersionWatcher) ctx.getAttribute("DataVersionWatcher");
+        if (dvw == null) {
+            /* the first poll completes before the caches, the read model
+             * and the catalogue warmer derive leases and stamps from the
+             * tokens of the watcher */
+            dvw = new DataVersionWatcher(pm, getLongParameter(ctx,
+                    "dataVersionPollInterval",
+                    DEFAULT_DATA_VERSION_POLL_INTERVAL));
+            dvw.start();
+            ctx.setAttribute("DataVersionWatcher", dvw);
+        }
+        CatalogueCache cc
+                = (CatalogueCache) ctx.getAttribute("CatalogueCache");
+        if (cc == null) {
+            /* without memcached, e.g. for tests and single-node installs,
+             * the catalogues are only cached in the in-process L1 tier */
+            MemcacheLease ml = null;
+            if (getBooleanParameter(ctx, "memcacheEnabled", true)) {
+                String servers = ctx.getInitParameter("memcacheServers");
+                try {
+                    ml = new MemcacheLease(
+                            servers == null ? DEFAULT_MEMCACHE_SERVERS : servers,
+                            "phenoview" + ctx.getContextPath() + ":lease:",
+                            (int) getLongParameter(ctx, "catalogueLeaseTime",
+                                    DEFAULT_CATALOGUE_LEASE_TIME));
+                } catch (IOException e) {
+                    System.err.println("Shared catalogues in memcached are disabled: "
+                            + e.getMessage());
+                }
+            }
+            cc = new CatalogueCache(
+                    (int) getLongParameter(ctx, "catalogueCacheSize",
+                            DEFAULT_CATALOGUE_CACHE_SIZE),
+                    getLongParameter(ctx, "catalogueCacheTtl",
+                            DEFAULT_CATALOGUE_CACHE_TTL),
+                    ml, dvw);
+            ctx.setAttribute("CatalogueCache", cc);
+        }
+        BaselineCache bc
+                = (BaselineCache) ctx.getAttribute("BaselineCache");
+        if (bc == null) {
+            bc = new BaselineCache(
+                    getLongParameter(ctx, "baselineCacheSize",
+                            DEFAULT_BASELINE_CACHE_SIZE),
+                    getLongParameter(ctx, "baselineCacheTtl",
+                            DEFAULT_BASELINE_CACHE_TTL),
+                    dvw);
+            ctx.setAttribute("BaselineCache", bc);
+        }
+        if (ctx.getAttribute("AnnotationCache") == null) {
+            ctx.setAttribute("AnnotationCache", new AnnotationCache(
+                    getLongParameter(ctx, "annotationCacheSize",
+                            DEFAULT_ANNOTATION_CACHE_SIZE),
+                    getLongParameter(ctx, "annotationCacheTtl",
+                            DEFAULT_ANNOTATION_CACHE_TTL),
+                    dvw));
+        }
+        /* the read model is optional; a relative directory is resolved
+         * against the working directory of the web application */
+        String readModelDirectory = ctx.getInitParameter("readModelDirectory");
+        if (ctx.getAttribute("ReadModelStore") == null
+                && readModelDirectory != null
+                && !readModelDirectory.trim().isEmpty()) {
+            File dir = new File(readModelDirectory.trim());
+            Object tmp = ctx.getAttribute("javax.servlet.context.tempdir");
+            if (!dir.isAbsolute() && tmp instanceof File) {
+                dir = new File((File) tmp, dir.getPath());
+            }
+            try {
+                ReadModelStore rms = new ReadModelStore(dir, pm, dvw,
+                        getLongParameter(ctx, "dataVersionPollInterval",
+                                DEFAULT_DATA_VERSION_POLL_INTERVAL),
+                        getLongParameter(ctx, "readModelMaxSize",
+                                DEFAULT_READ_MODEL_MAX_SIZE) << 20);
+                rms.start();
+                ctx.setAttribute("ReadModelStore", rms);
+            } catch (NoSuchMethodException e) {
+                System.err.println("Read model is disabled: "
+                        + e.getMessage());
+            }
+        }
+        if (ctx.getAttribute("MpTermDictionary") == null) {
+            ctx.setAttribute("MpTermDictionary", new MpTermDictionary(dvw));
+        }
+        if (ctx.getAttribute("ExpansionIndex") == null) {
+            ctx.setAttribute("ExpansionIndex", new ExpansionIndex(pm, dvw));
+        }
+        if (ctx.getAttribute("MetadataGroupDictionary") == null) {
+            ctx.setAttribute("MetadataGroupDictionary",
+                    new MetadataGroupDictionary());
+        }
+        RequestExecutor re
+                = (RequestExecutor) ctx.getAttribute("RequestExecutor");
+        if (re == null) {
+            int threads = (int) getLongParameter(ctx, "requestThreads",
+                    DEFAULT_REQUEST_THREADS);
+            re = new RequestExecutor("request-worker-", threads,
+                    (int) getLongParameter(ctx, "requestQueueSize",
+                            DEFAULT_REQUEST_QUEUE_SIZE),
+                    threads,
+                    getLongParameter(ctx, "requestTimeBudget",
+                            DEFAULT_REQUEST_TIME_BUDGET));
+            ctx.setAttribute("RequestExecutor", re);
         }
-        MemcacheHandler mh
-                = (MemcacheHandler) ctx.getAttribute("MemcacheHandler");
-        if (mh == null) {
-            ctx.setAttribute("MemcacheHandler", new MemcacheHandler());
+        /* downloads have their own threads, so that bulk downloads do not
+         * delay the interactive requests */
+        RequestExecutor de
+                = (RequestExecutor) ctx.getAttribute("DownloadExecutor");
+        if (de == null) {
+            de = new RequestExecutor("download-worker-",
+                    (int) getLongParameter(ctx, "downloadThreads",
+                            DEFAULT_DOWNLOAD_THREADS),
+                    (int) getLongParameter(ctx, "downloadQueueSize",
+                            DEFAULT_DOWNLOAD_QUEUE_SIZE),
+                    (int) getLongParameter(ctx, "downloadConcurrency",
+                            DEFAULT_DOWNLOAD_CONCURRENCY), 0L);
+            ctx.setAttribute("DownloadExecutor", de);
+        }
+        /* the heavy web services run on these threads, so that only a
+         * bounded number of them use the database at a time, and are
+         * rejected when these threads are all busy */
+        RequestExecutor ae
+                = (RequestExecutor) ctx.getAttribute("AsyncExecutor");
+        if (ae == null) {
+            int threads = (int) getLongParameter(ctx, "asyncThreads",
+                    DEFAULT_ASYNC_THREADS);
+            ae = new RequestExecutor("async-worker-", threads,
+                    (int) getLongParameter(ctx, "asyncQueueSize",
+                            DEFAULT_ASYNC_QUEUE_SIZE),
+                    threads,
+                    getLongParameter(ctx, "asyncTimeout",
+                            DEFAULT_ASYNC_TIMEOUT), true);
+            ctx.setAttribute("AsyncExecutor", ae);
+        }
+        CatalogueWarmer cw
+                = (CatalogueWarmer) ctx.getAttribute("CatalogueWarmer");
+        if (cw == null) {
+            cw = new CatalogueWarmer(pm, cc);
+            if (getBooleanParameter(ctx, "catalogueWarmUp", true)) {
+                cw.start();
+            } else {
+                cw.skip();
+            }
+            ctx.setAttribute("CatalogueWarmer", cw);
         }
     }
 
     @Override
     public void contextDestroyed(ServletContextEvent event) {
         ServletContext ctx = event.getServletContext();
+        CatalogueWarmer cw
+                = (CatalogueWarmer) ctx.getAttribute("CatalogueWarmer");
+        if (cw != null) {
+            cw.shutdown();
+        }
+        ctx.removeAttribute("CatalogueWarmer");
+        RequestExecutor re
+                = (RequestExecutor) ctx.getAttribute("RequestExecutor");
+        if (re != null) {
+            re.shutdown();
+        }
+        ctx.removeAttribute("RequestExecutor");
+        RequestExecutor de
+                = (RequestExecutor) ctx.getAttribute("DownloadExecutor");
+        if (de != null) {
+            de.shutdown();
+        }
+        ctx.removeAttribute("DownloadExecutor");
+        RequestExecutor ae
+                = (RequestExecutor) ctx.getAttribute("AsyncExecutor");
+        if (ae != null) {
+            ae.shutdown();
+        }
+        ctx.removeAttribute("AsyncExecutor");
+        DataVersionWatcher dvw
+                = (DataVersionWatcher) ctx.getAttribute("DataVersionWatcher");
+        if (dvw != null) {
+            dvw.shutdown();
+        }
+        ctx.removeAttribute("DataVersionWatcher");
+        ReadModelStore rms
+                = (ReadModelStore) ctx.getAttribute("ReadModelStore");
+        if (rms != null) {
+            rms.shutdown();
+        }
+        ctx.removeAttribute("ReadModelStore");
+        ExpansionIndex ei
+                = (ExpansionIndex) ctx.getAttribute("ExpansionIndex");
+        if (ei != null) {
+            ei.shutdown();
+        }
+        ctx.removeAttribute("ExpansionIndex");
+        CatalogueCache cc
+                = (CatalogueCache) ctx.getAttribute("CatalogueCache");
+        if (cc != null) {
+            cc.shutdown();
+        }
+        ctx.removeAttribute("CatalogueCache");
+        BaselineCache bc
+                = (BaselineCache) ctx.getAttribute("BaselineCache");
+        if (bc != null) {
+            bc.shutdown();
+        }
+        ctx.removeAttribute("BaselineCache");
+        AnnotationCache ac
+                = (AnnotationCache) ctx.getAttribute("AnnotationCache");
+        if (ac != null) {
+            ac.shutdown();
+        }
+        ctx.removeAttribute("AnnotationCache");
+        ctx.removeAttribute("MetadataGroupDictionary");
+        ctx.removeAttribute("MpTermDictionary");
+        /* the entity manager factory is closed last, once none of the
+         * background components above can use it any more */
         PersistenceManager pm
                 = (PersistenceManager) ctx.getAttribute("PersistenceManager");
-        pm.closeEntityManagerFactory();
-        ctx.removeAttribute("PersistenceManager");
-        MemcacheHandler mh
-                = (MemcacheHandler) ctx.getAttribute("MemcacheHandler");
-        if (mh != null) {
-            mh.shutdown();
+        if (pm != null) {
+            pm.closeEntityManagerFactory();
         }
-        ctx.removeAttribute("MemcacheHandler");
+        ctx.removeAttribute("PersistenceManager");
     }
 }
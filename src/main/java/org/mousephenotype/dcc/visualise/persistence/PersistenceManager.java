@@ -15,8 +15,15 @@
  */
 package org.mousephenotype.dcc.visualise.persistence;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.mousephenotype.dcc.visualise.entities.ConnectionPoolStatistics;
 
 /**
  *
@@ -24,20 +31,31 @@ import javax.persistence.Persistence;
  */
 public class PersistenceManager {
 
-    protected EntityManagerFactory emf;
+    /* read without the lock by every request; the pool is set before the
+     * factory, so a thread that sees the factory also sees its pool */
+    protected volatile EntityManagerFactory emf;
+    protected volatile InstrumentedConnectionPool pool;
     private final String persistenceUnit = "org.mousephenotype.dcc.visualise.entities.pu";
+    /* pool settings for the deployment profile, filtered in by Maven */
+    private final String poolProperties = "/connectionpool.properties";
 
     public PersistenceManager() {
     }
 
     public EntityManagerFactory getEntityManagerFactory() {
-        if (emf == null) {
-            createEntityManagerFactory();
+        EntityManagerFactory f = emf;
+        if (f == null) {
+            synchronized (this) {
+                if (emf == null) {
+                    createEntityManagerFactory();
+                }
+                f = emf;
+            }
         }
-        return emf;
+        return f;
     }
 
-    public void closeEntityManagerFactory() {
+    public synchronized void closeEntityManagerFactory() {
         if (emf != null) {
             emf.close();
             emf = null;
@@ -45,12 +63,68 @@ public class PersistenceManager {
                     + persistenceUnit
                     + "' was closed at " + new java.util.Date());
         }
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    /**
+     * Creates the entity manager factory and pre-opens the minimum number
+     * of idle connections in the pool. The connections are opened without
+     * holding the lock, so that requests are not blocked while the pool is
+     * being warmed.
+     */
+    public void warmUp() {
+        getEntityManagerFactory();
+        InstrumentedConnectionPool p = pool;
+        if (p != null) {
+            int n = p.warmUp();
+            System.out.println("Connection pool was warmed with "
+                    + n + " connections at " + new java.util.Date());
+        }
+    }
+
+    public ConnectionPoolStatistics getConnectionPoolStatistics() {
+        InstrumentedConnectionPool p = pool;
+        return p == null ? null : p.getStatistics();
     }
 
     protected void createEntityManagerFactory() {
-        emf = Persistence.createEntityManagerFactory(persistenceUnit);
+        Map<String, Object> overrides = new HashMap<>();
+        Properties p = loadPoolProperties();
+        if (p != null) {
+            pool = new InstrumentedConnectionPool(p);
+            overrides.put(PersistenceUnitProperties.NON_JTA_DATASOURCE, pool);
+        }
+        emf = Persistence.createEntityManagerFactory(persistenceUnit, overrides);
         System.out.println("Persistence unit '"
                 + persistenceUnit
                 + "' was created at " + new java.util.Date());
     }
+
+    // If the pool settings are missing, we fall back to the connections
+    // that EclipseLink creates from the javax.persistence.jdbc properties.
+    private Properties loadPoolProperties() {
+        InputStream in = PersistenceManager.class.getResourceAsStream(poolProperties);
+        if (in == null) {
+            System.err.println("Connection pool settings '" + poolProperties
+                    + "' not found; using EclipseLink default connections");
+            return null;
+        }
+        Properties p = new Properties();
+        try {
+            p.load(in);
+        } catch (IOException e) {
+            System.err.println("Could not read connection pool settings: "
+                    + e.getMessage());
+            p = null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+        return p;
+    }
 }
@@ -0,0 +1,864 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import org.mousephenotype.dcc.entities.overviews.MeasuredValues;
+import org.mousephenotype.dcc.entities.qc.StateAndUnresolvedIssuesCount;
+
+/**
+ * Local read model for the mutant measurements, kept in memory-mapped files
+ * inside the web application's working directory.
+ *
+ * There is one file for each centre and parameter. A file is a sequence of
+ * segments, one for each data context (genotype, strain and procedure), in
+ * which the measurements are packed column by column, with a dictionary for
+ * the strings. The segments are appended by a background thread after the
+ * measurements have been retrieved from the database, and the files are
+ * mapped into memory for reading. Hence, a hot read neither queries the
+ * database nor uses the object-relational mapping, and the operating system
+ * page cache does the caching.
+ *
+ * A file is fresh when it has been validated against the current version
+ * of the QC data source. When the data version watcher detects a change,
+ * the background thread compares the last update of each data context in
+ * a file with the one recorded in its segment. Only the stale segments are
+ * dropped, and the file is rewritten when most of it is no longer used.
+ * Until a file has been validated, its measurements are retrieved from the
+ * database.
+ *
+ * The baseline measurements are not stored, since they are already shared
+ * in memory by the baseline cache.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class ReadModelStore implements Runnable {
+
+    private static final int FILE_MAGIC = 0x50565246; /* PVRF */
+    private static final int SEGMENT_MAGIC = 0x50565253; /* PVRS */
+    private static final String SUFFIX = ".rm";
+    private static final int MAX_PENDING = 64;
+    private static final long NOT_FOUND = Long.MIN_VALUE;
+    private static final byte LONG = 1;
+    private static final byte INT = 2;
+    private static final byte SHORT = 3;
+    private static final byte BYTE = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte FLOAT = 6;
+    private static final byte BOOLEAN = 7;
+    private static final byte DATE = 8;
+    private static final byte STRING = 9;
+    private static final byte DECIMAL = 10;
+
+    /**
+     * Maximum number of measurements in a segment; larger data contexts are
+     * always streamed from the database. This also bounds the measurements
+     * that are retained in memory while a data context is being streamed.
+     */
+    public static final int MAX_ROWS = 20000;
+
+    /**
+     * A property of the measurements that is stored as a column.
+     */
+    private static class Column {
+
+        final String name;
+        final Method getter;
+        final Method setter;
+        final byte type;
+
+        Column(String name, Method getter, Method setter, byte type) {
+            this.name = name;
+            this.getter = getter;
+            this.setter = setter;
+            this.type = type;
+        }
+    }
+
+    /**
+     * The location of the measurements for a data context in a file.
+     */
+    private static class Segment {
+
+        final int genotypeId;
+        final int strainId;
+        final String procedureKey;
+        final long lastUpdate;
+        final int rows;
+        final long start;
+        final long position;
+        final long end;
+
+        Segment(int genotypeId, int strainId, String procedureKey,
+                long lastUpdate, int rows, long start, long position,
+                long end) {
+            this.genotypeId = genotypeId;
+            this.strainId = strainId;
+            this.procedureKey = procedureKey;
+            this.lastUpdate = lastUpdate;
+            this.rows = rows;
+            this.start = start;
+            this.position = position;
+            this.end = end;
+        }
+
+        Segment moveTo(long start) {
+            long d = start - this.start;
+            return new Segment(genotypeId, strainId, procedureKey, lastUpdate,
+                    rows, start, position + d, end + d);
+        }
+    }
+
+    /**
+     * The segments of a centre and parameter, and the memory mapping of
+     * their file. All of the fields are guarded by the instance lock.
+     */
+    private static class StoreFile {
+
+        final File file;
+        final int centreId;
+        final String parameterKey;
+        Map<String, Segment> segments = new HashMap<>();
+        long checkedVersion = -1L;
+        long length = 0L;
+        long garbage = 0L;
+        MappedByteBuffer buffer;
+
+        StoreFile(File file, int centreId, String parameterKey) {
+            this.file = file;
+            this.centreId = centreId;
+            this.parameterKey = parameterKey;
+        }
+
+        ByteBuffer map() throws IOException {
+            if (buffer == null || buffer.capacity() < length) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                    buffer = raf.getChannel().map(
+                            FileChannel.MapMode.READ_ONLY, 0L, length);
+                }
+            }
+            return buffer.duplicate();
+        }
+    }
+
+    private final File directory;
+    private final PersistenceManager pm;
+    private final DataVersionWatcher watcher;
+    private final long refreshInterval;
+    private final long maximumSize;
+    private final List<Column> columns;
+    private final String schema;
+    private final Constructor<MeasuredValues> constructor;
+    private final ConcurrentHashMap<String, StoreFile> files
+            = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong size = new AtomicLong();
+    private volatile ScheduledExecutorService scheduler;
+
+    /**
+     * Creates a read model store.
+     *
+     * @param directory Directory for the files.
+     * @param pm Persistence manager for validating the files.
+     * @param watcher Data version watcher.
+     * @param refreshInterval Seconds between checks for changes.
+     * @param maximumSize Maximum total size of the files in bytes.
+     * @throws NoSuchMethodException If the measurements cannot be created.
+     */
+    public ReadModelStore(File directory, PersistenceManager pm,
+            DataVersionWatcher watcher, long refreshInterval,
+            long maximumSize) throws NoSuchMethodException {
+        this.directory = directory;
+        this.pm = pm;
+        this.watcher = watcher;
+        this.refreshInterval = Math.max(1L, refreshInterval);
+        this.maximumSize = maximumSize;
+        this.columns = introspect();
+        StringBuilder sb = new StringBuilder();
+        for (Column c : columns) {
+            sb.append(c.name).append(':').append(c.type).append(';');
+        }
+        this.schema = sb.toString();
+        this.constructor = MeasuredValues.class.getDeclaredConstructor();
+        this.constructor.setAccessible(true);
+    }
+
+    private static byte getType(Class<?> c) {
+        if (c == Long.class || c == long.class) {
+            return LONG;
+        } else if (c == Integer.class || c == int.class) {
+            return INT;
+        } else if (c == Short.class || c == short.class) {
+            return SHORT;
+        } else if (c == Byte.class || c == byte.class) {
+            return BYTE;
+        } else if (c == Double.class || c == double.class) {
+            return DOUBLE;
+        } else if (c == Float.class || c == float.class) {
+            return FLOAT;
+        } else if (c == Boolean.class || c == boolean.class) {
+            return BOOLEAN;
+        } else if (c == Date.class) {
+            return DATE;
+        } else if (c == String.class) {
+            return STRING;
+        } else if (c == BigDecimal.class) {
+            return DECIMAL;
+        }
+        return 0;
+    }
+
+    // The columns are the public getter and setter pairs of the scalar
+    // properties, so that a restored measurement has the same values as
+    // one that was read from the database.
+    private static List<Column> introspect() {
+        List<Column> r = new ArrayList<>();
+        for (Method m : MeasuredValues.class.getMethods()) {
+            String n = m.getName();
+            int prefix = n.startsWith("get") ? 3 : (n.startsWith("is") ? 2 : 0);
+            byte type = getType(m.getReturnType());
+            if (prefix == 0 || n.length() == prefix || type == 0
+                    || m.getParameterTypes().length != 0
+                    || Modifier.isStatic(m.getModifiers())) {
+                continue;
+            }
+            try {
+                Method setter = MeasuredValues.class.getMethod(
+                        "set" + n.substring(prefix), m.getReturnType());
+                r.add(new Column(n.substring(prefix), m, setter, type));
+            } catch (NoSuchMethodException e) {
+            }
+        }
+        Collections.sort(r, new Comparator<Column>() {
+            @Override
+            public int compare(Column a, Column b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        return r;
+    }
+
+    private static String getFileKey(Integer centreId, String parameterKey) {
+        return centreId + ":" + parameterKey;
+    }
+
+    private static String getSegmentKey(Integer genotypeId, Integer strainId,
+            String procedureKey) {
+        return genotypeId + ":" + strainId + ":" + procedureKey;
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static String readString(ByteBuffer b) {
+        int n = b.getInt();
+        if (n < 0) {
+            return null;
+        } else if (n > b.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] s = new byte[n];
+        b.get(s);
+        return new String(s, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the time when the supplied data context was last updated.
+     *
+     * @param em Entity manager.
+     * @param centreId Centre id.
+     * @param genotypeId Genotype id.
+     * @param strainId Strain id.
+     * @param parameterKey Parameter key.
+     * @return Milliseconds since the epoch; -1, if the data context has no
+     * last update; or Long.MIN_VALUE, if it could not be retrieved.
+     */
+    public static long getLastUpdate(EntityManager em, Integer centreId,
+            Integer genotypeId, Integer strainId, String parameterKey) {
+        TypedQuery<StateAndUnresolvedIssuesCount> q
+                = em.createNamedQuery("DataContext.getStatusAndCountQcIssues",
+                        StateAndUnresolvedIssuesCount.class);
+        q.setParameter("centreId", centreId);
+        q.setParameter("genotypeId", genotypeId);
+        q.setParameter("strainId", strainId);
+        q.setParameter("parameterId", parameterKey);
+        q.setMaxResults(1);
+        try {
+            Date d = q.getSingleResult().getLastUpdate();
+            return d == null ? -1L : d.getTime();
+        } catch (Exception e) {
+            return NOT_FOUND;
+        }
+    }
+
+    public long getVersion() {
+        return watcher.getVersion(DataVersionWatcher.Source.QC);
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * Returns the stored mutant measurements for a data context.
+     *
+     * @param centreId Centre id.
+     * @param genotypeId Genotype id.
+     * @param strainId Strain id.
+     * @param procedureKey Procedure key.
+     * @param parameterKey Parameter key.
+     * @return New measurements that are not managed by an entity manager;
+     * or null, if the data context is not stored or is not fresh.
+     */
+    public List<MeasuredValues> get(Integer centreId, Integer genotypeId,
+            Integer strainId, String procedureKey, String parameterKey) {
+        StoreFile f = files.get(getFileKey(centreId, parameterKey));
+        if (f == null) {
+            return null;
+        }
+        Segment s;
+        ByteBuffer b;
+        try {
+            synchronized (f) {
+                if (f.checkedVersion != getVersion()) {
+                    return null;
+                }
+                s = f.segments.get(getSegmentKey(genotypeId, strainId,
+                        procedureKey));
+                if (s == null) {
+                    return null;
+                }
+                b = f.map();
+            }
+            b.position((int) s.position);
+            return decode(b, s.rows);
+        } catch (Exception e) {
+            System.err.println("Read model: could not read "
+                    + f.file.getName() + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the mutant measurements for a data context in the background.
+     * Measurements that were retrieved before the last change to the QC data
+     * source are not stored, since their freshness cannot be validated.
+     *
+     * @param centreId Centre id.
+     * @param genotypeId Genotype id.
+     * @param strainId Strain id.
+     * @param procedureKey Procedure key.
+     * @param parameterKey Parameter key.
+     * @param lastUpdate Last update of the data context, which must have
+     * been read before the measurements.
+     * @param version Version of the QC data source, which must have been
+     * read before the last update.
+     * @param values Measurements, which must not be modified afterwards.
+     */
+    public void put(final Integer centreId, final Integer genotypeId,
+            final Integer strainId, final String procedureKey,
+            final String parameterKey, final long lastUpdate,
+            final long version, final List<MeasuredValues> values) {
+        ScheduledExecutorService s = scheduler;
+        if (s == null || lastUpdate == NOT_FOUND || values.size() > MAX_ROWS
+                || size.get() >= maximumSize) {
+            return;
+        }
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            return;
+        }
+        try {
+            s.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        append(centreId, genotypeId, strainId, procedureKey,
+                                parameterKey, lastUpdate, version, values);
+                    } catch (Exception e) {
+                        System.err.println("Read model: could not store "
+                                + getFileKey(centreId, parameterKey) + ": "
+                                + e);
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+        }
+    }
+
+    private byte[] getHeader(int centreId, String parameterKey)
+            throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(b);
+        out.writeInt(FILE_MAGIC);
+        writeString(out, schema);
+        out.writeInt(centreId);
+        writeString(out, parameterKey);
+        out.flush();
+        return b.toByteArray();
+    }
+
+    void append(Integer centreId, Integer genotypeId,
+            Integer strainId, String procedureKey, String parameterKey,
+            long lastUpdate, long version, List<MeasuredValues> values)
+            throws Exception {
+        String key = getFileKey(centreId, parameterKey);
+        StoreFile f = files.get(key);
+        if (f == null) {
+            File file = new File(directory, centreId + "-"
+                    + parameterKey.replaceAll("[^A-Za-z0-9_.-]", "_")
+                    + "-" + Integer.toHexString(key.hashCode()) + SUFFIX);
+            f = new StoreFile(file, centreId, parameterKey);
+            byte[] header = getHeader(centreId, parameterKey);
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(header);
+            }
+            f.length = header.length;
+            f.checkedVersion = version;
+            size.addAndGet(header.length);
+            files.put(key, f);
+        }
+        byte[] data = encode(values);
+        ByteArrayOutputStream b = new ByteArrayOutputStream(data.length + 64);
+        DataOutputStream out = new DataOutputStream(b);
+        out.writeInt(SEGMENT_MAGIC);
+        out.writeInt(genotypeId);
+        out.writeInt(strainId);
+        writeString(out, procedureKey);
+        out.writeLong(lastUpdate);
+        out.writeInt(values.size());
+        out.writeInt(data.length);
+        int headerLength = out.size();
+        out.write(data);
+        out.flush();
+        synchronized (f) {
+            if (f.checkedVersion != version
+                    || f.length + b.size() > Integer.MAX_VALUE) {
+                return;
+            }
+            try (FileOutputStream fo = new FileOutputStream(f.file, true)) {
+                b.writeTo(fo);
+            }
+            Segment s = new Segment(genotypeId, strainId, procedureKey,
+                    lastUpdate, values.size(), f.length,
+                    f.length + headerLength, f.length + b.size());
+            Segment old = f.segments.put(getSegmentKey(genotypeId, strainId,
+                    procedureKey), s);
+            if (old != null) {
+                f.garbage += old.end - old.start;
+            }
+            f.length = s.end;
+            size.addAndGet(b.size());
+            if (f.garbage * 2L > f.length) {
+                compact(f);
+            }
+        }
+    }
+
+    private byte[] encode(List<MeasuredValues> values) throws Exception {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(b);
+        int n = values.size();
+        Object[] v = new Object[n];
+        for (Column c : columns) {
+            byte[] nulls = new byte[(n + 7) / 8];
+            for (int i = 0; i < n; ++i) {
+                v[i] = c.getter.invoke(values.get(i));
+                if (v[i] == null) {
+                    nulls[i >> 3] |= 1 << (i & 7);
+                }
+            }
+            out.write(nulls);
+            if (c.type == STRING || c.type == DECIMAL) {
+                Map<String, Integer> dictionary = new LinkedHashMap<>();
+                int[] codes = new int[n];
+                for (int i = 0; i < n; ++i) {
+                    if (v[i] != null) {
+                        String s = v[i].toString();
+                        Integer code = dictionary.get(s);
+                        if (code == null) {
+                            code = dictionary.size();
+                            dictionary.put(s, code);
+                        }
+                        codes[i] = code;
+                    }
+                }
+                out.writeInt(dictionary.size());
+                for (String s : dictionary.keySet()) {
+                    writeString(out, s);
+                }
+                for (int i = 0; i < n; ++i) {
+                    if (v[i] != null) {
+                        out.writeInt(codes[i]);
+                    }
+                }
+                continue;
+            }
+            for (int i = 0; i < n; ++i) {
+                if (v[i] == null) {
+                    continue;
+                }
+                switch (c.type) {
+                    case LONG:
+                        out.writeLong((Long) v[i]);
+                        break;
+                    case INT:
+                        out.writeInt((Integer) v[i]);
+                        break;
+                    case SHORT:
+                        out.writeShort((Short) v[i]);
+                        break;
+                    case BYTE:
+                        out.writeByte((Byte) v[i]);
+                        break;
+                    case DOUBLE:
+                        out.writeDouble((Double) v[i]);
+                        break;
+                    case FLOAT:
+                        out.writeFloat((Float) v[i]);
+                        break;
+                    case BOOLEAN:
+                        out.writeBoolean((Boolean) v[i]);
+                        break;
+                    case DATE:
+                        out.writeLong(((Date) v[i]).getTime());
+                        break;
+                }
+            }
+        }
+        out.flush();
+        return b.toByteArray();
+    }
+
+    private List<MeasuredValues> decode(ByteBuffer b, int n)
+            throws Exception {
+        List<MeasuredValues> r = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            r.add(constructor.newInstance());
+        }
+        byte[] nulls = new byte[(n + 7) / 8];
+        for (Column c : columns) {
+            b.get(nulls);
+            String[] dictionary = null;
+            if (c.type == STRING || c.type == DECIMAL) {
+                dictionary = new String[b.getInt()];
+                for (int j = 0; j < dictionary.length; ++j) {
+                    dictionary[j] = readString(b);
+                }
+            }
+            for (int i = 0; i < n; ++i) {
+                if ((nulls[i >> 3] & (1 << (i & 7))) != 0) {
+                    continue;
+                }
+                Object v;
+                switch (c.type) {
+                    case LONG:
+                        v = b.getLong();
+                        break;
+                    case INT:
+                        v = b.getInt();
+                        break;
+                    case SHORT:
+                        v = b.getShort();
+                        break;
+                    case BYTE:
+                        v = b.get();
+                        break;
+                    case DOUBLE:
+                        v = b.getDouble();
+                        break;
+                    case FLOAT:
+                        v = b.getFloat();
+                        break;
+                    case BOOLEAN:
+                        v = b.get() != 0;
+                        break;
+                    case DATE:
+                        v = new Date(b.getLong());
+                        break;
+                    case STRING:
+                        v = dictionary[b.getInt()];
+                        break;
+                    default:
+                        v = new BigDecimal(dictionary[b.getInt()]);
+                        break;
+                }
+                c.setter.invoke(r.get(i), v);
+            }
+        }
+        return r;
+    }
+
+    // A segment that was only partially written, e.g. when the server
+    // stopped during an append, is truncated.
+    private StoreFile open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            ByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    0L, length);
+            StoreFile f;
+            long end;
+            try {
+                if (b.getInt() != FILE_MAGIC || !schema.equals(readString(b))) {
+                    return null;
+                }
+                f = new StoreFile(file, b.getInt(), readString(b));
+                end = b.position();
+            } catch (BufferUnderflowException | IllegalArgumentException
+                    | NegativeArraySizeException e) {
+                return null;
+            }
+            try {
+                while (b.hasRemaining()) {
+                    long start = b.position();
+                    if (b.getInt() != SEGMENT_MAGIC) {
+                        break;
+                    }
+                    int genotypeId = b.getInt();
+                    int strainId = b.getInt();
+                    String procedureKey = readString(b);
+                    long lastUpdate = b.getLong();
+                    int rows = b.getInt();
+                    int dataLength = b.getInt();
+                    if (rows < 0 || dataLength < 0
+                            || dataLength > b.remaining()) {
+                        break;
+                    }
+                    long position = b.position();
+                    b.position(b.position() + dataLength);
+                    Segment old = f.segments.put(getSegmentKey(genotypeId,
+                            strainId, procedureKey), new Segment(genotypeId,
+                                    strainId, procedureKey, lastUpdate, rows,
+                                    start, position, b.position()));
+                    if (old != null) {
+                        f.garbage += old.end - old.start;
+                    }
+                    end = b.position();
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException
+                    | NegativeArraySizeException e) {
+            }
+            if (end < length) {
+                raf.setLength(end);
+            }
+            f.length = end;
+            return f;
+        }
+    }
+
+    // Copies the segments that are still in use to a new file, which then
+    // replaces the old one; the old mapping stays valid for the readers
+    // that are still using it.
+    private void compact(StoreFile f) throws IOException {
+        if (f.segments.isEmpty()) {
+            files.remove(getFileKey(f.centreId, f.parameterKey), f);
+            f.file.delete();
+            size.addAndGet(-f.length);
+            return;
+        }
+        ByteBuffer b = f.map();
+        File tmp = new File(directory, f.file.getName() + ".tmp");
+        Map<String, Segment> moved = new HashMap<>();
+        long length;
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            FileChannel ch = out.getChannel();
+            ch.write(ByteBuffer.wrap(getHeader(f.centreId, f.parameterKey)));
+            for (Map.Entry<String, Segment> e : f.segments.entrySet()) {
+                Segment s = e.getValue();
+                ByteBuffer d = b.duplicate();
+                d.limit((int) s.end);
+                d.position((int) s.start);
+                long start = ch.position();
+                while (d.hasRemaining()) {
+                    ch.write(d);
+                }
+                moved.put(e.getKey(), s.moveTo(start));
+            }
+            length = ch.position();
+        }
+        if (!f.file.delete() || !tmp.renameTo(f.file)) {
+            tmp.delete();
+            throw new IOException("could not replace " + f.file.getName());
+        }
+        size.addAndGet(length - f.length);
+        f.segments = moved;
+        f.length = length;
+        f.garbage = 0L;
+        f.buffer = null;
+    }
+
+    /**
+     * Validates the files that have not been validated against the current
+     * version of the QC data source, and drops their stale segments.
+     */
+    @Override
+    public void run() {
+        long version = getVersion();
+        EntityManager em = null;
+        try {
+            for (StoreFile f : files.values()) {
+                List<Segment> segments;
+                synchronized (f) {
+                    if (f.checkedVersion == version) {
+                        continue;
+                    }
+                    segments = new ArrayList<>(f.segments.values());
+                }
+                if (em == null) {
+                    em = pm.getEntityManagerFactory().createEntityManager();
+                }
+                /* appends only happen on this thread, so the segments do
+                 * not change while they are being validated */
+                List<Segment> stale = new ArrayList<>();
+                for (Segment s : segments) {
+                    long lastUpdate = getLastUpdate(em, f.centreId,
+                            s.genotypeId, s.strainId, f.parameterKey);
+                    if (lastUpdate == NOT_FOUND || lastUpdate != s.lastUpdate) {
+                        stale.add(s);
+                    }
+                }
+                em.clear();
+                synchronized (f) {
+                    for (Segment s : stale) {
+                        f.segments.remove(getSegmentKey(s.genotypeId,
+                                s.strainId, s.procedureKey));
+                        f.garbage += s.end - s.start;
+                    }
+                    if (f.garbage * 2L > f.length) {
+                        compact(f);
+                    }
+                    f.checkedVersion = version;
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Read model: " + e.getMessage());
+        } finally {
+            if (em != null) {
+                em.close();
+            }
+        }
+    }
+
+    void load() {
+        File[] found = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX) || name.endsWith(SUFFIX + ".tmp");
+            }
+        });
+        if (found == null) {
+            return;
+        }
+        for (File file : found) {
+            StoreFile f = null;
+            try {
+                if (file.getName().endsWith(SUFFIX)) {
+                    f = open(file);
+                }
+            } catch (IOException e) {
+                System.err.println("Read model: could not open "
+                        + file.getName() + ": " + e.getMessage());
+            }
+            if (f == null) {
+                file.delete();
+            } else {
+                files.put(getFileKey(f.centreId, f.parameterKey), f);
+                size.addAndGet(f.length);
+            }
+        }
+        System.out.println("Read model was loaded from " + directory
+                + " (" + files.size() + " files, " + size.get() + " bytes)");
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("Read model is disabled: could not create "
+                    + directory);
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "read-model-writer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+        scheduler.scheduleWithFixedDelay(this, refreshInterval,
+                refreshInterval, TimeUnit.SECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.persistence;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of worker threads that the web services use to run
+ * independent parts of a request in parallel.
+ *
+ * The number of threads and the length of the queue are both bounded, so
+ * that a burst of requests cannot exhaust the database connection pool.
+ * When the pool is saturated, the task is run by the submitting request
+ * thread instead, so that a request degrades to sequential processing
+ * rather than failing; an executor for requests that must not run on the
+ * submitting thread can instead reject the task. A request should also not
+ * have more than the maximum number of tasks per request in the pool at a
+ * time, so that one large request cannot take all of the threads.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class RequestExecutor {
+
+    private final ThreadPoolExecutor executor;
+    private final int maximumPerRequest;
+    private final long timeBudget;
+
+    /**
+     * Creates a bounded request executor.
+     *
+     * @param threads Maximum number of worker threads.
+     * @param queueSize Maximum number of tasks waiting for a thread.
+     */
+    public RequestExecutor(int threads, int queueSize) {
+        this("request-worker-", threads, queueSize, threads, 0L);
+    }
+
+    /**
+     * Creates a bounded request executor.
+     *
+     * @param name Prefix for the names of the worker threads.
+     * @param threads Maximum number of worker threads.
+     * @param queueSize Maximum number of tasks waiting for a thread.
+     * @param maximumPerRequest Maximum number of tasks that a request
+     * should have in the pool at a time.
+     * @param timeBudget Milliseconds that a request should wait for its
+     * tasks; or 0, to wait until they finish.
+     */
+    public RequestExecutor(final String name, int threads, int queueSize,
+            int maximumPerRequest, long timeBudget) {
+        this(name, threads, queueSize, maximumPerRequest, timeBudget, false);
+    }
+
+    /**
+     * Creates a bounded request executor.
+     *
+     * @param name Prefix for the names of the worker threads.
+     * @param threads Maximum number of worker threads.
+     * @param queueSize Maximum number of tasks waiting for a thread.
+     * @param maximumPerRequest Maximum number of tasks that a request
+     * should have in the pool at a time.
+     * @param timeBudget Milliseconds that a request should wait for its
+     * tasks; or 0, to wait until they finish.
+     * @param rejectWhenSaturated If true, a task that is submitted when the
+     * pool is saturated is rejected with a RejectedExecutionException,
+     * instead of being run by the submitting thread.
+     */
+    public RequestExecutor(final String name, int threads, int queueSize,
+            int maximumPerRequest, long timeBudget,
+            boolean rejectWhenSaturated) {
+        this.maximumPerRequest = Math.max(1, maximumPerRequest);
+        this.timeBudget = Math.max(0L, timeBudget);
+        executor = new ThreadPoolExecutor(threads, threads, 60L,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name
+                                + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                rejectWhenSaturated
+                        ? new ThreadPoolExecutor.AbortPolicy()
+                        : new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public int getMaximumPerRequest() {
+        return maximumPerRequest;
+    }
+
+    public long getTimeBudget() {
+        return timeBudget;
+    }
+
+    /**
+     * Returns the time by which the tasks of a request that starts now
+     * should have finished.
+     *
+     * @return Deadline in milliseconds since the epoch; or Long.MAX_VALUE,
+     * if there is no time budget.
+     */
+    public long getDeadline() {
+        return timeBudget == 0L
+                ? Long.MAX_VALUE : System.currentTimeMillis() + timeBudget;
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    public Future<?> submit(Runnable task) {
+        return executor.submit(task);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -15,16 +15,40 @@
  */
 package org.mousephenotype.dcc.visualise.webservice;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
 import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
-import org.mousephenotype.dcc.visualise.persistence.MemcacheHandler;
+import javax.ws.rs.core.Response;
+import org.mousephenotype.dcc.entities.overviews.ACentre;
+import org.mousephenotype.dcc.visualise.entities.ActivityData;
+import org.mousephenotype.dcc.visualise.entities.GeneStrain;
+import org.mousephenotype.dcc.visualise.entities.ParameterData;
+import org.mousephenotype.dcc.visualise.entities.ProcedureData;
+import org.mousephenotype.dcc.visualise.persistence.AnnotationCache;
+import org.mousephenotype.dcc.visualise.persistence.BaselineCache;
+import org.mousephenotype.dcc.visualise.persistence.CatalogueCache;
+import org.mousephenotype.dcc.visualise.persistence.DataVersionWatcher;
+import org.mousephenotype.dcc.visualise.persistence.ExpansionIndex;
+import org.mousephenotype.dcc.visualise.persistence.GeneStrainIndex;
+import org.mousephenotype.dcc.visualise.persistence.MetadataGroupDictionary;
+import org.mousephenotype.dcc.visualise.persistence.MpTermDictionary;
 import org.mousephenotype.dcc.visualise.persistence.PersistenceManager;
+import org.mousephenotype.dcc.visualise.persistence.ReadModelStore;
+import org.mousephenotype.dcc.visualise.persistence.RequestExecutor;
 
 /**
  * Provides methods that are common to all of the RESTful web services.
@@ -33,19 +57,21 @@ import org.mousephenotype.dcc.visualise.persistence.PersistenceManager;
  */
 public abstract class AbstractFacade<T> {
 
+    private static final String RETRY_AFTER = "5"; /* seconds */
     @Context
     private ServletContext context;
+    @Context
+    private HttpServletRequest servletRequest;
     private Class<T> entityClass;
 
     public AbstractFacade(Class<T> entityClass) {
         this.entityClass = entityClass;
     }
 
+    /* We do not evict the shared entity cache here. Stale entity classes are
+     * evicted by the DataVersionWatcher when their change markers move. */
     protected EntityManager getEntityManager() {
-        PersistenceManager pm
-                = (PersistenceManager) context.getAttribute("PersistenceManager");
-        EntityManagerFactory emf = pm.getEntityManagerFactory();
-        emf.getCache().evictAll();
+        EntityManagerFactory emf = getPersistenceManager().getEntityManagerFactory();
         return emf.createEntityManager();
     }
 
@@ -117,7 +143,221 @@ public abstract class AbstractFacade<T> {
         return returnValue;
     }
 
-    public MemcacheHandler getMemcacheHandler() {
-        return (MemcacheHandler) context.getAttribute("MemcacheHandler");
+    protected PersistenceManager getPersistenceManager() {
+        return (PersistenceManager) context.getAttribute("PersistenceManager");
+    }
+
+    public CatalogueCache getCatalogueCache() {
+        return (CatalogueCache) context.getAttribute("CatalogueCache");
+    }
+
+    public BaselineCache getBaselineCache() {
+        return (BaselineCache) context.getAttribute("BaselineCache");
+    }
+
+    public AnnotationCache getAnnotationCache() {
+        return (AnnotationCache) context.getAttribute("AnnotationCache");
+    }
+
+    public ExpansionIndex getExpansionIndex() {
+        return (ExpansionIndex) context.getAttribute("ExpansionIndex");
+    }
+
+    public MpTermDictionary getMpTermDictionary() {
+        return (MpTermDictionary) context.getAttribute("MpTermDictionary");
+    }
+
+    public ReadModelStore getReadModelStore() {
+        return (ReadModelStore) context.getAttribute("ReadModelStore");
+    }
+
+    public MetadataGroupDictionary getMetadataGroupDictionary() {
+        return (MetadataGroupDictionary) context.getAttribute(
+                "MetadataGroupDictionary");
+    }
+
+    public DataVersionWatcher getDataVersionWatcher() {
+        return (DataVersionWatcher) context.getAttribute("DataVersionWatcher");
+    }
+
+    public RequestExecutor getRequestExecutor() {
+        return (RequestExecutor) context.getAttribute("RequestExecutor");
+    }
+
+    public RequestExecutor getDownloadExecutor() {
+        return (RequestExecutor) context.getAttribute("DownloadExecutor");
+    }
+
+    public CatalogueWarmer getCatalogueWarmer() {
+        return (CatalogueWarmer) context.getAttribute("CatalogueWarmer");
+    }
+
+    public RequestExecutor getAsyncExecutor() {
+        return (RequestExecutor) context.getAttribute("AsyncExecutor");
+    }
+
+    /**
+     * Withholds the entity tag from the response to the current request,
+     * e.g., when the response was decorated from shared data that has not
+     * been reloaded since a change, so that a client does not revalidate it
+     * as the current data. This must be called on the request thread.
+     */
+    protected void withholdEntityTag() {
+        if (servletRequest != null) {
+            servletRequest.removeAttribute(ConditionalGetFilter.ETAG);
+        }
+    }
+
+    /**
+     * Returns the exception that answers a request with 503 (service
+     * unavailable), so that the client retries it later.
+     */
+    static WebApplicationException getUnavailableException() {
+        return new WebApplicationException(Response
+                .status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", RETRY_AFTER).build());
+    }
+
+    /**
+     * Runs a heavy web service (e.g., the fertility table) on a worker
+     * thread of the asynchronous executor, and waits for its result within
+     * the time budget of the executor. The executor bounds the number of
+     * heavy requests that use the database at a time.
+     *
+     * @param task Retrieves the response package.
+     * @return The response package.
+     * @throws WebApplicationException With 503 (service unavailable), if all
+     * of the worker threads are busy and the queue is full, or if the time
+     * budget runs out; a task that is running is then not interrupted, so
+     * that its database connection is not disturbed.
+     */
+    protected <V> V callAsync(Callable<V> task) {
+        RequestExecutor e = getAsyncExecutor();
+        Future<V> f;
+        try {
+            if (e == null) {
+                return task.call();
+            }
+            f = e.submit(task);
+        } catch (RejectedExecutionException ex) {
+            throw getUnavailableException();
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new WebApplicationException(ex);
+        }
+        try {
+            return e.getTimeBudget() == 0L ? f.get()
+                    : f.get(e.getTimeBudget(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            f.cancel(false);
+            System.err.println("Time budget exceeded while running "
+                    + getClass().getSimpleName());
+            throw getUnavailableException();
+        } catch (InterruptedException ex) {
+            f.cancel(false);
+            Thread.currentThread().interrupt();
+            throw getUnavailableException();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new WebApplicationException(ex.getCause());
+        }
+    }
+
+    /**
+     * Returns a streamed data set of a heavy web service that is generated
+     * on a worker thread of the asynchronous executor.
+     *
+     * @param stream Data set stream.
+     * @param timed If true, the data set must be generated within the time
+     * budget of the executor.
+     * @return Data set stream.
+     */
+    protected DataSetStream getAsyncStream(DataSetStream stream,
+            boolean timed) {
+        RequestExecutor e = getAsyncExecutor();
+        return e == null ? stream : new AsyncDataSetStream(stream, e, timed);
+    }
+
+    /* The following return the catalogues from the catalogue cache. On a
+     * cache miss, the catalogue is loaded with a new entity manager, so that
+     * these can also be called from worker threads. */
+    protected List<ACentre> getCachedCentres() {
+        return getCatalogueCache().getCentres(
+                new CatalogueCache.Loader<List<ACentre>>() {
+                    @Override
+                    public List<ACentre> load() {
+                        EntityManager em = getEntityManager();
+                        List<ACentre> r = new CatalogueLoader(em).getAllCentres();
+                        em.close();
+                        return r;
+                    }
+                });
+    }
+
+    protected List<ActivityData> getCachedCentreActivity() {
+        return getCatalogueCache().getCentreActivity(
+                new CatalogueCache.Loader<List<ActivityData>>() {
+                    @Override
+                    public List<ActivityData> load() {
+                        EntityManager em = getEntityManager();
+                        List<ActivityData> r
+                                = new CatalogueLoader(em).getCentreActivity();
+                        em.close();
+                        return r;
+                    }
+                });
+    }
+
+    protected List<GeneStrain> getCachedGeneStrains() {
+        return getCatalogueCache().getGeneStrains(getGeneStrainLoader());
+    }
+
+    private CatalogueCache.Loader<List<GeneStrain>> getGeneStrainLoader() {
+        return new CatalogueCache.Loader<List<GeneStrain>>() {
+            @Override
+            public List<GeneStrain> load() {
+                EntityManager em = getEntityManager();
+                List<GeneStrain> r
+                        = new CatalogueLoader(em).getAllGeneStrains();
+                em.close();
+                return r;
+            }
+        };
+    }
+
+    protected GeneStrainIndex getCachedGeneStrainIndex() {
+        return getCatalogueCache().getGeneStrainIndex(
+                getGeneStrainLoader());
+    }
+
+    protected List<ProcedureData> getCachedProcedures() {
+        return getCatalogueCache().getProcedures(
+                new CatalogueCache.Loader<List<ProcedureData>>() {
+                    @Override
+                    public List<ProcedureData> load() {
+                        EntityManager em = getEntityManager();
+                        List<ProcedureData> r
+                                = new CatalogueLoader(em).getAllProcedures();
+                        em.close();
+                        return r;
+                    }
+                });
+    }
+
+    protected HashMap<Integer, ParameterData> getCachedParameters() {
+        return getCatalogueCache().getParameters(
+                new CatalogueCache.Loader<HashMap<Integer, ParameterData>>() {
+                    @Override
+                    public HashMap<Integer, ParameterData> load() {
+                        EntityManager em = getEntityManager();
+                        HashMap<Integer, ParameterData> r
+                                = new CatalogueLoader(em).getAllParameters();
+                        em.close();
+                        return r;
+                    }
+                });
     }
 }
@@ -15,16 +15,22 @@
  */
 package org.mousephenotype.dcc.visualise.webservice;
 
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import org.mousephenotype.dcc.visualise.entities.MpDetails;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
-import org.mousephenotype.dcc.entities.impress.ParamMpterm;
 import org.mousephenotype.dcc.visualise.entities.AnnotationData;
+import org.mousephenotype.dcc.visualise.persistence.AnnotationCache;
+import org.mousephenotype.dcc.visualise.persistence.DataVersionWatcher.Source;
+import org.mousephenotype.dcc.visualise.persistence.MpTermDictionary;
 
 /**
  * Web service for retrieving annotations for a given genotype and parameter.
@@ -35,10 +41,32 @@ import org.mousephenotype.dcc.visualise.entities.AnnotationData;
 @Path("annotations")
 public class AnnotationsFacadeREST extends AbstractFacade<AnnotationData> {
 
+    private final int MAX_NUM_GENOTYPES_IN_MATRIX = 500;
+    private final int MAX_NUM_PARAMETERS_IN_MATRIX = 500;
+
     public AnnotationsFacadeREST() {
         super(AnnotationData.class);
     }
 
+    private static void decorate(AnnotationData a,
+            Map<String, MpDetails> terms) {
+        a.setMp1(terms.get(a.getyMP()));
+        a.setMp2(terms.get(a.getyMP1()));
+    }
+
+    private static void decorate(List<AnnotationData> annotations,
+            Map<String, MpDetails> terms) {
+        for (AnnotationData a : annotations) {
+            decorate(a, terms);
+        }
+    }
+
+    /* the MP terms may not have been reloaded since IMPReSS changed */
+    private boolean isCurrent(MpTermDictionary.Terms terms) {
+        return terms != null && terms.getVersion()
+                == getDataVersionWatcher().getVersion(Source.IMPRESS);
+    }
+
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     public AnnotationsPack extjsFindBy(
@@ -50,35 +78,113 @@ public class AnnotationsFacadeREST extends AbstractFacade<AnnotationData> {
                 || parameterKey.isEmpty()) {
             p.setDataSet(null, 0L);
         } else {
+            AnnotationCache ac = getAnnotationCache();
             EntityManager em = getEntityManager();
-            TypedQuery<AnnotationData> q = em.createNamedQuery(
-                    "Annotation.findByGidParameterKey", AnnotationData.class);
-            q.setParameter("genotypeId", genotypeId);
-            q.setParameter("parameterKey", parameterKey);
-            List<AnnotationData> temp = q.getResultList();
-            TypedQuery<ParamMpterm> m = em.createNamedQuery(
-                    "ParamMpterm.findByMpId", ParamMpterm.class);
-            m.setMaxResults(1);
-            ParamMpterm t;
-            for (AnnotationData a : temp) {
-                try {
-                    m.setParameter("mpId", a.getyMP());
-                    t = m.getSingleResult();
-                    a.setMp1(new MpDetails(a.getyMP(), t.getMpTerm(),
-                            t.getSelectionOutcome()));
-
-                    m.setParameter("mpId", a.getyMP1());
-                    t = m.getSingleResult();
-                    a.setMp2(new MpDetails(a.getyMP1(), t.getMpTerm(),
-                            t.getSelectionOutcome()));
-                } catch (Exception e) {
+            String key = ac.getKey(genotypeId, parameterKey);
+            List<AnnotationData> temp = ac.get(key);
+            if (temp == null) {
+                TypedQuery<AnnotationData> q = em.createNamedQuery(
+                        "Annotation.findByGidParameterKey",
+                        AnnotationData.class);
+                q.setParameter("genotypeId", genotypeId);
+                q.setParameter("parameterKey", parameterKey);
+                temp = q.getResultList();
+                /* the MP terms are decorated from the shared dictionary, and
+                 * the second term no longer depends on the first */
+                MpTermDictionary.Terms terms
+                        = getMpTermDictionary().getTerms(em);
+                if (terms != null) {
+                    decorate(temp, terms.getTerms());
+                    /* annotations that were decorated with the terms of
+                     * another version than the key, or not at all, are not
+                     * cached */
+                    ac.put(key, terms.getVersion(), temp);
+                }
+                if (!isCurrent(terms)) {
+                    withholdEntityTag();
                 }
             }
             p.setDataSet(temp);
-            
-            TypedQuery<Date> tq = em.createQuery("SELECT s.started FROM AnnotationSession s ORDER BY s.sessionId DESC", Date.class);
-            tq.setMaxResults(1);
-            p.setLastUpdate(tq.getSingleResult());
+            p.setLastUpdate(ac.getLastUpdate(em));
+            em.close();
+        }
+        return p;
+    }
+
+    /**
+     * Returns the annotations for a genotype by parameter matrix, e.g., for
+     * all of the cells in a heatmap, with one query.
+     *
+     * @param genotypeIds Comma separated list of genotype ids. At most
+     * MAX_NUM_GENOTYPES_IN_MATRIX are retrieved.
+     * @param parameterKeys Comma separated list of parameter keys. At most
+     * MAX_NUM_PARAMETERS_IN_MATRIX are retrieved.
+     * @return One row for each genotype, in the supplied order, with the
+     * annotations for each parameter, in the supplied order.
+     */
+    @GET
+    @Path("matrix")
+    @Produces({MediaType.APPLICATION_JSON, CborStreamWriter.APPLICATION_CBOR})
+    public AnnotationsMatrixPack matrix(
+            @QueryParam("gid") String genotypeIds,
+            @QueryParam("qeid") String parameterKeys) {
+        AnnotationsMatrixPack p = new AnnotationsMatrixPack();
+        Set<Integer> genotypes = new LinkedHashSet<>();
+        if (genotypeIds != null) {
+            for (String g : genotypeIds.split("\\s*,\\s*")) {
+                try {
+                    genotypes.add(Integer.valueOf(g));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (genotypes.size() == MAX_NUM_GENOTYPES_IN_MATRIX) {
+                    break;
+                }
+            }
+        }
+        Map<String, Integer> columns = new LinkedHashMap<>();
+        if (parameterKeys != null) {
+            for (String q : parameterKeys.split("\\s*,\\s*")) {
+                if (!q.isEmpty() && !columns.containsKey(q)) {
+                    columns.put(q, columns.size());
+                }
+                if (columns.size() == MAX_NUM_PARAMETERS_IN_MATRIX) {
+                    break;
+                }
+            }
+        }
+        if (genotypes.isEmpty() || columns.isEmpty()) {
+            p.setDataSet(null, 0L);
+        } else {
+            Map<Integer, GenotypeAnnotations> rows = new LinkedHashMap<>();
+            for (Integer g : genotypes) {
+                rows.put(g, new GenotypeAnnotations(g, columns.size()));
+            }
+            EntityManager em = getEntityManager();
+            TypedQuery<Object[]> q = em.createNamedQuery(
+                    "Annotation.findByGidsParameterKeys", Object[].class);
+            q.setParameter("genotypeIds", new ArrayList<>(genotypes));
+            q.setParameter("parameterKeys",
+                    new ArrayList<>(columns.keySet()));
+            MpTermDictionary.Terms terms = getMpTermDictionary().getTerms(em);
+            if (!isCurrent(terms)) {
+                withholdEntityTag();
+            }
+            for (Object[] r : q.getResultList()) {
+                GenotypeAnnotations row = rows.get((Integer) r[0]);
+                Integer column = columns.get((String) r[1]);
+                if (row == null || column == null) {
+                    continue;
+                }
+                AnnotationData a = (AnnotationData) r[2];
+                if (terms != null) {
+                    decorate(a, terms.getTerms());
+                }
+                row.getAnnotations().get(column).add(a);
+            }
+            p.setParameterKeys(new ArrayList<>(columns.keySet()));
+            p.setDataSet(new ArrayList<>(rows.values()));
+            p.setLastUpdate(getAnnotationCache().getLastUpdate(em));
             em.close();
         }
         return p;
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlSeeAlso;
+import javax.xml.bind.annotation.XmlTransient;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * Response package for the annotations matrix web service: a dense
+ * genotype by parameter structure, with one row for each of the requested
+ * genotypes and one cell in each row for each of the requested parameters.
+ *
+ * The rows are written by the streamed pack writer, since the cells are
+ * nested lists.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+@XmlSeeAlso(GenotypeAnnotations.class)
+@XmlType(propOrder = {"success", "total", "parameterKeys", "genotypes",
+    "lastUpdate"})
+public class AnnotationsMatrixPack
+        extends AbstractRestResponse<GenotypeAnnotations>
+        implements StreamedPack {
+
+    private List<String> parameterKeys;
+    private Date lastUpdate;
+
+    @Override
+    @XmlElement(name = "genotypes")
+    public List<GenotypeAnnotations> getDataSet() {
+        return super.getDataSet();
+    }
+
+    @XmlElement(name = "qeids")
+    public List<String> getParameterKeys() {
+        return parameterKeys;
+    }
+
+    public void setParameterKeys(List<String> parameterKeys) {
+        this.parameterKeys = parameterKeys;
+    }
+
+    @XmlElement(name = "lastUpdate")
+    public Date getLastUpdate() {
+        return lastUpdate;
+    }
+
+    public void setLastUpdate(Date lastUpdate) {
+        this.lastUpdate = lastUpdate;
+    }
+
+    @Override
+    @XmlTransient
+    public DataSetStream getDataSetStream() {
+        final List<GenotypeAnnotations> rows = super.getDataSet();
+        return new DataSetStream() {
+            @Override
+            public long writeTo(Sink sink) throws IOException {
+                for (GenotypeAnnotations r : rows) {
+                    sink.add(r);
+                }
+                return rows.size();
+            }
+        };
+    }
+
+    @Override
+    @XmlTransient
+    public boolean isColumnar() {
+        return false;
+    }
+
+    @Override
+    @XmlTransient
+    public boolean isComplete() {
+        return true;
+    }
+}
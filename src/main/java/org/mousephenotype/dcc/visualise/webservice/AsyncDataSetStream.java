@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.mousephenotype.dcc.visualise.persistence.RequestExecutor;
+
+/**
+ * Generates a streamed data set of a heavy web service (e.g., the batch
+ * measurements) on a worker thread of the asynchronous executor, while the
+ * writing thread waits for it.
+ *
+ * The executor bounds the number of heavy data sets that are generated at
+ * a time. When all of its threads are busy and its queue is full, or when
+ * the time budget runs out before any item has been written, the request is
+ * answered with 503 (service unavailable). If the time budget runs out
+ * after items have been written, the response is aborted, so that the
+ * client does not mistake a truncated response for a complete one.
+ *
+ * The items are passed to the sink of the writing thread, which does not
+ * return until the worker can no longer pass any items to it.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class AsyncDataSetStream implements DataSetStream {
+
+    /**
+     * Sink that fails once it has been closed, so that the worker stops
+     * writing to a response that the writing thread has given up on.
+     */
+    private static class AbortableSink implements Sink {
+
+        private final Sink sink;
+        private long items = 0L;
+        private boolean aborted = false;
+
+        AbortableSink(Sink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public synchronized void add(Object item) throws IOException {
+            if (aborted) {
+                throw new IOException("Time budget exceeded");
+            }
+            sink.add(item);
+            ++items;
+        }
+
+        /* waits for an item that is being written */
+        synchronized long abort() {
+            aborted = true;
+            return items;
+        }
+    }
+
+    private final DataSetStream stream;
+    private final RequestExecutor executor;
+    private final long timeBudget;
+
+    /**
+     * Creates a data set stream that is generated on a worker thread.
+     *
+     * @param stream Data set stream.
+     * @param executor Asynchronous executor.
+     * @param timed If true, the data set must be generated within the time
+     * budget of the executor; otherwise, e.g., for the record formats of
+     * the downloads, it may take as long as it needs.
+     */
+    public AsyncDataSetStream(DataSetStream stream, RequestExecutor executor,
+            boolean timed) {
+        this.stream = stream;
+        this.executor = executor;
+        this.timeBudget = timed ? executor.getTimeBudget() : 0L;
+    }
+
+    @Override
+    public long writeTo(Sink sink) throws IOException {
+        final AbortableSink s = new AbortableSink(sink);
+        Future<Long> f;
+        try {
+            f = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    return stream.writeTo(s);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw AbstractFacade.getUnavailableException();
+        }
+        try {
+            return timeBudget == 0L ? f.get()
+                    : f.get(timeBudget, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            /* a data set that has not started is not generated; one that is
+             * being generated is not interrupted, so that its database
+             * connection is not disturbed */
+            f.cancel(false);
+            System.err.println("Time budget exceeded while generating "
+                    + "a data set");
+            if (s.abort() == 0L) {
+                throw AbstractFacade.getUnavailableException();
+            }
+            throw new IOException("Time budget exceeded");
+        } catch (InterruptedException e) {
+            f.cancel(false);
+            s.abort();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof IOException) {
+                throw (IOException) c;
+            }
+            if (c instanceof RuntimeException) {
+                throw (RuntimeException) c;
+            }
+            throw new IOException(c);
+        }
+    }
+}
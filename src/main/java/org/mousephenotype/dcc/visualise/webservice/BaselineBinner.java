@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.xml.bind.DatatypeConverter;
+import org.mousephenotype.dcc.entities.overviews.MeasuredValues;
+import org.mousephenotype.dcc.visualise.entities.BaselineBin;
+
+/**
+ * Bins the wildtype measurements of a baseline set along the x-axis, so
+ * that a plot which can only draw a few hundred pixels receives a few
+ * hundred aggregates instead of every measurement.
+ *
+ * The measurements are read into primitive arrays in one pass, which also
+ * decides the x-axis: the increments, if every measurement has a numeric
+ * increment; otherwise, the measurement dates. The x-axis is divided into
+ * intervals of equal width, and the statistics of the values in each
+ * interval are calculated separately for each sex and for both sexes, as
+ * in MeasurementStatistics.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class BaselineBinner {
+
+    public static final int MAX_RESOLUTION = 4096;
+
+    private BaselineBinner() {
+    }
+
+    private static double toTime(Object v) {
+        if (v instanceof Date) {
+            return ((Date) v).getTime();
+        }
+        if (v instanceof Calendar) {
+            return ((Calendar) v).getTimeInMillis();
+        }
+        if (v instanceof Number) {
+            return ((Number) v).doubleValue();
+        }
+        try {
+            return v == null ? Double.NaN
+                    : DatatypeConverter.parseDateTime(v.toString())
+                    .getTimeInMillis();
+        } catch (IllegalArgumentException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static Object get(BeanStreamWriter.Property p, Object item)
+            throws IOException {
+        return p == null ? null : p.get(item);
+    }
+
+    /**
+     * Bins the supplied wildtype measurements.
+     *
+     * @param values Measurements of one baseline set.
+     * @param resolution Number of intervals on the x-axis.
+     * @param metadataGroupIndex Meta-data group index of the baseline set.
+     * @return Bins that have measurements, ordered by interval and sex; or
+     * null, if the measurements have neither numeric increments nor dates.
+     * @throws IOException If the measurements could not be read.
+     */
+    public static List<BaselineBin> bin(List<MeasuredValues> values,
+            int resolution, Long metadataGroupIndex) throws IOException {
+        if (values.isEmpty()) {
+            return Collections.emptyList();
+        }
+        BeanStreamWriter.Property value = null, sex = null, increment = null,
+                date = null;
+        for (BeanStreamWriter.Property p
+                : BeanStreamWriter.getProperties(values.get(0).getClass())) {
+            switch (p.name) {
+                case "v":
+                    value = p;
+                    break;
+                case "s":
+                    sex = p;
+                    break;
+                case "i":
+                    increment = p;
+                    break;
+                case "d":
+                    date = p;
+                    break;
+            }
+        }
+
+        int n = values.size(), m = 0;
+        double[] y = new double[n], xi = new double[n], xd = new double[n];
+        Integer[] sexes = new Integer[n];
+        boolean increments = true, dates = true;
+        for (MeasuredValues item : values) {
+            double v = MeasurementStatistics.toDouble(get(value, item));
+            if (Double.isNaN(v) || Double.isInfinite(v)) {
+                continue;
+            }
+            y[m] = v;
+            xi[m] = MeasurementStatistics.toDouble(get(increment, item));
+            xd[m] = toTime(get(date, item));
+            increments &= !Double.isNaN(xi[m]) && !Double.isInfinite(xi[m]);
+            dates &= !Double.isNaN(xd[m]);
+            sexes[m++] = MeasurementStatistics.toInteger(get(sex, item));
+        }
+        double[] x = increments ? xi : (dates ? xd : null);
+        if (x == null) {
+            return null;
+        }
+        String axis = increments ? "i" : "d";
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < m; ++i) {
+            min = Math.min(min, x[i]);
+            max = Math.max(max, x[i]);
+        }
+        double width = (max - min) / resolution;
+
+        /* for each interval, the combined group has the smallest key */
+        TreeMap<Integer, TreeMap<Integer, MeasurementStatistics.Group>> bins
+                = new TreeMap<>();
+        for (int i = 0; i < m; ++i) {
+            int b = width > 0.0
+                    ? Math.min(resolution - 1, (int) ((x[i] - min) / width))
+                    : 0;
+            TreeMap<Integer, MeasurementStatistics.Group> groups = bins.get(b);
+            if (groups == null) {
+                groups = new TreeMap<>();
+                bins.put(b, groups);
+            }
+            double lower = min + b * width;
+            double upper = b == resolution - 1 || width == 0.0
+                    ? max : min + (b + 1) * width;
+            Integer[] keys = sexes[i] == null ? new Integer[]{null}
+                    : new Integer[]{null, sexes[i]};
+            for (Integer s : keys) {
+                Integer k = s == null ? Integer.MIN_VALUE : s;
+                MeasurementStatistics.Group g = groups.get(k);
+                if (g == null) {
+                    g = new MeasurementStatistics.Group(new BaselineBin(s,
+                            metadataGroupIndex, axis, lower, upper));
+                    groups.put(k, g);
+                }
+                g.add(y[i]);
+            }
+        }
+        List<BaselineBin> r = new ArrayList<>();
+        for (Map<Integer, MeasurementStatistics.Group> groups : bins.values()) {
+            for (MeasurementStatistics.Group g : groups.values()) {
+                MeasurementStatistics.calculate(g.values, g.size, g.statistics);
+                r.add((BaselineBin) g.statistics);
+            }
+        }
+        return r;
+    }
+}
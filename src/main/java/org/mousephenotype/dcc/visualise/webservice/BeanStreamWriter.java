@@ -0,0 +1,374 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlTransient;
+import javax.xml.bind.annotation.adapters.XmlAdapter;
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+
+/**
+ * Writes structured data (objects, arrays and scalar values) directly to an
+ * output stream, one value at a time, so that large responses can be sent
+ * while they are being generated. Subclasses implement the encoding, e.g.,
+ * JSON or CBOR.
+ *
+ * Objects other than strings, numbers, booleans, dates, maps, collections
+ * and arrays are written as objects using their JAXB annotations, so that
+ * the property names are the same as those produced by the JAXB JSON
+ * provider. Null properties are omitted, and dates are written as
+ * xsd:dateTime strings, as with JAXB.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public abstract class BeanStreamWriter {
+
+    private static final ConcurrentHashMap<Class<?>, List<Property>> properties
+            = new ConcurrentHashMap<>();
+
+    /**
+     * A bean property, with its JSON name and how to read its value.
+     */
+    static class Property {
+
+        final String name;
+        final String javaName;
+        final Method getter;
+        final Field field;
+        final XmlAdapter<Object, Object> adapter;
+
+        Property(String name, String javaName, Method getter, Field field,
+                XmlAdapter<Object, Object> adapter) {
+            this.name = name;
+            this.javaName = javaName;
+            this.getter = getter;
+            this.field = field;
+            this.adapter = adapter;
+        }
+
+        Object get(Object bean) throws IOException {
+            try {
+                Object v = getter == null ? field.get(bean) : getter.invoke(bean);
+                return adapter == null || v == null ? v : adapter.marshal(v);
+            } catch (Exception e) {
+                throw new IOException("Could not read property '" + javaName
+                        + "' of " + bean.getClass().getName(), e);
+            }
+        }
+    }
+
+    public abstract BeanStreamWriter beginObject() throws IOException;
+
+    public abstract BeanStreamWriter endObject() throws IOException;
+
+    public abstract BeanStreamWriter beginArray() throws IOException;
+
+    public abstract BeanStreamWriter endArray() throws IOException;
+
+    public abstract BeanStreamWriter name(String name) throws IOException;
+
+    public abstract BeanStreamWriter nullValue() throws IOException;
+
+    public abstract BeanStreamWriter value(String v) throws IOException;
+
+    public abstract BeanStreamWriter value(boolean v) throws IOException;
+
+    public abstract BeanStreamWriter value(long v) throws IOException;
+
+    /**
+     * Writes a floating point number. Values that are not finite are
+     * written as null.
+     *
+     * @param v Value to write.
+     * @return This writer.
+     * @throws IOException If the value could not be written.
+     */
+    public abstract BeanStreamWriter value(double v) throws IOException;
+
+    public abstract void flush() throws IOException;
+
+    public BeanStreamWriter value(Number v) throws IOException {
+        if (v == null) {
+            return nullValue();
+        }
+        if (v instanceof Double || v instanceof Float) {
+            return value(v.doubleValue());
+        }
+        return value(v.longValue());
+    }
+
+    /**
+     * Writes any value: strings, numbers, booleans, dates, maps, collections,
+     * arrays and JAXB annotated beans.
+     *
+     * @param v Value to write.
+     * @return This writer.
+     * @throws IOException If the value could not be written.
+     */
+    public BeanStreamWriter value(Object v) throws IOException {
+        if (v == null) {
+            return nullValue();
+        } else if (v instanceof String) {
+            return value((String) v);
+        } else if (v instanceof Number) {
+            return value((Number) v);
+        } else if (v instanceof Boolean) {
+            return value(((Boolean) v).booleanValue());
+        } else if (v instanceof Character || v instanceof Enum) {
+            return value(v.toString());
+        } else if (v instanceof Date) {
+            Calendar c = new GregorianCalendar();
+            c.setTime((Date) v);
+            return value(DatatypeConverter.printDateTime(c));
+        } else if (v instanceof Calendar) {
+            return value(DatatypeConverter.printDateTime((Calendar) v));
+        } else if (v instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) v).entrySet()) {
+                if (e.getValue() != null) {
+                    name(String.valueOf(e.getKey()));
+                    value(e.getValue());
+                }
+            }
+            return endObject();
+        } else if (v instanceof Iterable) {
+            beginArray();
+            for (Object o : (Iterable<?>) v) {
+                value(o);
+            }
+            return endArray();
+        } else if (v.getClass().isArray()) {
+            beginArray();
+            for (int i = 0, c = Array.getLength(v); i < c; ++i) {
+                value(Array.get(v, i));
+            }
+            return endArray();
+        } else {
+            return bean(v);
+        }
+    }
+
+    /**
+     * Writes a JAXB annotated bean as an object.
+     *
+     * @param bean Bean to write.
+     * @return This writer.
+     * @throws IOException If the bean could not be written.
+     */
+    public BeanStreamWriter bean(Object bean) throws IOException {
+        beginObject();
+        properties(bean, Collections.<String>emptySet());
+        return endObject();
+    }
+
+    /**
+     * Writes the properties of a bean into the currently open object.
+     *
+     * @param bean Bean whose properties are written.
+     * @param skip Java names of the properties that must not be written.
+     * @throws IOException If the properties could not be written.
+     */
+    public void properties(Object bean, Set<String> skip) throws IOException {
+        for (Property p : getProperties(bean.getClass())) {
+            if (skip.contains(p.javaName)) {
+                continue;
+            }
+            Object v = p.get(bean);
+            if (v != null) {
+                name(p.name);
+                value(v);
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the bean property with the supplied Java
+     * name, or null if the property is not written.
+     *
+     * @param type Bean class.
+     * @param javaName Java property name, e.g., "dataSet".
+     * @return JSON property name.
+     */
+    public static String getPropertyName(Class<?> type, String javaName) {
+        for (Property p : getProperties(type)) {
+            if (p.javaName.equals(javaName)) {
+                return p.name;
+            }
+        }
+        return null;
+    }
+
+    static List<Property> getProperties(Class<?> type) {
+        List<Property> p = properties.get(type);
+        if (p == null) {
+            p = introspect(type);
+            properties.putIfAbsent(type, p);
+        }
+        return p;
+    }
+
+    private static String decapitalise(String s) {
+        if (s.length() > 1 && Character.isUpperCase(s.charAt(1))
+                && Character.isUpperCase(s.charAt(0))) {
+            return s;
+        }
+        return Character.toLowerCase(s.charAt(0)) + s.substring(1);
+    }
+
+    private static XmlAccessType getAccessType(Class<?> type) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            XmlAccessorType a = c.getAnnotation(XmlAccessorType.class);
+            if (a == null && c.getPackage() != null) {
+                a = c.getPackage().getAnnotation(XmlAccessorType.class);
+            }
+            if (a != null) {
+                return a.value();
+            }
+        }
+        return XmlAccessType.PUBLIC_MEMBER;
+    }
+
+    private static String getAnnotatedName(XmlElement e, XmlAttribute a) {
+        String name = e == null ? (a == null ? null : a.name()) : e.name();
+        return name == null || "##default".equals(name) ? null : name;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static XmlAdapter<Object, Object> getAdapter(XmlJavaTypeAdapter a) {
+        if (a == null) {
+            return null;
+        }
+        try {
+            return (XmlAdapter<Object, Object>) a.value()
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Follows the JAXB defaults: with PUBLIC_MEMBER access, public getter and
+    // setter pairs, public fields and annotated members are bound; with FIELD
+    // access, all of the fields; and with PROPERTY access, all of the getter
+    // and setter pairs. Annotated members are always bound.
+    private static List<Property> introspect(Class<?> type) {
+        XmlAccessType access = getAccessType(type);
+        Map<String, Property> found = new LinkedHashMap<>();
+        for (Method m : type.getMethods()) {
+            String n = m.getName();
+            String javaName;
+            if (m.getParameterTypes().length != 0
+                    || Modifier.isStatic(m.getModifiers())
+                    || "getClass".equals(n)) {
+                continue;
+            }
+            if (n.startsWith("get") && n.length() > 3) {
+                javaName = decapitalise(n.substring(3));
+            } else if (n.startsWith("is") && n.length() > 2
+                    && (m.getReturnType() == boolean.class
+                    || m.getReturnType() == Boolean.class)) {
+                javaName = decapitalise(n.substring(2));
+            } else {
+                continue;
+            }
+            if (m.isAnnotationPresent(XmlTransient.class)) {
+                found.put(javaName, null);
+                continue;
+            }
+            XmlElement e = m.getAnnotation(XmlElement.class);
+            XmlAttribute a = m.getAnnotation(XmlAttribute.class);
+            boolean bound = e != null || a != null;
+            if (!bound && (access == XmlAccessType.PUBLIC_MEMBER
+                    || access == XmlAccessType.PROPERTY)) {
+                bound = hasSetter(type, n.substring(n.startsWith("is") ? 2 : 3),
+                        m.getReturnType());
+            }
+            if (bound && !found.containsKey(javaName)) {
+                String name = getAnnotatedName(e, a);
+                found.put(javaName, new Property(name == null ? javaName : name,
+                        javaName, m, null,
+                        getAdapter(m.getAnnotation(XmlJavaTypeAdapter.class))));
+            }
+        }
+        for (Class<?> c = type; c != null && c != Object.class;
+                c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                int mod = f.getModifiers();
+                String javaName = f.getName();
+                if (Modifier.isStatic(mod) || Modifier.isTransient(mod)
+                        || f.isAnnotationPresent(XmlTransient.class)
+                        || found.containsKey(javaName)) {
+                    continue;
+                }
+                XmlElement e = f.getAnnotation(XmlElement.class);
+                XmlAttribute a = f.getAnnotation(XmlAttribute.class);
+                if (e != null || a != null || access == XmlAccessType.FIELD
+                        || (access == XmlAccessType.PUBLIC_MEMBER
+                        && Modifier.isPublic(mod))) {
+                    f.setAccessible(true);
+                    String name = getAnnotatedName(e, a);
+                    found.put(javaName, new Property(
+                            name == null ? javaName : name, javaName, null, f,
+                            getAdapter(f.getAnnotation(XmlJavaTypeAdapter.class))));
+                }
+            }
+        }
+        List<Property> result = new ArrayList<>();
+        for (Property p : found.values()) {
+            if (p != null) {
+                result.add(p);
+            }
+        }
+        Collections.sort(result, new Comparator<Property>() {
+            @Override
+            public int compare(Property a, Property b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+        return result;
+    }
+
+    private static boolean hasSetter(Class<?> type, String suffix,
+            Class<?> valueType) {
+        for (Method m : type.getMethods()) {
+            if (m.getName().equals("set" + suffix)
+                    && m.getParameterTypes().length == 1
+                    && m.getParameterTypes()[0].isAssignableFrom(valueType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import org.mousephenotype.dcc.entities.overviews.ACentre;
+import org.mousephenotype.dcc.visualise.entities.ActivityData;
+import org.mousephenotype.dcc.visualise.entities.GeneStrain;
+import org.mousephenotype.dcc.visualise.entities.ParameterData;
+import org.mousephenotype.dcc.visualise.entities.ProcedureData;
+import org.mousephenotype.dcc.visualise.persistence.DataVersionWatcher;
+import org.mousephenotype.dcc.visualise.persistence.RequestExecutor;
+
+/**
+ * Web service for retrieving all of the configuration data that the client
+ * needs at start-up in one round trip. The centres, centre activity,
+ * gene/strains, procedures and parameters are retrieved in parallel from
+ * the catalogue cache.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+@Stateless
+@Path("bootstrap")
+public class BootstrapFacadeREST extends AbstractFacade<BootstrapPack> {
+
+    public BootstrapFacadeREST() {
+        super(BootstrapPack.class);
+    }
+
+    private List<GeneStrain> getGeneStrains(String genotypeIds) {
+        if (genotypeIds != null && !genotypeIds.isEmpty()) {
+            List<Integer> gids
+                    = GeneStrainFacadeREST.getGenotypeIds(genotypeIds);
+            if (!gids.isEmpty()) {
+                EntityManager em = getEntityManager();
+                List<GeneStrain> r
+                        = new CatalogueLoader(em).getSelectedGeneStrains(gids);
+                em.close();
+                return r;
+            }
+        }
+        return getCachedGeneStrains();
+    }
+
+    private List<ParameterData> getParameters(String parameterKeys) {
+        HashMap<Integer, ParameterData> parameters;
+        if (parameterKeys == null || parameterKeys.isEmpty()) {
+            parameters = getCachedParameters();
+        } else {
+            EntityManager em = getEntityManager();
+            parameters = new CatalogueLoader(em).getSelectedParameters(parameterKeys);
+            em.close();
+        }
+        return new ArrayList<>(parameters.values());
+    }
+
+    private <T> List<T> get(Future<List<T>> f, String name) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Could not retrieve " + name + ": "
+                    + e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * Returns the configuration data.
+     *
+     * @param genotypeIds Comma separated genotype ids; if unspecified, all
+     * of the gene/strains are returned.
+     * @param parameterKeys Comma separated parameter keys; if unspecified,
+     * all of the parameters are returned.
+     * @return Configuration data with a version token.
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public BootstrapPack bootstrap(
+            @QueryParam("g") final String genotypeIds,
+            @QueryParam("q") final String parameterKeys) {
+        BootstrapPack p = new BootstrapPack();
+
+        /* the token is read before the data, so that the data returned is
+         * never older than the state identified by the token */
+        p.setVersion(getDataVersionWatcher().getToken(
+                DataVersionWatcher.Source.QC,
+                DataVersionWatcher.Source.RAW,
+                DataVersionWatcher.Source.IMPRESS));
+
+        RequestExecutor re = getRequestExecutor();
+        Future<List<ACentre>> centres = re.submit(new Callable<List<ACentre>>() {
+            @Override
+            public List<ACentre> call() {
+                return getCachedCentres();
+            }
+        });
+        Future<List<ActivityData>> activity
+                = re.submit(new Callable<List<ActivityData>>() {
+                    @Override
+                    public List<ActivityData> call() {
+                        return getCachedCentreActivity();
+                    }
+                });
+        Future<List<GeneStrain>> genestrains
+                = re.submit(new Callable<List<GeneStrain>>() {
+                    @Override
+                    public List<GeneStrain> call() {
+                        return getGeneStrains(genotypeIds);
+                    }
+                });
+        Future<List<ProcedureData>> procedures
+                = re.submit(new Callable<List<ProcedureData>>() {
+                    @Override
+                    public List<ProcedureData> call() {
+                        return getCachedProcedures();
+                    }
+                });
+        Future<List<ParameterData>> parameters
+                = re.submit(new Callable<List<ParameterData>>() {
+                    @Override
+                    public List<ParameterData> call() {
+                        return getParameters(parameterKeys);
+                    }
+                });
+
+        p.getCentres().setDataSet(get(centres, "centres"));
+        p.getActivity().setDataSet(get(activity, "centre activity"));
+        p.getGenestrains().setDataSet(get(genestrains, "gene/strains"));
+        p.getProcedures().setDataSet(get(procedures, "procedures"));
+        p.getParameters().setDataSet(get(parameters, "parameters"));
+        p.setSuccess(p.getCentres().getSuccess()
+                && p.getActivity().getSuccess()
+                && p.getGenestrains().getSuccess()
+                && p.getProcedures().getSuccess()
+                && p.getParameters().getSuccess());
+        return p;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * Response package for the configuration data returned by the
+ * BootstrapFacadeREST web service. This combines the responses of the
+ * centre, centre activity, gene/strain, procedure and parameter web
+ * services, with a version token that identifies the state of the data.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+@XmlRootElement
+@XmlType(propOrder = {"success", "version", "centres", "activity",
+    "genestrains", "procedures", "parameters"})
+public class BootstrapPack {
+
+    private boolean success = false;
+    private String version;
+    private CentrePack centres = new CentrePack();
+    private CentreActivityPack activity = new CentreActivityPack();
+    private GeneStrainPack genestrains = new GeneStrainPack();
+    private ProcedurePack procedures = new ProcedurePack();
+    private ParameterPack parameters = new ParameterPack();
+
+    public BootstrapPack() {
+    }
+
+    @XmlElement(name = "success")
+    public boolean getSuccess() {
+        return success;
+    }
+
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    @XmlElement(name = "version")
+    public String getVersion() {
+        return version;
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    @XmlElement(name = "centres")
+    public CentrePack getCentres() {
+        return centres;
+    }
+
+    public void setCentres(CentrePack centres) {
+        this.centres = centres;
+    }
+
+    @XmlElement(name = "activity")
+    public CentreActivityPack getActivity() {
+        return activity;
+    }
+
+    public void setActivity(CentreActivityPack activity) {
+        this.activity = activity;
+    }
+
+    @XmlElement(name = "genestrains")
+    public GeneStrainPack getGenestrains() {
+        return genestrains;
+    }
+
+    public void setGenestrains(GeneStrainPack genestrains) {
+        this.genestrains = genestrains;
+    }
+
+    @XmlElement(name = "procedures")
+    public ProcedurePack getProcedures() {
+        return procedures;
+    }
+
+    public void setProcedures(ProcedurePack procedures) {
+        this.procedures = procedures;
+    }
+
+    @XmlElement(name = "parameters")
+    public ParameterPack getParameters() {
+        return parameters;
+    }
+
+    public void setParameters(ParameterPack parameters) {
+        this.parameters = parameters;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.EntityManager;
+import org.mousephenotype.dcc.visualise.entities.GeneStrain;
+import org.mousephenotype.dcc.visualise.entities.ParameterData;
+import org.mousephenotype.dcc.visualise.entities.ProcedureData;
+import org.mousephenotype.dcc.visualise.entities.WarmUpStatus;
+import org.mousephenotype.dcc.visualise.persistence.CatalogueCache;
+import org.mousephenotype.dcc.visualise.persistence.PersistenceManager;
+
+/**
+ * Builds the catalogues (parameters, procedures and gene/strains) in the
+ * background when the web application starts, so that the first users after
+ * a deployment do not have to wait for them.
+ *
+ * The catalogues are built in parallel, each with its own entity manager,
+ * through the catalogue cache. Hence, a user request that arrives while a
+ * catalogue is being built waits for the same build instead of starting
+ * another one. The web application is ready when all of the catalogues
+ * have been built (successfully or not).
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class CatalogueWarmer {
+
+    private final PersistenceManager pm;
+    private final CatalogueCache cache;
+    private final WarmUpStatus status = new WarmUpStatus();
+    private ExecutorService executor;
+
+    private abstract class Task implements Runnable {
+
+        private final String name;
+        private final CountDownLatch done;
+
+        Task(String name, CountDownLatch done) {
+            this.name = name;
+            this.done = done;
+        }
+
+        abstract void build(CatalogueLoader loader);
+
+        abstract void setTime(long time);
+
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            EntityManager em = null;
+            try {
+                em = pm.getEntityManagerFactory().createEntityManager();
+                build(new CatalogueLoader(em));
+                long time = System.currentTimeMillis() - start;
+                synchronized (status) {
+                    setTime(time);
+                }
+                System.out.println("Catalogue '" + name + "' was built in "
+                        + time + " ms");
+            } catch (Exception e) {
+                System.err.println("Could not build catalogue '" + name
+                        + "': " + e.getMessage());
+            } finally {
+                if (em != null) {
+                    em.close();
+                }
+                done.countDown();
+            }
+        }
+    }
+
+    public CatalogueWarmer(PersistenceManager pm, CatalogueCache cache) {
+        this.pm = pm;
+        this.cache = cache;
+    }
+
+    /**
+     * Starts building the catalogues in the background. This returns
+     * immediately.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(3);
+        executor = Executors.newFixedThreadPool(3, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "catalogue-warmer-"
+                        + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.execute(new Task("parameters", done) {
+            @Override
+            void build(final CatalogueLoader loader) {
+                cache.getParameters(
+                        new CatalogueCache.Loader<HashMap<Integer, ParameterData>>() {
+                            @Override
+                            public HashMap<Integer, ParameterData> load() {
+                                return loader.getAllParameters();
+                            }
+                        });
+            }
+
+            @Override
+            void setTime(long time) {
+                status.setParameters(time);
+            }
+        });
+        executor.execute(new Task("procedures", done) {
+            @Override
+            void build(final CatalogueLoader loader) {
+                cache.getProcedures(new CatalogueCache.Loader<List<ProcedureData>>() {
+                    @Override
+                    public List<ProcedureData> load() {
+                        return loader.getAllProcedures();
+                    }
+                });
+            }
+
+            @Override
+            void setTime(long time) {
+                status.setProcedures(time);
+            }
+        });
+        executor.execute(new Task("genestrains", done) {
+            @Override
+            void build(final CatalogueLoader loader) {
+                cache.getGeneStrains(new CatalogueCache.Loader<List<GeneStrain>>() {
+                    @Override
+                    public List<GeneStrain> load() {
+                        return loader.getAllGeneStrains();
+                    }
+                });
+            }
+
+            @Override
+            void setTime(long time) {
+                status.setGeneStrains(time);
+            }
+        });
+        executor.shutdown();
+
+        /* marks the web application as ready once all of the tasks end */
+        final long start = System.currentTimeMillis();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    done.await();
+                    synchronized (status) {
+                        status.setReady(true);
+                    }
+                    System.out.println("Catalogue warm-up finished in "
+                            + (System.currentTimeMillis() - start) + " ms");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "catalogue-warmer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Marks the web application as ready without warming the catalogues.
+     */
+    public void skip() {
+        synchronized (status) {
+            status.setReady(true);
+        }
+    }
+
+    public boolean isReady() {
+        synchronized (status) {
+            return status.isReady();
+        }
+    }
+
+    public WarmUpStatus getStatus() {
+        WarmUpStatus s = new WarmUpStatus();
+        synchronized (status) {
+            s.setReady(status.isReady());
+            s.setParameters(status.getParameters());
+            s.setProcedures(status.getProcedures());
+            s.setGeneStrains(status.getGeneStrains());
+        }
+        return s;
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
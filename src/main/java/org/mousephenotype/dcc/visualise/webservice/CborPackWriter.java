@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Writes the response packages as CBOR, for clients that request it with
+ * 'Accept: application/cbor'. The decoded objects have the same properties
+ * as the JSON responses; only the encoding is more compact, and cheaper to
+ * parse for numeric data (e.g., the measurements).
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+@Provider
+@Produces(CborStreamWriter.APPLICATION_CBOR)
+public class CborPackWriter
+        implements MessageBodyWriter<AbstractRestResponse<?>> {
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType,
+            Annotation[] annotations, MediaType mediaType) {
+        return AbstractRestResponse.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(AbstractRestResponse<?> t, Class<?> type,
+            Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return -1L;
+    }
+
+    @Override
+    public void writeTo(AbstractRestResponse<?> t, Class<?> type,
+            Type genericType, Annotation[] annotations, MediaType mediaType,
+            MultivaluedMap<String, Object> httpHeaders,
+            OutputStream entityStream)
+            throws IOException, WebApplicationException {
+        EntityTagOutputStream out
+                = new EntityTagOutputStream(entityStream, httpHeaders);
+        StreamedPackWriter.write(new CborStreamWriter(out), t, type);
+        out.finish(StreamedPackWriter.isComplete(t));
+    }
+}
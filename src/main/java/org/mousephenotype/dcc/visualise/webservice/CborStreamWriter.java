@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes CBOR (RFC 7049) directly to an output stream, one value at a time.
+ *
+ * Objects and arrays are written with indefinite lengths, so that they can
+ * be streamed without knowing the number of items in advance. Integral
+ * numbers are written as integers, and other numbers are written in single
+ * precision when this does not lose precision, otherwise in double
+ * precision. Dates are written as xsd:dateTime strings, as in JSON, so that
+ * the decoded objects are the same as those parsed from the JSON responses.
+ *
+ * The reduction in response size and decoding time compared with gzipped
+ * JSON has not been measured; CBOR is only returned to clients that ask for
+ * it in the Accept header.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class CborStreamWriter extends BeanStreamWriter {
+
+    public static final String APPLICATION_CBOR = "application/cbor";
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_TEXT = 3;
+    private static final int INDEFINITE_ARRAY = 0x9f;
+    private static final int INDEFINITE_MAP = 0xbf;
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int FLOAT32 = 0xfa;
+    private static final int FLOAT64 = 0xfb;
+    private static final int BREAK = 0xff;
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+
+    public CborStreamWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public CborStreamWriter beginObject() throws IOException {
+        write(INDEFINITE_MAP);
+        return this;
+    }
+
+    @Override
+    public CborStreamWriter endObject() throws IOException {
+        write(BREAK);
+        return this;
+    }
+
+    @Override
+    public CborStreamWriter beginArray() throws IOException {
+        write(INDEFINITE_ARRAY);
+        return this;
+    }
+
+    @Override
+    public CborStreamWriter endArray() throws IOException {
+        write(BREAK);
+        return this;
+    }
+
+    @Override
+    public CborStreamWriter name(String name) throws IOException {
+        return value(name);
+    }
+
+    @Override
+    public CborStreamWriter nullValue() throws IOException {
+        write(NULL);
+        return this;
+    }
+
+    @Override
+    public CborStreamWriter value(String v) throws IOException {
+        if (v == null) {
+            nullValue();
+        } else {
+            byte[] b = v.getBytes(StandardCharsets.UTF_8);
+            head(MAJOR_TEXT, b.length);
+            write(b);
+        }
+        return this;
+    }
+
+    @Override
+    public CborStreamWriter value(boolean v) throws IOException {
+        write(v ? TRUE : FALSE);
+        return this;
+    }
+
+    @Override
+    public CborStreamWriter value(long v) throws IOException {
+        if (v < 0L) {
+            head(MAJOR_NEGATIVE, -1L - v);
+        } else {
+            head(MAJOR_UNSIGNED, v);
+        }
+        return this;
+    }
+
+    @Override
+    public CborStreamWriter value(double v) throws IOException {
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            return nullValue();
+        }
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+            return value((long) v);
+        }
+        float f = (float) v;
+        if (f == v) {
+            write(FLOAT32);
+            bytes(Float.floatToIntBits(f), 4);
+        } else {
+            write(FLOAT64);
+            bytes(Double.doubleToLongBits(v), 8);
+        }
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+        out.flush();
+    }
+
+    // The argument of the data item head is written in the smallest of the
+    // 0, 1, 2, 4 or 8 byte forms that can hold it.
+    private void head(int major, long argument) throws IOException {
+        int m = major << 5;
+        if (argument < 24L) {
+            write(m | (int) argument);
+        } else if (argument < 0x100L) {
+            write(m | 24);
+            bytes(argument, 1);
+        } else if (argument < 0x10000L) {
+            write(m | 25);
+            bytes(argument, 2);
+        } else if (argument < 0x100000000L) {
+            write(m | 26);
+            bytes(argument, 4);
+        } else {
+            write(m | 27);
+            bytes(argument, 8);
+        }
+    }
+
+    private void bytes(long v, int n) throws IOException {
+        for (int i = n - 1; i >= 0; --i) {
+            write((int) (v >>> (8 * i)));
+        }
+    }
+
+    private void write(int b) throws IOException {
+        if (position == buffer.length) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    private void write(byte[] b) throws IOException {
+        if (b.length > buffer.length - position) {
+            out.write(buffer, 0, position);
+            position = 0;
+            if (b.length > buffer.length) {
+                out.write(b);
+                return;
+            }
+        }
+        System.arraycopy(b, 0, buffer, position, b.length);
+        position += b.length;
+    }
+}
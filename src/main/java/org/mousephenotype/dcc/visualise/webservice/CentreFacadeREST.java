@@ -16,14 +16,11 @@
 package org.mousephenotype.dcc.visualise.webservice;
 
 import javax.ejb.Stateless;
-import javax.persistence.EntityManager;
-import javax.persistence.TypedQuery;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import org.mousephenotype.dcc.entities.overviews.ACentre;
-import org.mousephenotype.dcc.visualise.entities.ActivityData;
 
 /**
  * Web service for retrieving centres.
@@ -34,8 +31,6 @@ import org.mousephenotype.dcc.visualise.entities.ActivityData;
 @Path("centres")
 public class CentreFacadeREST extends AbstractFacade<ACentre> {
 
-    private EntityManager em;
-
     public CentreFacadeREST() {
         super(ACentre.class);
     }
@@ -44,7 +39,7 @@ public class CentreFacadeREST extends AbstractFacade<ACentre> {
     @Produces(MediaType.APPLICATION_JSON)
     public CentrePack all() {
         CentrePack p = new CentrePack();
-        p.setDataSet(super.findAll());
+        p.setDataSet(getCachedCentres());
         return p;
     }
 
@@ -53,9 +48,7 @@ public class CentreFacadeREST extends AbstractFacade<ACentre> {
     @Produces(MediaType.APPLICATION_JSON)
     public CentreActivityPack activity() {
         CentreActivityPack p = new CentreActivityPack();
-        em = getEntityManager();
-        TypedQuery<ActivityData> q = em.createQuery("SELECT new org.mousephenotype.dcc.visualise.entities.ActivityData(x.centreId.id, FUNC('YEAR', x.lastUpdate), FUNC('MONTH', x.lastUpdate), FUNC('WEEKDAY', x.lastUpdate), COUNT(x.id)) FROM XmlFile x GROUP BY x.centreId, FUNC('YEAR', x.lastUpdate), FUNC('MONTH', x.lastUpdate), FUNC('WEEK', x.lastUpdate)", ActivityData.class);
-        p.setDataSet(q.getResultList());
+        p.setDataSet(getCachedCentreActivity());
         return p;
     }
 }
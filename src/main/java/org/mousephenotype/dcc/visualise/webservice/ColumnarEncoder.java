@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the items of a data set column by column, and writes them in
+ * columnar (struct-of-arrays) format:
+ *
+ * <pre>
+ * {"n": 3, "columns": {"a": [11, 12, 13], "s": {"d": [0, 1], "c": [1, 0, 1]}}}
+ * </pre>
+ *
+ * Every property of the items is written once as an array of values,
+ * instead of repeating the property names in every item. Properties with
+ * only a few distinct values (e.g., sex, zygosity and meta-data group) are
+ * dictionary encoded: "d" contains the distinct values, and "c" the index
+ * of the value of each item in "d". Missing values are null.
+ *
+ * The columns can only be written when all of the items have been added,
+ * so the whole data set is held in memory. Hence, the columnar format is
+ * only returned when a client asks for it, and is meant for clients that
+ * read the columns directly; the row format streams the items.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class ColumnarEncoder implements DataSetStream.Sink {
+
+    /* a column is dictionary encoded if it has at most this many distinct
+     * values, which are at most a quarter of the number of items */
+    private static final int MAX_DICTIONARY_SIZE = 256;
+    private List<BeanStreamWriter.Property> properties;
+    private List<List<Object>> columns;
+    private int count = 0;
+
+    public ColumnarEncoder() {
+    }
+
+    @Override
+    public void add(Object item) throws IOException {
+        if (properties == null) {
+            properties = BeanStreamWriter.getProperties(item.getClass());
+            columns = new ArrayList<>(properties.size());
+            for (int i = 0; i < properties.size(); ++i) {
+                columns.add(new ArrayList<>());
+            }
+        }
+        for (int i = 0, c = properties.size(); i < c; ++i) {
+            columns.get(i).add(properties.get(i).get(item));
+        }
+        ++count;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    private static Map<Object, Integer> getDictionary(List<Object> column) {
+        Map<Object, Integer> d = new LinkedHashMap<>();
+        int limit = Math.min(MAX_DICTIONARY_SIZE, column.size() / 4);
+        for (Object v : column) {
+            if (!d.containsKey(v)) {
+                if (d.size() == limit) {
+                    return null;
+                }
+                d.put(v, d.size());
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Writes the collected items as an object.
+     *
+     * @param w Output writer.
+     * @throws IOException If the items could not be written.
+     */
+    public void writeTo(BeanStreamWriter w) throws IOException {
+        w.beginObject();
+        w.name("n").value(count);
+        w.name("columns").beginObject();
+        for (int i = 0; properties != null && i < properties.size(); ++i) {
+            List<Object> column = columns.get(i);
+            w.name(properties.get(i).name);
+            Map<Object, Integer> d = getDictionary(column);
+            if (d == null) {
+                w.value(column);
+            } else {
+                w.beginObject();
+                w.name("d").value(d.keySet());
+                w.name("c").beginArray();
+                for (Object v : column) {
+                    w.value(d.get(v).longValue());
+                }
+                w.endArray();
+                w.endObject();
+            }
+        }
+        w.endObject();
+        w.endObject();
+    }
+}
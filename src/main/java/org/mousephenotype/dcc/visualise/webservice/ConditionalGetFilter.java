@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.IOException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.mousephenotype.dcc.visualise.persistence.DataVersionWatcher;
+import org.mousephenotype.dcc.visualise.persistence.DataVersionWatcher.Source;
+
+/**
+ * Derives cache validators (entity tags) for the responses of the RESTful
+ * web services, and answers conditional GET requests with 304 (not
+ * modified) when the data has not changed.
+ *
+ * The entity tags are derived from the change markers of the data sources
+ * that a web service reads, as tracked by the data version watcher, and
+ * from the version of the web application. Hence, all of the Tomcat nodes
+ * derive the same tag for the same data, and a conditional request is
+ * answered before it reaches the web service, without querying the database
+ * or serialising the response. Last-Modified is not used, since the time
+ * that a node detected a change differs between nodes.
+ *
+ * The tag is passed to the entity tag filter as a request attribute, and
+ * is only added to successful responses.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class ConditionalGetFilter implements Filter {
+
+    static final String ETAG = "ConditionalGetFilter.etag";
+    private static final Source[] ALL = {
+        Source.ANNOTATIONS, Source.QC, Source.RAW, Source.IMPRESS
+    };
+    private String applicationVersion;
+    private DataVersionWatcher watcher;
+    private FilterConfig config;
+
+    @Override
+    public void init(FilterConfig config) throws ServletException {
+        this.config = config;
+        applicationVersion = config.getInitParameter("applicationVersion");
+        if (applicationVersion == null) {
+            applicationVersion = "";
+        }
+    }
+
+    @Override
+    public void destroy() {
+        watcher = null;
+    }
+
+    /**
+     * Returns the data sources that are read by the web service with the
+     * supplied path, relative to the web services root.
+     *
+     * @param path Path of the web service, e.g., "parameter/IMPC_BWT_001_001".
+     * @return Data sources, or null if the responses must not be validated.
+     */
+    static Source[] getSources(String path) {
+        String[] segments = path.split("/");
+        String resource = segments.length > 0 ? segments[0] : "";
+        switch (resource) {
+            case "status":
+                return null;
+            case "centres":
+                return segments.length > 1 && "activity".equals(segments[1])
+                        ? new Source[]{Source.RAW}
+                        : new Source[]{Source.QC};
+            case "genestrains":
+                return new Source[]{Source.QC};
+            case "procedure":
+            case "parameter":
+                return new Source[]{Source.IMPRESS};
+            case "annotations":
+            case "expand":
+                return new Source[]{Source.ANNOTATIONS, Source.IMPRESS};
+            default:
+                return ALL;
+        }
+    }
+
+    private DataVersionWatcher getWatcher() {
+        if (watcher == null) {
+            watcher = (DataVersionWatcher) config.getServletContext()
+                    .getAttribute("DataVersionWatcher");
+        }
+        return watcher;
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        for (String tag : ifNoneMatch.split("\\s*,\\s*")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if ("*".equals(tag) || etag.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response,
+            FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        HttpServletResponse res = (HttpServletResponse) response;
+        String method = req.getMethod();
+        String path = req.getPathInfo();
+        DataVersionWatcher w = getWatcher();
+        Source[] sources = path == null ? null
+                : getSources(path.startsWith("/") ? path.substring(1) : path);
+        if (w == null || sources == null
+                || !("GET".equals(method) || "HEAD".equals(method))) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        /* the validators are read before the data, so that a response is
+         * never older than the validators that it carries; the encodings
+         * of the same data have different entity tags */
+        String accept = req.getHeader("Accept");
+        boolean cbor = accept != null
+                && accept.contains(CborStreamWriter.APPLICATION_CBOR);
+        String etag = "\"" + w.getToken(sources)
+                + (applicationVersion.isEmpty() ? "" : "-" + applicationVersion)
+                + (cbor ? "-cbor" : "") + "\"";
+        res.setHeader("Cache-Control", "no-cache");
+        res.setHeader("Vary", "Accept");
+
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null && matches(ifNoneMatch, etag)) {
+            res.setHeader("ETag", etag);
+            res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        } else {
+            req.setAttribute(ETAG, etag);
+            chain.doFilter(request, response);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import javax.xml.bind.annotation.XmlElement;
+
+/**
+ * Measurements for one data context in the response package returned by
+ * the batch measurements web service. Apart from the data context, this is
+ * the same as the response package of a single measurements request.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class ContextMeasurementsPack extends MeasurementsPack {
+
+    private Integer centreId;
+    private Integer genotypeId;
+    private Integer strainId;
+    private String parameterKey;
+
+    public ContextMeasurementsPack() {
+    }
+
+    public ContextMeasurementsPack(Integer centreId, Integer genotypeId,
+            Integer strainId, String parameterKey) {
+        this.centreId = centreId;
+        this.genotypeId = genotypeId;
+        this.strainId = strainId;
+        this.parameterKey = parameterKey;
+    }
+
+    @XmlElement(name = "cid")
+    public Integer getCentreId() {
+        return centreId;
+    }
+
+    public void setCentreId(Integer centreId) {
+        this.centreId = centreId;
+    }
+
+    @XmlElement(name = "gid")
+    public Integer getGenotypeId() {
+        return genotypeId;
+    }
+
+    public void setGenotypeId(Integer genotypeId) {
+        this.genotypeId = genotypeId;
+    }
+
+    @XmlElement(name = "sid")
+    public Integer getStrainId() {
+        return strainId;
+    }
+
+    public void setStrainId(Integer strainId) {
+        this.strainId = strainId;
+    }
+
+    @XmlElement(name = "qeid")
+    public String getParameterKey() {
+        return parameterKey;
+    }
+
+    public void setParameterKey(String parameterKey) {
+        this.parameterKey = parameterKey;
+    }
+}
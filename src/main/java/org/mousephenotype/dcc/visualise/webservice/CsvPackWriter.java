@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import javax.ws.rs.Produces;
+import javax.ws.rs.ext.Provider;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Writes the data set of a response package as comma separated values
+ * (RFC 4180), with a header row.
+ *
+ * If the items of the data set have a 'measurements' property (e.g., the
+ * measurements of a data context), there is one row for every measurement,
+ * which starts with the properties of the item (e.g., gene and centre),
+ * followed by the properties of the measurement. Otherwise, there is one
+ * row for every item. Only properties with scalar values are written; the
+ * columns are named after the Java bean properties.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+@Provider
+@Produces(CsvPackWriter.TEXT_CSV)
+public class CsvPackWriter extends RecordPackWriter {
+
+    public static final String TEXT_CSV = "text/csv";
+    private static final String ROWS_PROPERTY = "measurements";
+
+    /**
+     * Writes the rows for the items of a data set. The columns are
+     * determined by the first item.
+     */
+    private static class CsvSink implements DataSetStream.Sink {
+
+        private final Writer out;
+        private List<BeanStreamWriter.Property> columns;
+        private BeanStreamWriter.Property rows;
+        private List<BeanStreamWriter.Property> rowColumns;
+
+        CsvSink(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void add(Object item) throws IOException {
+            if (columns == null) {
+                columns = new ArrayList<>();
+                for (BeanStreamWriter.Property p
+                        : BeanStreamWriter.getProperties(item.getClass())) {
+                    if (ROWS_PROPERTY.equals(p.javaName)) {
+                        rows = p;
+                    } else if (isScalar(p)) {
+                        columns.add(p);
+                    }
+                }
+            }
+            if (rows == null) {
+                writeHeader(null);
+                writeRow(item, null);
+                return;
+            }
+            Object values = rows.get(item);
+            if (values instanceof Iterable) {
+                for (Object v : (Iterable<?>) values) {
+                    if (v != null) {
+                        writeHeader(v);
+                        writeRow(item, v);
+                    }
+                }
+            }
+        }
+
+        private void writeHeader(Object row) throws IOException {
+            if (rowColumns != null) {
+                return;
+            }
+            rowColumns = new ArrayList<>();
+            if (row != null) {
+                for (BeanStreamWriter.Property p
+                        : BeanStreamWriter.getProperties(row.getClass())) {
+                    if (isScalar(p)) {
+                        rowColumns.add(p);
+                    }
+                }
+            }
+            String separator = "";
+            for (BeanStreamWriter.Property p : columns) {
+                out.write(separator);
+                field(p.javaName);
+                separator = ",";
+            }
+            for (BeanStreamWriter.Property p : rowColumns) {
+                out.write(separator);
+                field(p.javaName);
+                separator = ",";
+            }
+            out.write("\r\n");
+        }
+
+        private void writeRow(Object item, Object row) throws IOException {
+            String separator = "";
+            for (BeanStreamWriter.Property p : columns) {
+                out.write(separator);
+                field(format(p.get(item)));
+                separator = ",";
+            }
+            for (int i = 0; row != null && i < rowColumns.size(); ++i) {
+                out.write(separator);
+                field(format(rowColumns.get(i).get(row)));
+                separator = ",";
+            }
+            out.write("\r\n");
+        }
+
+        private void field(String s) throws IOException {
+            if (s.indexOf(',') < 0 && s.indexOf('"') < 0
+                    && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+                out.write(s);
+            } else {
+                out.write('"');
+                out.write(s.replace("\"", "\"\""));
+                out.write('"');
+            }
+        }
+    }
+
+    private static boolean isScalar(BeanStreamWriter.Property p) {
+        Class<?> c = p.getter == null
+                ? p.field.getType() : p.getter.getReturnType();
+        return c.isPrimitive() || c.isEnum()
+                || Number.class.isAssignableFrom(c)
+                || CharSequence.class.isAssignableFrom(c)
+                || Boolean.class == c || Character.class == c
+                || Date.class.isAssignableFrom(c)
+                || Calendar.class.isAssignableFrom(c);
+    }
+
+    private static String format(Object v) {
+        if (v == null) {
+            return "";
+        }
+        if (v instanceof Date) {
+            Calendar c = new GregorianCalendar();
+            c.setTime((Date) v);
+            return DatatypeConverter.printDateTime(c);
+        }
+        if (v instanceof Calendar) {
+            return DatatypeConverter.printDateTime((Calendar) v);
+        }
+        return v.toString();
+    }
+
+    @Override
+    protected DataSetStream.Sink createSink(Writer out) {
+        return new CsvSink(out);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.IOException;
+
+/**
+ * A data set that is generated while the response is being written, instead
+ * of being held in memory as a list.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public interface DataSetStream {
+
+    /**
+     * Receives the items of a data set as they are generated.
+     */
+    interface Sink {
+
+        void add(Object item) throws IOException;
+    }
+
+    /**
+     * Generates the items of the data set, and passes them to the sink.
+     *
+     * @param sink Receives the items.
+     * @return Number of items that were generated.
+     * @throws IOException If the items could not be written.
+     */
+    long writeTo(Sink sink) throws IOException;
+}
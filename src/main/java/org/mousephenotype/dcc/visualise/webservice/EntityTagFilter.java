@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Context;
+
+/**
+ * Adds the entity tag that was derived by the conditional GET filter to the
+ * successful responses of the RESTful web services.
+ *
+ * A response package that reports a failure (e.g., a transient database
+ * error) is not given an entity tag, so that a client does not revalidate
+ * the failure as the current data. The success of a streamed data set is
+ * only known after it has been written; since an empty stream is a valid
+ * answer for the current data, streamed responses are given the tag here,
+ * and the pack writers remove it again from a response that could not be
+ * written completely (see EntityTagOutputStream).
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class EntityTagFilter implements ContainerResponseFilter {
+
+    @Context
+    private HttpServletRequest servletRequest;
+
+    @Override
+    public ContainerResponse filter(ContainerRequest request,
+            ContainerResponse response) {
+        Object etag = servletRequest == null ? null
+                : servletRequest.getAttribute(ConditionalGetFilter.ETAG);
+        if (etag == null || response.getStatus() != 200) {
+            return response;
+        }
+        Object entity = response.getEntity();
+        if (entity instanceof AbstractRestResponse
+                && !((AbstractRestResponse<?>) entity).getSuccess()
+                && !(entity instanceof StreamedPack
+                && ((StreamedPack) entity).getDataSetStream() != null)) {
+            return response;
+        }
+        response.getHttpHeaders().putSingle("ETag", etag);
+        return response;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.ws.rs.core.MultivaluedMap;
+
+/**
+ * Holds back the start of a streamed response until it is known whether
+ * the response is complete, so that only complete responses carry the
+ * entity tag that was added by the entity tag filter.
+ *
+ * The headers of a response are sent with its first bytes. Hence, the
+ * response is buffered until it has been written, and the tag is removed
+ * if the package turned out to be incomplete. A response that outgrows the
+ * buffer is sent without the tag, since its headers must be sent before
+ * its completeness is known. Responses without a tag are not buffered.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+class EntityTagOutputStream extends OutputStream {
+
+    private static final int MAXIMUM_BUFFERED = 1 << 20; /* bytes */
+    private final OutputStream out;
+    private final MultivaluedMap<String, Object> httpHeaders;
+    private ByteArrayOutputStream buffer;
+
+    EntityTagOutputStream(OutputStream out,
+            MultivaluedMap<String, Object> httpHeaders) {
+        this.out = out;
+        this.httpHeaders = httpHeaders;
+        if (httpHeaders.containsKey("ETag")) {
+            buffer = new ByteArrayOutputStream(8192);
+        }
+    }
+
+    private void commit(boolean complete) throws IOException {
+        if (!complete) {
+            httpHeaders.remove("ETag");
+        }
+        ByteArrayOutputStream b = buffer;
+        buffer = null;
+        b.writeTo(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (buffer != null && buffer.size() + len > MAXIMUM_BUFFERED) {
+            commit(false);
+        }
+        if (buffer == null) {
+            out.write(b, off, len);
+        } else {
+            buffer.write(b, off, len);
+        }
+    }
+
+    /* the buffered start of the response is not sent before it is known
+     * whether the response is complete */
+    @Override
+    public void flush() throws IOException {
+        if (buffer == null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Sends the buffered response, with the entity tag only if the package
+     * was written completely.
+     *
+     * @param complete True if the package was written completely.
+     * @throws IOException If the response could not be sent.
+     */
+    void finish(boolean complete) throws IOException {
+        if (buffer != null) {
+            commit(complete);
+        }
+        out.flush();
+    }
+}
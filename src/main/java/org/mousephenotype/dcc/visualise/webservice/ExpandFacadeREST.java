@@ -19,7 +19,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import javax.ejb.Stateless;
@@ -37,78 +36,86 @@ import javax.ws.rs.core.MediaType;
 @Path("expand")
 public class ExpandFacadeREST extends AbstractFacade<String> {
 
-    private final String MPTERM_REGEX = "M[PA]:[0-9]*";
-    private final String PARAM_REGEX = "[A-Z]*_[A-Z]*_[0-9]*_[0-9]*";
-    private final List<Integer> genotypeIds = new ArrayList<>();
-    private final List<String> parameters = new ArrayList<>();
-    private final List<String> mpTerms = new ArrayList<>();
-    private final List<Integer> procedureTypes = new ArrayList<>();
-    private EntityManager em;
+    private static final String MPTERM_REGEX = "M[PA]:[0-9]*";
+    private static final String PARAM_REGEX = "[A-Z]*_[A-Z]*_[0-9]*_[0-9]*";
 
-    public ExpandFacadeREST() {
-        super(String.class);
-    }
+    /**
+     * The genotypes, parameters, MP terms and procedure types of an
+     * expansion request. These are kept per request, so that the resource
+     * can be shared by concurrent requests.
+     */
+    private static class Expansion {
 
-    private List<Integer> retrieveGenotypeId(String geneSpec) {
-        String[] temp = geneSpec.split("\\s*-\\s*");
-        List<Integer> gid = new ArrayList<>();
-        try {
-            gid.add(Integer.parseInt(temp[0]));
-        } catch (NumberFormatException e) {
-        }
-        return gid;
-    }
+        final List<Integer> genotypeIds = new ArrayList<>();
+        final List<String> parameters = new ArrayList<>();
+        final List<String> mpTerms = new ArrayList<>();
+        final List<Integer> procedureTypes = new ArrayList<>();
 
-    private Boolean setGenotypeIds(String gids) {
-        List<String> temp = Arrays.asList(gids.split("\\s*,\\s*"));
-        for (String t : temp) {
+        private List<Integer> retrieveGenotypeId(String geneSpec) {
+            String[] temp = geneSpec.split("\\s*-\\s*");
+            List<Integer> gid = new ArrayList<>();
             try {
-                genotypeIds.addAll(retrieveGenotypeId(t));
+                gid.add(Integer.parseInt(temp[0]));
             } catch (NumberFormatException e) {
             }
+            return gid;
         }
-        return !genotypeIds.isEmpty();
-    }
 
-    private Boolean setMpTermsAndProcedureTypes(String types) {
-        List<String> temp = Arrays.asList(types.split("\\s*,\\s*"));
-        for (String t : temp) {
-            if (t.matches(MPTERM_REGEX)) {
-                mpTerms.add(t);
-            } else {
-                if (t.matches(PARAM_REGEX)) {
-                    parameters.add(t);
+        Boolean setGenotypeIds(String gids) {
+            List<String> temp = Arrays.asList(gids.split("\\s*,\\s*"));
+            for (String t : temp) {
+                try {
+                    genotypeIds.addAll(retrieveGenotypeId(t));
+                } catch (NumberFormatException e) {
+                }
+            }
+            return !genotypeIds.isEmpty();
+        }
+
+        Boolean setMpTermsAndProcedureTypes(String types) {
+            List<String> temp = Arrays.asList(types.split("\\s*,\\s*"));
+            for (String t : temp) {
+                if (t.matches(MPTERM_REGEX)) {
+                    mpTerms.add(t);
                 } else {
-                    try {
-                        procedureTypes.add(Integer.parseInt(t));
-                    } catch (NumberFormatException x) {
+                    if (t.matches(PARAM_REGEX)) {
+                        parameters.add(t);
+                    } else {
+                        try {
+                            procedureTypes.add(Integer.parseInt(t));
+                        } catch (NumberFormatException x) {
+                        }
                     }
                 }
             }
+            return !(parameters.isEmpty() && mpTerms.isEmpty() && procedureTypes.isEmpty());
         }
-        return !(parameters.isEmpty() && mpTerms.isEmpty() && procedureTypes.isEmpty());
-    }
 
-    private List<String> getParameterIdsFromMpTerms() {
-        if (mpTerms.isEmpty()) {
-            return null;
+        List<String> getParameterIdsFromMpTerms(EntityManager em) {
+            if (mpTerms.isEmpty()) {
+                return null;
+            }
+            TypedQuery<String> q = em.createQuery(
+                    "select distinct a.parameterId from Annotation a where (a.yMP in :mpTerms or a.yMP1 in :mpTerms) and a.genotypeId in :genotypeIds", String.class);
+            q.setParameter("genotypeIds", genotypeIds);
+            q.setParameter("mpTerms", mpTerms);
+            return q.getResultList();
         }
-        TypedQuery<String> q = em.createQuery(
-                "select distinct a.parameterId from Annotation a where (a.yMP in :mpTerms or a.yMP1 in :mpTerms) and a.genotypeId in :genotypeIds", String.class);
-        q.setParameter("genotypeIds", genotypeIds);
-        q.setParameter("mpTerms", mpTerms);
-        return q.getResultList();
-    }
 
-    private List<String> getParameterIdsFromProcedureTypes() {
-        if (procedureTypes.isEmpty()) {
-            return null;
+        List<String> getParameterIdsFromProcedureTypes(EntityManager em) {
+            if (procedureTypes.isEmpty()) {
+                return null;
+            }
+            TypedQuery<String> q = em.createQuery(
+                    "select distinct q.parameterKey from Parameter q, Procedure p, ProcedureHasParameters php, ProcedureHasSuperType phs, Annotation a where q.parameterId = php.parameterId.parameterId and p.procedureId = php.procedureId.procedureId and p.procedureId = phs.procedureId and phs.type in :procedureTypes and q.parameterKey = a.parameterId and a.genotypeId in :genotypeIds and q.isAnnotation = 1", String.class);
+            q.setParameter("genotypeIds", genotypeIds);
+            q.setParameter("procedureTypes", procedureTypes);
+            return q.getResultList();
         }
-        TypedQuery<String> q = em.createQuery(
-                "select distinct q.parameterKey from Parameter q, Procedure p, ProcedureHasParameters php, ProcedureHasSuperType phs, Annotation a where q.parameterId = php.parameterId.parameterId and p.procedureId = php.procedureId.procedureId and p.procedureId = phs.procedureId and phs.type in :procedureTypes and q.parameterKey = a.parameterId and a.genotypeId in :genotypeIds and q.isAnnotation = 1", String.class);
-        q.setParameter("genotypeIds", genotypeIds);
-        q.setParameter("procedureTypes", procedureTypes);
-        return q.getResultList();
+    }
+
+    public ExpandFacadeREST() {
+        super(String.class);
     }
 
     @GET
@@ -120,17 +127,26 @@ public class ExpandFacadeREST extends AbstractFacade<String> {
         if (gids == null || types == null) {
             p.setDataSet(null, 0L);
         } else {
-            em = getEntityManager();
-            if (setGenotypeIds(gids) && setMpTermsAndProcedureTypes(types)) {
-                List<String> m = getParameterIdsFromMpTerms();
-                List<String> t = getParameterIdsFromProcedureTypes();
-                if (m != null) {
-                    parameters.addAll(m);
-                }
-                if (t != null) {
-                    parameters.addAll(t);
+            Expansion x = new Expansion();
+            EntityManager em = getEntityManager();
+            if (x.setGenotypeIds(gids) && x.setMpTermsAndProcedureTypes(types)) {
+                /* the expansion is a union of precomputed bitsets; the
+                 * database is only queried if the index is not available */
+                List<String> e = getExpansionIndex().expand(x.genotypeIds,
+                        x.mpTerms, x.procedureTypes);
+                if (e != null) {
+                    x.parameters.addAll(e);
+                } else {
+                    List<String> m = x.getParameterIdsFromMpTerms(em);
+                    List<String> t = x.getParameterIdsFromProcedureTypes(em);
+                    if (m != null) {
+                        x.parameters.addAll(m);
+                    }
+                    if (t != null) {
+                        x.parameters.addAll(t);
+                    }
                 }
-                Set<String> s = new HashSet<>(parameters);
+                Set<String> s = new HashSet<>(x.parameters);
                 List<String> l = Arrays.asList(s.toArray(new String[0]));
                 Collections.sort(l);
                 p.setDataSet(l);
@@ -15,6 +15,8 @@
  */
 package org.mousephenotype.dcc.visualise.webservice;
 
+import java.util.List;
+import java.util.concurrent.Callable;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
@@ -38,27 +40,36 @@ public class FertilityFacadeREST extends AbstractFacade<KeyValueRecord> {
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     public FertilityPack extjsFindBy(
-            @QueryParam("cid") Integer centreId,
-            @QueryParam("gid") Integer genotypeId,
-            @QueryParam("sid") Integer strainId
+            @QueryParam("cid") final Integer centreId,
+            @QueryParam("gid") final Integer genotypeId,
+            @QueryParam("sid") final Integer strainId
     ) {
         FertilityPack p = new FertilityPack();
         if (centreId == null || genotypeId == null || strainId == null) {
             p.setDataSet(null, 0L);
         } else {
-            EntityManager em = getEntityManager();
-            try {
-            TypedQuery<KeyValueRecord> q = em.createQuery(
-                    "SELECT DISTINCT new org.mousephenotype.dcc.visualise.entities.KeyValueRecord(q.parameterKey, q.name, sp.value) FROM Centreprocedure AS cp LEFT JOIN ACentre AS ct ON (ct.shortName = cp.centreid) LEFT JOIN Line AS l ON (l.lineCentreprocedureHjid = cp) LEFT JOIN Genotype AS g ON (g.genotype = l.colonyid) LEFT JOIN ProcedureFromRaw AS p ON (p = l.procedureLineHjid) LEFT JOIN Simpleparameter AS sp ON (sp.simpleparameterProcedureH0 = p) LEFT JOIN Context AS c ON (c.subject = p.hjid) LEFT JOIN Parameter AS q ON (q.parameterKey = sp.parameterid) LEFT JOIN ProcedureHasParameters AS php ON (q = php.parameterId) WHERE ct.centreId = :centreId AND g.genotypeId = :genotypeId AND g.strainId = :strainId AND sp.parameterid like :procedureFrag AND c.isValid = 1 AND c.isActive = 1 ORDER BY php.weight", KeyValueRecord.class);
-            q.setParameter("centreId", centreId);
-            q.setParameter("genotypeId", genotypeId);
-            q.setParameter("strainId", strainId);
-            q.setParameter("procedureFrag", "%_FER_%");
-            p.setDataSet(q.getResultList());
-            } catch (Exception e) {
-                System.err.println(e.getMessage());
-            }
-            em.close();
+            /* the query joins the raw data, so it runs on a worker thread
+             * of the asynchronous executor */
+            p.setDataSet(callAsync(new Callable<List<KeyValueRecord>>() {
+                @Override
+                public List<KeyValueRecord> call() {
+                    EntityManager em = getEntityManager();
+                    try {
+                        TypedQuery<KeyValueRecord> q = em.createQuery(
+                                "SELECT DISTINCT new org.mousephenotype.dcc.visualise.entities.KeyValueRecord(q.parameterKey, q.name, sp.value) FROM Centreprocedure AS cp LEFT JOIN ACentre AS ct ON (ct.shortName = cp.centreid) LEFT JOIN Line AS l ON (l.lineCentreprocedureHjid = cp) LEFT JOIN Genotype AS g ON (g.genotype = l.colonyid) LEFT JOIN ProcedureFromRaw AS p ON (p = l.procedureLineHjid) LEFT JOIN Simpleparameter AS sp ON (sp.simpleparameterProcedureH0 = p) LEFT JOIN Context AS c ON (c.subject = p.hjid) LEFT JOIN Parameter AS q ON (q.parameterKey = sp.parameterid) LEFT JOIN ProcedureHasParameters AS php ON (q = php.parameterId) WHERE ct.centreId = :centreId AND g.genotypeId = :genotypeId AND g.strainId = :strainId AND sp.parameterid like :procedureFrag AND c.isValid = 1 AND c.isActive = 1 ORDER BY php.weight", KeyValueRecord.class);
+                        q.setParameter("centreId", centreId);
+                        q.setParameter("genotypeId", genotypeId);
+                        q.setParameter("strainId", strainId);
+                        q.setParameter("procedureFrag", "%_FER_%");
+                        return q.getResultList();
+                    } catch (Exception e) {
+                        System.err.println(e.getMessage());
+                        return null;
+                    } finally {
+                        em.close();
+                    }
+                }
+            }));
         }
         return p;
     }
@@ -15,7 +15,6 @@
  */
 package org.mousephenotype.dcc.visualise.webservice;
 
-import org.mousephenotype.dcc.visualise.persistence.MemcacheHandler;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -39,7 +38,7 @@ public class GeneStrainFacadeREST extends AbstractFacade<GeneStrain> {
         super(GeneStrain.class);
     }
 
-    private List<Integer> getGenotypeIds(String g) {
+    static List<Integer> getGenotypeIds(String g) {
         List<String> items = Arrays.asList(g.split("\\s*,\\s*"));
         List<Integer> gids = new ArrayList<>();
 
@@ -65,21 +64,8 @@ public class GeneStrainFacadeREST extends AbstractFacade<GeneStrain> {
         return gids;
     }
 
-    List<GeneStrain> getAllGeneStrains() {
-        MemcacheHandler mh = getMemcacheHandler();
-        List<GeneStrain> genestrains = mh.getGeneStrains();
-        if (genestrains == null) {
-            EntityManager em = getEntityManager();
-            TypedQuery<GeneStrain> query = em.createNamedQuery("GeneStrain.all",
-                    GeneStrain.class);
-            genestrains = query.getResultList();
-            mh.setGeneStrains(genestrains);
-        }
-        return genestrains;
-    }
-
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, CborStreamWriter.APPLICATION_CBOR})
     public GeneStrainPack search(
             @QueryParam("q") String queryString,
             @QueryParam("g") String genotypeIds) {
@@ -91,14 +77,14 @@ public class GeneStrainFacadeREST extends AbstractFacade<GeneStrain> {
             if (genotypeIds != null && !genotypeIds.isEmpty()) {
                 List<Integer> gids = getGenotypeIds(genotypeIds);
                 if (gids.isEmpty()) {
-                    genestrains = getAllGeneStrains();
+                    genestrains = getCachedGeneStrains();
                 } else {
                     query = em.createNamedQuery("GeneStrain.selected",
                             GeneStrain.class);
                     query.setParameter("gids", gids);
                 }
             } else {
-                genestrains = getAllGeneStrains();
+                genestrains = getCachedGeneStrains();
             }
             if (genestrains == null) {
                 if (query != null) {
@@ -108,9 +94,9 @@ public class GeneStrainFacadeREST extends AbstractFacade<GeneStrain> {
                 g.setDataSet(genestrains);
             }
         } else {
-            query = em.createNamedQuery("GeneStrain.search", GeneStrain.class);
-            query.setParameter("queryString", "%" + queryString + "%");
-            g.setDataSet(query.getResultList());
+            /* searched in the in-memory index of the cached catalogue,
+             * instead of running GeneStrain.search for every keystroke */
+            g.setDataSet(getCachedGeneStrainIndex().search(queryString));
         }
         em.close();
         return g;
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.bind.annotation.XmlElement;
+import org.mousephenotype.dcc.visualise.entities.AnnotationData;
+
+/**
+ * Annotations for one genotype in the response package returned by the
+ * annotations matrix web service. There is one cell for each of the
+ * requested parameter keys, in the same order, with the annotations for
+ * the genotype and parameter; a cell without annotations is empty.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class GenotypeAnnotations {
+
+    private Integer genotypeId;
+    private List<List<AnnotationData>> annotations;
+
+    public GenotypeAnnotations() {
+    }
+
+    public GenotypeAnnotations(Integer genotypeId, int numParameters) {
+        this.genotypeId = genotypeId;
+        this.annotations = new ArrayList<>(numParameters);
+        for (int i = 0; i < numParameters; ++i) {
+            this.annotations.add(new ArrayList<AnnotationData>());
+        }
+    }
+
+    @XmlElement(name = "gid")
+    public Integer getGenotypeId() {
+        return genotypeId;
+    }
+
+    public void setGenotypeId(Integer genotypeId) {
+        this.genotypeId = genotypeId;
+    }
+
+    @XmlElement(name = "a")
+    public List<List<AnnotationData>> getAnnotations() {
+        return annotations;
+    }
+
+    public void setAnnotations(List<List<AnnotationData>> annotations) {
+        this.annotations = annotations;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Writes JSON directly to an output stream, one value at a time.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class JsonStreamWriter extends BeanStreamWriter {
+
+    private final Writer out;
+    /* for each open object or array, whether a value has been written */
+    private boolean[] hasValue = new boolean[16];
+    private int depth = 0;
+    private boolean afterName = false;
+
+    public JsonStreamWriter(Writer out) {
+        this.out = out;
+    }
+
+    @Override
+    public JsonStreamWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    @Override
+    public JsonStreamWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    @Override
+    public JsonStreamWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    @Override
+    public JsonStreamWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    @Override
+    public JsonStreamWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    @Override
+    public JsonStreamWriter nullValue() throws IOException {
+        separate();
+        out.write("null");
+        return this;
+    }
+
+    @Override
+    public JsonStreamWriter value(String v) throws IOException {
+        if (v == null) {
+            return nullValue();
+        }
+        separate();
+        string(v);
+        return this;
+    }
+
+    @Override
+    public JsonStreamWriter value(boolean v) throws IOException {
+        separate();
+        out.write(v ? "true" : "false");
+        return this;
+    }
+
+    @Override
+    public JsonStreamWriter value(long v) throws IOException {
+        separate();
+        out.write(Long.toString(v));
+        return this;
+    }
+
+    @Override
+    public JsonStreamWriter value(double v) throws IOException {
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            return nullValue();
+        }
+        separate();
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+            out.write(Long.toString((long) v));
+        } else {
+            out.write(Double.toString(v));
+        }
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    private JsonStreamWriter open(char c) throws IOException {
+        separate();
+        out.write(c);
+        if (++depth == hasValue.length) {
+            hasValue = Arrays.copyOf(hasValue, 2 * depth);
+        }
+        hasValue[depth] = false;
+        return this;
+    }
+
+    private JsonStreamWriter close(char c) throws IOException {
+        out.write(c);
+        --depth;
+        return this;
+    }
+
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+        } else {
+            if (hasValue[depth]) {
+                out.write(',');
+            }
+            hasValue[depth] = true;
+        }
+    }
+
+    private void string(String s) throws IOException {
+        out.write('"');
+        for (int i = 0, n = s.length(); i < n; ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    /* the line and paragraph separators are not allowed
+                     * in JavaScript strings */
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+}
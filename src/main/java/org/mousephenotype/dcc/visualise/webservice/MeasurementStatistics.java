@@ -0,0 +1,421 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.bind.DatatypeConverter;
+import org.mousephenotype.dcc.visualise.entities.GroupStatistics;
+
+/**
+ * Calculates the descriptive statistics of the measurements, grouped by
+ * genotype (mutant or wildtype), sex, zygosity and x-value, while the
+ * measurements are streamed.
+ *
+ * The statistics are the same as those calculated in the browser by
+ * calculateColumnStatistics() in visualise.js. The values of each group are
+ * held in a primitive array, and the median and quartiles are found with a
+ * selection algorithm instead of sorting.
+ *
+ * The measurement properties are read using their JSON names, i.e., 'g'
+ * (genotype), 's' (sex), 'z' (zygosity), 'v' (value), 'i' (increment) and
+ * 'd' (measurement date). Measurements with non-numeric values are ignored.
+ *
+ * The statistics of the wildtype groups only depend on the baseline, which
+ * is shared by all of the genes at the same centre, strain and procedure.
+ * Hence, they can be taken from the baseline cache instead, in which case
+ * the wildtype measurements in the stream are not added again.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class MeasurementStatistics implements DataSetStream.Sink {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private final Map<String, Group> groups = new LinkedHashMap<>();
+    private final boolean mutantsOnly;
+    private Class<?> itemClass;
+    private BeanStreamWriter.Property genotype;
+    private BeanStreamWriter.Property sex;
+    private BeanStreamWriter.Property zygosity;
+    private BeanStreamWriter.Property value;
+    private BeanStreamWriter.Property increment;
+    private BeanStreamWriter.Property date;
+
+    /**
+     * The values of a group of measurements.
+     */
+    static class Group {
+
+        final GroupStatistics statistics;
+        double[] values = new double[INITIAL_CAPACITY];
+        int size = 0;
+
+        Group(GroupStatistics statistics) {
+            this.statistics = statistics;
+        }
+
+        void add(double v) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            values[size++] = v;
+        }
+    }
+
+    public MeasurementStatistics() {
+        this(false);
+    }
+
+    /**
+     * Creates a statistics calculator.
+     *
+     * @param mutantsOnly If true, the wildtype measurements are ignored.
+     */
+    public MeasurementStatistics(boolean mutantsOnly) {
+        this.mutantsOnly = mutantsOnly;
+    }
+
+    /**
+     * Returns the statistics of the wildtype groups, e.g., from the baseline
+     * cache.
+     */
+    interface Wildtype {
+
+        List<GroupStatistics> getStatistics() throws IOException;
+    }
+
+    private void findProperties(Class<?> c) {
+        genotype = sex = zygosity = value = increment = date = null;
+        for (BeanStreamWriter.Property p : BeanStreamWriter.getProperties(c)) {
+            switch (p.name) {
+                case "g":
+                    genotype = p;
+                    break;
+                case "s":
+                    sex = p;
+                    break;
+                case "z":
+                    zygosity = p;
+                    break;
+                case "v":
+                    value = p;
+                    break;
+                case "i":
+                    increment = p;
+                    break;
+                case "d":
+                    date = p;
+                    break;
+            }
+        }
+        itemClass = c;
+    }
+
+    private static Object get(BeanStreamWriter.Property p, Object item)
+            throws IOException {
+        return p == null ? null : p.get(item);
+    }
+
+    static Integer toInteger(Object v) {
+        if (v instanceof Number) {
+            return ((Number) v).intValue();
+        }
+        if (v instanceof Boolean) {
+            return ((Boolean) v) ? 1 : 0;
+        }
+        try {
+            return v == null ? null : Integer.valueOf(v.toString().trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static double toDouble(Object v) {
+        if (v instanceof Number) {
+            return ((Number) v).doubleValue();
+        }
+        try {
+            return v == null ? Double.NaN : Double.parseDouble(v.toString());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static String toKey(Object v) {
+        if (v instanceof Date) {
+            Calendar c = new GregorianCalendar();
+            c.setTime((Date) v);
+            return DatatypeConverter.printDateTime(c);
+        }
+        if (v instanceof Calendar) {
+            return DatatypeConverter.printDateTime((Calendar) v);
+        }
+        return v == null ? null : v.toString();
+    }
+
+    private void add(boolean wildtype, Integer sex, Integer zygosity,
+            String key, double v) {
+        String id = (wildtype ? "w" : "m") + ":" + sex + ":" + zygosity
+                + ":" + key;
+        Group g = groups.get(id);
+        if (g == null) {
+            g = new Group(new GroupStatistics(wildtype, sex, zygosity, key));
+            groups.put(id, g);
+        }
+        g.add(v);
+    }
+
+    @Override
+    public void add(Object item) throws IOException {
+        if (item.getClass() != itemClass) {
+            findProperties(item.getClass());
+        }
+        double v = toDouble(get(value, item));
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            return;
+        }
+        Integer g = toInteger(get(genotype, item));
+        boolean wildtype = g != null && g == 0;
+        if (wildtype && mutantsOnly) {
+            return;
+        }
+        Integer s = toInteger(get(sex, item));
+        Integer z = toInteger(get(zygosity, item));
+        Object x = get(increment, item);
+        String k = toKey(x == null ? get(date, item) : x);
+
+        /* every measurement belongs to the combined groups as well */
+        Integer[] sexes = s == null ? new Integer[]{null}
+                : new Integer[]{null, s};
+        Integer[] zygosities = z == null ? new Integer[]{null}
+                : new Integer[]{null, z};
+        String[] keys = k == null ? new String[]{null}
+                : new String[]{null, k};
+        for (Integer si : sexes) {
+            for (Integer zi : zygosities) {
+                for (String ki : keys) {
+                    add(wildtype, si, zi, ki, v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics for all of the groups.
+     *
+     * @return Group statistics.
+     */
+    public List<GroupStatistics> getStatistics() {
+        List<GroupStatistics> s = new ArrayList<>(groups.size());
+        for (Group g : groups.values()) {
+            calculate(g.values, g.size, g.statistics);
+            s.add(g.statistics);
+        }
+        return s;
+    }
+
+    /**
+     * Calculates the descriptive statistics of the first n values. The
+     * order of the values is changed.
+     *
+     * @param values Values.
+     * @param n Number of values.
+     * @param s Receives the statistics.
+     */
+    static void calculate(double[] values, int n, GroupStatistics s) {
+        s.setCount(n);
+        if (n == 0) {
+            return;
+        }
+        double sum = 0.0, min = values[0], max = values[0];
+        for (int i = 0; i < n; ++i) {
+            double v = values[i];
+            sum += v;
+            if (v < min) {
+                min = v;
+            }
+            if (v > max) {
+                max = v;
+            }
+        }
+        double mean = sum / n, t = 0.0;
+        for (int i = 0; i < n; ++i) {
+            double d = values[i] - mean;
+            t += d * d;
+        }
+        /* sample standard deviation, which is undefined for one value */
+        double sd = Math.sqrt(t / (n - 1));
+        s.setSum(sum);
+        s.setMin(min);
+        s.setMax(max);
+        s.setMean(mean);
+        s.setSd(sd);
+        s.setSe(sd / Math.sqrt(n));
+
+        int m = n / 2;
+        double median = select(values, 0, n - 1, m);
+        if ((n & 1) == 0) {
+            median = (median + max(values, 0, m)) * 0.5;
+        }
+        s.setMedian(median);
+        if (n > 1) {
+            s.setQ1(quartile(values, n, 1));
+            s.setQ3(quartile(values, n, 3));
+        } else {
+            s.setQ1(null);
+            s.setQ3(null);
+        }
+    }
+
+    // Same as calculateQuartile() in visualise.js: the quartile position is
+    // interpolated linearly between the two closest order statistics.
+    private static double quartile(double[] values, int n, int which) {
+        double k = which * 0.25 * (n - 1);
+        int low = (int) Math.floor(k);
+        double fractional = k - low;
+        double lowValue = select(values, 0, n - 1, low);
+        if (fractional == 0.0 || low + 1 >= n) {
+            return lowValue;
+        }
+        /* after selection, the next order statistic is the smallest of the
+         * values to the right */
+        double highValue = min(values, low + 1, n);
+        return lowValue + fractional * (highValue - lowValue);
+    }
+
+    private static double max(double[] values, int from, int to) {
+        double m = values[from];
+        for (int i = from + 1; i < to; ++i) {
+            if (values[i] > m) {
+                m = values[i];
+            }
+        }
+        return m;
+    }
+
+    private static double min(double[] values, int from, int to) {
+        double m = values[from];
+        for (int i = from + 1; i < to; ++i) {
+            if (values[i] < m) {
+                m = values[i];
+            }
+        }
+        return m;
+    }
+
+    // Quickselect with median-of-three pivots. On return, the k-th smallest
+    // value is at index k, the values before it are not larger, and the
+    // values after it are not smaller.
+    private static double select(double[] a, int left, int right, int k) {
+        while (right > left) {
+            int mid = (left + right) >>> 1;
+            if (a[mid] < a[left]) {
+                swap(a, mid, left);
+            }
+            if (a[right] < a[left]) {
+                swap(a, right, left);
+            }
+            if (a[right] < a[mid]) {
+                swap(a, right, mid);
+            }
+            double pivot = a[mid];
+            int i = left, j = right;
+            while (i <= j) {
+                while (a[i] < pivot) {
+                    ++i;
+                }
+                while (a[j] > pivot) {
+                    --j;
+                }
+                if (i <= j) {
+                    swap(a, i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+        return a[k];
+    }
+
+    private static void swap(double[] a, int i, int j) {
+        double t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    /**
+     * Wraps a data set stream, so that the statistics of the measurements
+     * are calculated while they are written, and are set in the response
+     * package at the end.
+     */
+    static class Stream implements DataSetStream {
+
+        private final DataSetStream stream;
+        private final MeasurementsPack pack;
+        private final boolean writeItems;
+        private final Wildtype wildtype;
+
+        /**
+         * Creates a statistics stream.
+         *
+         * @param stream Measurements stream.
+         * @param pack Response package that receives the statistics.
+         * @param writeItems If false, only the statistics are returned.
+         * @param wildtype Statistics of the wildtype groups; or null, if
+         * they are calculated from the wildtype measurements in the stream.
+         */
+        Stream(DataSetStream stream, MeasurementsPack pack,
+                boolean writeItems, Wildtype wildtype) {
+            this.stream = stream;
+            this.pack = pack;
+            this.writeItems = writeItems;
+            this.wildtype = wildtype;
+        }
+
+        @Override
+        public long writeTo(final Sink sink) throws IOException {
+            final MeasurementStatistics ms
+                    = new MeasurementStatistics(wildtype != null);
+            long n = stream.writeTo(new Sink() {
+                @Override
+                public void add(Object item) throws IOException {
+                    ms.add(item);
+                    if (writeItems) {
+                        sink.add(item);
+                    }
+                }
+            });
+            List<GroupStatistics> s = ms.getStatistics();
+            if (wildtype != null) {
+                s.addAll(wildtype.getStatistics());
+            }
+            pack.setStatistics(s);
+            return n;
+        }
+    }
+}
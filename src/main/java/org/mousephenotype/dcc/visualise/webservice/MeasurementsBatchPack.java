@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.util.List;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlSeeAlso;
+import javax.xml.bind.annotation.XmlTransient;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * Response package for the measurements of several data contexts returned
+ * by the batch measurements web service. The data contexts are written as
+ * they are retrieved.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+@XmlSeeAlso(ContextMeasurementsPack.class)
+@XmlType(propOrder = {"success", "total", "contexts"})
+public class MeasurementsBatchPack
+        extends AbstractRestResponse<ContextMeasurementsPack>
+        implements StreamedPack {
+
+    private DataSetStream dataSetStream;
+    private boolean complete = true;
+
+    @Override
+    @XmlElement(name = "contexts")
+    public List<ContextMeasurementsPack> getDataSet() {
+        return super.getDataSet();
+    }
+
+    @Override
+    @XmlTransient
+    public DataSetStream getDataSetStream() {
+        return dataSetStream;
+    }
+
+    public void setDataSetStream(DataSetStream dataSetStream) {
+        this.dataSetStream = dataSetStream;
+    }
+
+    @Override
+    @XmlTransient
+    public boolean isColumnar() {
+        return false;
+    }
+
+    @Override
+    @XmlTransient
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+}
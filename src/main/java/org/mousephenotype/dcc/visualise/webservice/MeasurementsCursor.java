@@ -0,0 +1,230 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import org.eclipse.persistence.config.CacheUsage;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.queries.CursoredStream;
+import org.mousephenotype.dcc.entities.overviews.MeasuredValues;
+import org.mousephenotype.dcc.entities.overviews.ProcedureMetadataGroup;
+import org.mousephenotype.dcc.visualise.entities.BaselineBin;
+import org.mousephenotype.dcc.visualise.persistence.BaselineCache;
+import org.mousephenotype.dcc.visualise.persistence.MetadataGroupDictionary;
+import org.mousephenotype.dcc.visualise.persistence.ReadModelStore;
+
+/**
+ * Streams the mutant measurements for a data context from a database cursor
+ * while the response is written, followed optionally by the baseline
+ * measurements, which are shared by all of the genes at the same centre and
+ * strain, and are therefore taken from the baseline cache.
+ *
+ * The measurements are read with a bounded fetch size, and are neither
+ * registered with the entity manager nor stored in the shared cache, so
+ * that the memory used does not grow with the number of measurements. The
+ * distinct meta-data groups are collected while the measurements are
+ * written, and are set in the response package at the end.
+ *
+ * When a resolution is set, the baseline measurements are not written;
+ * instead, their bins along the x-axis are set in the response package.
+ *
+ * When a read model store is supplied, fresh mutant measurements are read
+ * from it instead of the database; otherwise, the measurements that were
+ * read from the database are passed on to the store, unless there are more
+ * than the store accepts, in which case they are not retained.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class MeasurementsCursor implements DataSetStream {
+
+    private static final int FETCH_SIZE = 1000;
+    private static final int RELEASE_INTERVAL = 500;
+    private final EntityManagerFactory emf;
+    private final MeasurementsPack pack;
+    private final BaselineCache baselineCache;
+    private final ReadModelStore readModel;
+    private final MetadataGroupDictionary dictionary;
+    private final Integer centreId;
+    private final Integer genotypeId;
+    private final Integer strainId;
+    private final String parameterKey;
+    private final List<ProcedureMetadataGroup> groups;
+    private final boolean includeBaseline;
+    private Integer resolution;
+
+    /**
+     * Creates a measurements cursor.
+     *
+     * @param emf Entity manager factory for opening the cursors.
+     * @param pack Response package that receives the meta-data groups.
+     * @param baselineCache Baseline cache; or null, if not cached.
+     * @param readModel Read model store; or null, if not used.
+     * @param dictionary Meta-data group dictionary; or null, if not shared.
+     * @param centreId Centre id.
+     * @param genotypeId Genotype id.
+     * @param strainId Strain id.
+     * @param parameterKey Parameter key.
+     * @param groups Procedure meta-data groups for the data context; the
+     * first determines the procedure of the mutant measurements.
+     * @param includeBaseline If true, also stream the baseline measurements
+     * for every procedure meta-data group.
+     */
+    public MeasurementsCursor(EntityManagerFactory emf, MeasurementsPack pack,
+            BaselineCache baselineCache, ReadModelStore readModel,
+            MetadataGroupDictionary dictionary, Integer centreId, Integer genotypeId, Integer strainId,
+            String parameterKey, List<ProcedureMetadataGroup> groups,
+            boolean includeBaseline) {
+        this.emf = emf;
+        this.pack = pack;
+        this.baselineCache = baselineCache;
+        this.readModel = readModel;
+        this.dictionary = dictionary;
+        this.centreId = centreId;
+        this.genotypeId = genotypeId;
+        this.strainId = strainId;
+        this.parameterKey = parameterKey;
+        this.groups = groups;
+        this.includeBaseline = includeBaseline;
+    }
+
+    /**
+     * Sets the number of intervals on the x-axis for binning the baseline
+     * measurements.
+     *
+     * @param resolution Number of intervals; or null, to write every
+     * baseline measurement.
+     */
+    public void setResolution(Integer resolution) {
+        this.resolution = resolution;
+    }
+
+    private long write(Sink sink, Query q, MetadataGroupIndexer mgi,
+            List<MeasuredValues> stored) throws IOException {
+        long n = 0L;
+        q.setHint(QueryHints.CURSOR, HintValues.TRUE);
+        q.setHint(QueryHints.JDBC_FETCH_SIZE, FETCH_SIZE);
+        q.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+        q.setHint(QueryHints.MAINTAIN_CACHE, HintValues.FALSE);
+        q.setHint(QueryHints.CACHE_USAGE, CacheUsage.DoNotCheckCache);
+        CursoredStream c = (CursoredStream) q.getSingleResult();
+        try {
+            while (c.hasNext()) {
+                MeasuredValues v = (MeasuredValues) c.next();
+                mgi.index(v);
+                sink.add(v);
+                if (stored != null) {
+                    /* too large for the store, so the rows are released */
+                    if (stored.size() < ReadModelStore.MAX_ROWS) {
+                        stored.add(v);
+                    } else {
+                        stored.clear();
+                        stored = null;
+                    }
+                }
+                if (++n % RELEASE_INTERVAL == 0) {
+                    c.releasePrevious();
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return n;
+    }
+
+    @Override
+    public long writeTo(Sink sink) throws IOException {
+        long n = 0L;
+        EntityManager em = emf.createEntityManager();
+        try {
+            MetadataGroupIndexer mgi = new MetadataGroupIndexer(em, dictionary);
+            /* the measurements belong to the procedure meta-data groups of
+             * the data context, so these are resolved with one query */
+            List<String> checksums = new ArrayList<>(groups.size());
+            for (ProcedureMetadataGroup t : groups) {
+                checksums.add(t.getMetadataGroup());
+            }
+            mgi.prefetch(checksums);
+            String procedureKey = groups.get(0).getProcedureId();
+            List<MeasuredValues> stored = readModel == null ? null
+                    : readModel.get(centreId, genotypeId, strainId,
+                            procedureKey, parameterKey);
+            if (stored != null) {
+                for (MeasuredValues v : stored) {
+                    mgi.index(v);
+                    sink.add(v);
+                    ++n;
+                }
+            } else {
+                /* the version and the last update are read before the
+                 * measurements, so that the store never holds measurements
+                 * that are older than their validators */
+                long version = 0L;
+                long lastUpdate = 0L;
+                if (readModel != null) {
+                    version = readModel.getVersion();
+                    lastUpdate = ReadModelStore.getLastUpdate(em, centreId,
+                            genotypeId, strainId, parameterKey);
+                    stored = new ArrayList<>();
+                }
+                Query q = em.createNamedQuery(
+                        MeasurementsFacadeREST.MUTANT_QUERY);
+                MeasurementsFacadeREST.setMutantParameters(q, centreId,
+                        genotypeId, strainId, procedureKey, parameterKey);
+                long m = write(sink, q, mgi, stored);
+                n += m;
+                if (readModel != null && stored.size() == m) {
+                    readModel.put(centreId, genotypeId, strainId,
+                            procedureKey, parameterKey, lastUpdate, version,
+                            stored);
+                }
+            }
+            if (includeBaseline) {
+                List<BaselineBin> bins = resolution == null
+                        ? null : new ArrayList<BaselineBin>();
+                for (ProcedureMetadataGroup t : groups) {
+                    /* measurements that cannot be binned are written */
+                    List<BaselineBin> b = bins == null ? null
+                            : MeasurementsFacadeREST.getBaselineBins(
+                                    baselineCache, em, centreId, strainId,
+                                    parameterKey, t, resolution,
+                                    mgi.index(t.getMetadataGroup()));
+                    if (b != null) {
+                        bins.addAll(b);
+                        continue;
+                    }
+                    for (MeasuredValues v : MeasurementsFacadeREST
+                            .getBaselineMeasurements(baselineCache, em,
+                                    centreId, strainId, parameterKey, t)) {
+                        mgi.index(v);
+                        sink.add(v);
+                        ++n;
+                    }
+                }
+                pack.setBaselineBins(bins);
+            }
+            pack.setMetadataGroups(mgi.getMetadataGroups());
+        } finally {
+            em.close();
+        }
+        return n;
+    }
+}
@@ -15,24 +15,44 @@
  */
 package org.mousephenotype.dcc.visualise.webservice;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
 import org.mousephenotype.dcc.entities.overviews.MeasuredValues;
 import org.mousephenotype.dcc.entities.overviews.MetadataGroupToValues;
 import org.mousephenotype.dcc.entities.overviews.ProcedureMetadataGroup;
 import org.mousephenotype.dcc.entities.qc.StateAndUnresolvedIssuesCount;
 import org.mousephenotype.dcc.visualise.entities.AssociatedMedia;
+import org.mousephenotype.dcc.visualise.entities.BaselineBin;
+import org.mousephenotype.dcc.visualise.entities.GroupStatistics;
 import org.mousephenotype.dcc.visualise.entities.MeasurementContext;
 import org.mousephenotype.dcc.visualise.entities.Measurements;
+import org.mousephenotype.dcc.visualise.persistence.BaselineCache;
+import org.mousephenotype.dcc.visualise.persistence.MetadataGroupDictionary;
+import org.mousephenotype.dcc.visualise.persistence.ReadModelStore;
+import org.mousephenotype.dcc.visualise.persistence.RequestExecutor;
 
 /**
  * Web service for retrieving measurements for a given data context.
@@ -46,9 +66,17 @@ public class MeasurementsFacadeREST extends AbstractFacade<MeasuredValues> {
     private final int QC_DONE = 0;
     private final int QC_PENDING = 1;
     private final int QC_ISSUES = 2;
+    private final int QC_UNKNOWN = -1;
     private final int MAX_NUM_GENES_ALLOWED_FOR_DOWNLOAD = 20;
     private final int MAX_NUM_PARAMETERS_ALLOWED_FOR_DOWNLOAD = 20;
+    private final int MAX_NUM_CONTEXTS_IN_BATCH = 100;
+    /* number of data contexts in a batch whose lookups run ahead */
+    private static final int CONTEXTS_LOOKAHEAD = 4;
     private final Double DEFAULT_PVALUE_THRESHOLD = 0.0001;
+    static final String MUTANT_QUERY
+            = "MeasurementsPerformed.findMutantMeasurementsIgnorePipeline";
+    static final String BASELINE_QUERY
+            = "MeasurementsPerformed.findBaselineMeasurements";
 
     private final List<String> notes = new ArrayList<>();
 
@@ -56,91 +84,173 @@ public class MeasurementsFacadeREST extends AbstractFacade<MeasuredValues> {
         super(MeasuredValues.class);
     }
 
-    private List<MeasuredValues> getMutantMeasurements(
-            EntityManager em,
+    static void setMutantParameters(
+            Query query,
             Integer centreId,
             Integer genotypeId,
             Integer strainId,
             String procedureKey,
             String parameterKey
     ) {
-        TypedQuery<MeasuredValues> query
-                = em.createNamedQuery(
-                        "MeasurementsPerformed.findMutantMeasurementsIgnorePipeline",
-                        MeasuredValues.class);
         query.setParameter("centreId", centreId);
         query.setParameter("genotypeId", genotypeId);
         query.setParameter("strainId", strainId);
         query.setParameter("procedureKey", procedureKey);
         query.setParameter("parameterKey", parameterKey);
-        List<MeasuredValues> temp = query.getResultList();
-        return temp;
     }
 
-    private List<MeasuredValues> getBaselineMeasurements(
-            EntityManager em,
+    static void setBaselineParameters(
+            Query query,
             Integer centreId,
             Integer strainId,
             String parameterKey,
             ProcedureMetadataGroup t) {
-        TypedQuery<MeasuredValues> query
-                = em.createNamedQuery(
-                        "MeasurementsPerformed.findBaselineMeasurements",
-                        MeasuredValues.class);
         query.setParameter("parameterId", parameterKey);
         query.setParameter("centreId", centreId);
         query.setParameter("strainId", strainId);
         query.setParameter("procedureId", t.getProcedureId());
         query.setParameter("metadataGroup", t.getMetadataGroup());
         query.setParameter("pipeline", t.getPipeline());
+    }
+
+    private List<MeasuredValues> getMutantMeasurements(
+            EntityManager em,
+            Integer centreId,
+            Integer genotypeId,
+            Integer strainId,
+            String procedureKey,
+            String parameterKey
+    ) {
+        TypedQuery<MeasuredValues> query
+                = em.createNamedQuery(MUTANT_QUERY, MeasuredValues.class);
+        setMutantParameters(query, centreId, genotypeId, strainId,
+                procedureKey, parameterKey);
         List<MeasuredValues> temp = query.getResultList();
         return temp;
     }
 
-    private MetadataGroupToValues getMetadataGroupValue(
+    /**
+     * Returns the baseline measurements for a procedure meta-data group from
+     * the baseline cache, retrieving them with the supplied entity manager
+     * if they are not cached.
+     *
+     * @return The baseline measurements, which must not be modified.
+     */
+    private static BaselineCache.Loader getBaselineLoader(
+            final EntityManager em,
+            final Integer centreId,
+            final Integer strainId,
+            final String parameterKey,
+            final ProcedureMetadataGroup t) {
+        return new BaselineCache.Loader() {
+            @Override
+            public List<MeasuredValues> load() {
+                TypedQuery<MeasuredValues> query
+                        = em.createNamedQuery(BASELINE_QUERY,
+                                MeasuredValues.class);
+                setBaselineParameters(query, centreId, strainId,
+                        parameterKey, t);
+                /* the cached measurements are not managed by any entity
+                 * manager, and must not fill the shared cache */
+                query.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+                query.setHint(QueryHints.MAINTAIN_CACHE, HintValues.FALSE);
+                return query.getResultList();
+            }
+        };
+    }
+
+    static List<MeasuredValues> getBaselineMeasurements(
+            BaselineCache bc,
             EntityManager em,
-            String mg
-    ) {
-        MetadataGroupToValues v = null;
-        TypedQuery<MetadataGroupToValues> query
-                = em.createNamedQuery(
-                        "MetadataGroupToValues.findByMetadataGroup",
-                        MetadataGroupToValues.class);
-        query.setParameter("metadataGroup", mg);
-        query.setMaxResults(1);
-        try {
-            v = query.getSingleResult();
-        } catch (Exception e) {
+            Integer centreId,
+            Integer strainId,
+            String parameterKey,
+            ProcedureMetadataGroup t) {
+        BaselineCache.Loader loader = getBaselineLoader(em, centreId,
+                strainId, parameterKey, t);
+        return bc == null ? loader.load()
+                : bc.get(centreId, strainId, parameterKey, t, loader);
+    }
+
+    // The statistics of the wildtype groups are cached for the baselines of
+    // the data context, and are calculated from the cached baselines, which
+    // the measurements cursor has already loaded.
+    private MeasurementStatistics.Wildtype getWildtypeStatistics(
+            final Integer centreId, final Integer strainId,
+            final String parameterKey,
+            final List<ProcedureMetadataGroup> groups) {
+        final BaselineCache bc = getBaselineCache();
+        if (bc == null) {
+            return null;
         }
-        return v;
+        final EntityManagerFactory emf
+                = getPersistenceManager().getEntityManagerFactory();
+        final BaselineCache.Calculator calculator
+                = new BaselineCache.Calculator() {
+                    @Override
+                    public List<GroupStatistics> calculate()
+                            throws IOException {
+                        MeasurementStatistics ms = new MeasurementStatistics();
+                        EntityManager em = emf.createEntityManager();
+                        try {
+                            for (ProcedureMetadataGroup t : groups) {
+                                for (MeasuredValues v : getBaselineMeasurements(
+                                        bc, em, centreId, strainId,
+                                        parameterKey, t)) {
+                                    ms.add(v);
+                                }
+                            }
+                        } finally {
+                            em.close();
+                        }
+                        return ms.getStatistics();
+                    }
+                };
+        return new MeasurementStatistics.Wildtype() {
+            @Override
+            public List<GroupStatistics> getStatistics() throws IOException {
+                return bc.getStatistics(centreId, strainId, parameterKey,
+                        groups, calculator);
+            }
+        };
+    }
+
+    static List<BaselineBin> getBaselineBins(
+            BaselineCache bc,
+            EntityManager em,
+            Integer centreId,
+            Integer strainId,
+            String parameterKey,
+            ProcedureMetadataGroup t,
+            final int resolution,
+            final Long metadataGroupIndex) throws IOException {
+        BaselineCache.Loader loader = getBaselineLoader(em, centreId,
+                strainId, parameterKey, t);
+        BaselineCache.Binner binner = new BaselineCache.Binner() {
+            @Override
+            public List<BaselineBin> bin(List<MeasuredValues> baseline)
+                    throws IOException {
+                return BaselineBinner.bin(baseline, resolution,
+                        metadataGroupIndex);
+            }
+        };
+        return bc == null ? binner.bin(loader.load())
+                : bc.getBins(centreId, strainId, parameterKey, t, resolution,
+                        loader, binner);
     }
 
     // We do not wish to send the meta-data group checksum or the values
     // for every measurement. So, we group all of the distinct meta-data groups
     // and send them with the measurements. Within each measurement, we replace
     // the meta-data group checksum with the id.
-    private List<MetadataGroupToValues> convertMetadataGroupsToIndices(
+    private static List<MetadataGroupToValues> convertMetadataGroupsToIndices(
             EntityManager em,
+            MetadataGroupDictionary dictionary,
             List<MeasuredValues> g
     ) {
-        List<MetadataGroupToValues> mgs = new ArrayList<>();
-        HashMap<String, MetadataGroupToValues> distinct = new HashMap<>();
-        Iterator<MeasuredValues> i = g.iterator();
-        while (i.hasNext()) {
-            MeasuredValues v = i.next();
-            String checksum = v.getMetadataGroup();
-            MetadataGroupToValues mg = distinct.get(checksum);
-            if (mg == null) {
-                mg = getMetadataGroupValue(em, checksum);
-                if (mg != null) {
-                    distinct.put(checksum, mg);
-                    mgs.add(mg);
-                }
-            }
-            v.setMetadataGroupIndex(mg == null
-                    ? -1L : mg.getMetadataGroupToValuesId());
-        }
-        return mgs;
+        MetadataGroupIndexer mgi = new MetadataGroupIndexer(em, dictionary);
+        mgi.indexAll(g);
+        return mgi.getMetadataGroups();
     }
 
     public List<ProcedureMetadataGroup> getProcedureMetadataGroups(
@@ -222,14 +332,18 @@ public class MeasurementsFacadeREST extends AbstractFacade<MeasuredValues> {
     }
 
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
+    @Produces({MediaType.APPLICATION_JSON, CborStreamWriter.APPLICATION_CBOR})
     public MeasurementsPack extjsFindBy(
             @QueryParam("cid") Integer centreId,
             @QueryParam("gid") Integer genotypeId,
             @QueryParam("sid") Integer strainId,
             @QueryParam("qeid") String parameterKey,
-            @QueryParam("includeBaseline") Boolean includeBaseline) {
+            @QueryParam("includeBaseline") Boolean includeBaseline,
+            @QueryParam("format") String format,
+            @QueryParam("stats") String stats,
+            @QueryParam("resolution") Integer resolution) {
         MeasurementsPack p = new MeasurementsPack();
+        p.setColumnar("columnar".equals(format));
         if (centreId == null || genotypeId == null || strainId == null
                 || parameterKey == null || parameterKey.isEmpty()) {
             p.setDataSet(null, 0L);
@@ -240,111 +354,638 @@ public class MeasurementsFacadeREST extends AbstractFacade<MeasuredValues> {
             if (t == null || t.isEmpty()) {
                 p.setDataSet(null, 0L);
             } else {
-                List<MeasuredValues> temp
-                        = getMutantMeasurements(em, centreId, genotypeId,
-                                strainId, t.get(0).getProcedureId(),
-                                parameterKey);
-                if (genotypeId != 0
-                        && includeBaseline != null
-                        && includeBaseline) {
-                    Iterator<ProcedureMetadataGroup> i = t.iterator();
-                    while (i.hasNext()) {
-                        temp.addAll(getBaselineMeasurements(
-                                em, centreId, strainId,
-                                parameterKey, i.next()));
+                /* the lookups that do not depend on each other run
+                 * concurrently with the measurements, with their own
+                 * entity managers, while the response is being written */
+                boolean baseline = genotypeId != 0
+                        && includeBaseline != null && includeBaseline;
+                MeasurementsCursor c = new MeasurementsCursor(
+                        getPersistenceManager().getEntityManagerFactory(), p,
+                        getBaselineCache(), getReadModelStore(),
+                        getMetadataGroupDictionary(), centreId, genotypeId,
+                        strainId, parameterKey, t, baseline);
+
+                /* with 'resolution', the wildtype measurements are
+                 * replaced by bins along the x-axis */
+                if (baseline && resolution != null && resolution > 0) {
+                    c.setResolution(Math.min(resolution,
+                            BaselineBinner.MAX_RESOLUTION));
+                }
+                DataSetStream s = new LookupsStream(c, p, centreId,
+                        genotypeId, strainId, parameterKey, t, baseline);
+
+                /* with 'stats=true' the statistics are returned with the
+                 * measurements, and with 'stats=only' without them */
+                if ("true".equals(stats) || "only".equals(stats)) {
+                    s = new MeasurementStatistics.Stream(s, p,
+                            !"only".equals(stats),
+                            baseline && resolution == null
+                                    ? getWildtypeStatistics(centreId,
+                                            strainId, parameterKey, t)
+                                    : null);
+                }
+                p.setDataSetStream(s);
+            }
+            em.close();
+        }
+        return p;
+    }
+
+    /**
+     * The QC status, the associated media and the baseline measurements of a
+     * data context, retrieved in parallel.
+     *
+     * The lookups are submitted to the request executor when they are
+     * created, and each uses its own entity manager. The baseline lookups
+     * only load the baseline cache, so that the measurements cursor joins
+     * a load that is already in progress. The QC status and the associated
+     * media are waited for only until the time budget of the lookups runs
+     * out; lookups that take longer are cancelled and left out of the
+     * response, where the QC status is then reported as unknown (-1).
+     */
+    private class Lookups {
+
+        private final long deadline;
+        private final Future<StateAndUnresolvedIssuesCount> qc;
+        private final Future<AssociatedMedia> media;
+        private final List<Future<List<MeasuredValues>>> baselines
+                = new ArrayList<>();
+        private boolean failed = false;
+
+        Lookups(final EntityManagerFactory emf, final Integer centreId,
+                final Integer genotypeId, final Integer strainId,
+                final String parameterKey, List<ProcedureMetadataGroup> t,
+                boolean includeBaseline) {
+            RequestExecutor re = getRequestExecutor();
+            deadline = re.getDeadline();
+            qc = re.submit(new Callable<StateAndUnresolvedIssuesCount>() {
+                @Override
+                public StateAndUnresolvedIssuesCount call() {
+                    EntityManager em = emf.createEntityManager();
+                    try {
+                        return getQcStatusCountAndLastupdate(em, centreId,
+                                genotypeId, strainId, parameterKey);
+                    } finally {
+                        em.close();
                     }
                 }
-                List<MetadataGroupToValues> mgs
-                        = convertMetadataGroupsToIndices(em, temp);
-                p.setMetadataGroups(mgs);
-                StateAndUnresolvedIssuesCount r
-                        = getQcStatusCountAndLastupdate(em, centreId,
+            });
+            media = re.submit(new Callable<AssociatedMedia>() {
+                @Override
+                public AssociatedMedia call() {
+                    EntityManager em = emf.createEntityManager();
+                    try {
+                        return getAssociatedMediaParameter(em, centreId,
                                 genotypeId, strainId, parameterKey);
+                    } finally {
+                        em.close();
+                    }
+                }
+            });
+            final BaselineCache bc = getBaselineCache();
+            if (includeBaseline && bc != null) {
+                for (final ProcedureMetadataGroup g : t) {
+                    baselines.add(re.submit(
+                            new Callable<List<MeasuredValues>>() {
+                                @Override
+                                public List<MeasuredValues> call() {
+                                    EntityManager em
+                                            = emf.createEntityManager();
+                                    try {
+                                        return getBaselineMeasurements(bc, em,
+                                                centreId, strainId,
+                                                parameterKey, g);
+                                    } finally {
+                                        em.close();
+                                    }
+                                }
+                            }));
+                }
+            }
+        }
+
+        private <T> T await(Future<T> f, String name)
+                throws InterruptedIOException {
+            try {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0L) {
+                    if (f.isDone()) {
+                        return f.get();
+                    }
+                    throw new TimeoutException();
+                }
+                return f.get(remaining, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                System.err.println("Could not retrieve " + name + ": "
+                        + e.getCause());
+            } catch (TimeoutException e) {
+                System.err.println("Time budget exceeded while retrieving "
+                        + name);
+            }
+            failed = true;
+            return null;
+        }
+
+        /* true if a lookup that was waited for is missing from the response */
+        boolean hasFailed() {
+            return failed;
+        }
+
+        StateAndUnresolvedIssuesCount getQc() throws InterruptedIOException {
+            return await(qc, "QC status");
+        }
+
+        AssociatedMedia getMedia() throws InterruptedIOException {
+            return await(media, "associated media");
+        }
+
+        /* lookups that are still running are not interrupted, so that their
+         * database connections are not disturbed */
+        void cancel() {
+            qc.cancel(false);
+            media.cancel(false);
+            for (Future<List<MeasuredValues>> f : baselines) {
+                f.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Writes the measurements while the lookups of the data context are
+     * retrieved in parallel. The QC status and the associated media are
+     * waited for after the measurements have been written.
+     */
+    private class LookupsStream implements DataSetStream {
+
+        private final DataSetStream stream;
+        private final MeasurementsPack pack;
+        private final Lookups lookups;
+
+        LookupsStream(DataSetStream stream, MeasurementsPack pack,
+                Integer centreId, Integer genotypeId, Integer strainId,
+                String parameterKey, List<ProcedureMetadataGroup> t,
+                boolean includeBaseline) {
+            this.stream = stream;
+            this.pack = pack;
+            this.lookups = new Lookups(
+                    getPersistenceManager().getEntityManagerFactory(),
+                    centreId, genotypeId, strainId, parameterKey, t,
+                    includeBaseline);
+        }
+
+        @Override
+        public long writeTo(Sink sink) throws IOException {
+            try {
+                long n = stream.writeTo(sink);
+                /* a QC status that could not be retrieved in time is not
+                 * reported as done */
+                StateAndUnresolvedIssuesCount r = lookups.getQc();
+                if (r == null) {
+                    pack.setQcStatus(QC_UNKNOWN);
+                } else {
+                    pack.setQcStatus(getQcStatus(r));
+                    pack.setLastUpdate(r.getLastUpdate());
+                }
+                pack.setAssociatedMedia(lookups.getMedia());
+                if (lookups.hasFailed()) {
+                    pack.setComplete(false);
+                }
+                return n;
+            } finally {
+                lookups.cancel();
+            }
+        }
+    }
+
+    /**
+     * Retrieves and writes the measurements for each of the data contexts
+     * of a batch request in turn, with one entity manager.
+     *
+     * The procedure meta-data groups of all of the data contexts are found
+     * first, so that all of the meta-data groups that are not yet in the
+     * dictionary are retrieved with one query. The lookups of the next few
+     * data contexts run in parallel while the measurements of the current
+     * one are retrieved, and the mutant measurements are taken from the read
+     * model when it holds them. The baseline measurements are taken from the
+     * baseline cache, so that data contexts that share a baseline (e.g.,
+     * genes at the same centre) retrieve it only once.
+     */
+    private class ContextsStream implements DataSetStream {
+
+        private final EntityManagerFactory emf;
+        private final BaselineCache baselineCache;
+        private final ReadModelStore readModel;
+        private final MetadataGroupDictionary dictionary;
+        private final List<ContextMeasurementsPack> contexts;
+        private final boolean includeBaseline;
+        private final MeasurementsBatchPack pack;
+
+        ContextsStream(EntityManagerFactory emf, BaselineCache baselineCache,
+                ReadModelStore readModel, MetadataGroupDictionary dictionary,
+                List<ContextMeasurementsPack> contexts,
+                boolean includeBaseline, MeasurementsBatchPack pack) {
+            this.emf = emf;
+            this.baselineCache = baselineCache;
+            this.readModel = readModel;
+            this.dictionary = dictionary == null
+                    ? new MetadataGroupDictionary() : dictionary;
+            this.contexts = contexts;
+            this.includeBaseline = includeBaseline;
+            this.pack = pack;
+        }
+
+        private Lookups submit(ContextMeasurementsPack c,
+                List<ProcedureMetadataGroup> t) {
+            return t == null || t.isEmpty() ? null
+                    : new Lookups(emf, c.getCentreId(), c.getGenotypeId(),
+                            c.getStrainId(), c.getParameterKey(), t,
+                            includeBaseline && c.getGenotypeId() != 0);
+        }
+
+        private List<MeasuredValues> getMutants(EntityManager em,
+                Integer centreId, Integer genotypeId, Integer strainId,
+                String procedureKey, String parameterKey) {
+            List<MeasuredValues> values = readModel == null ? null
+                    : readModel.get(centreId, genotypeId, strainId,
+                            procedureKey, parameterKey);
+            if (values == null) {
+                /* as with the measurements cursor, the validators are read
+                 * before the measurements */
+                long version = 0L;
+                long lastUpdate = 0L;
+                if (readModel != null) {
+                    version = readModel.getVersion();
+                    lastUpdate = ReadModelStore.getLastUpdate(em, centreId,
+                            genotypeId, strainId, parameterKey);
+                }
+                values = getMutantMeasurements(em, centreId, genotypeId,
+                        strainId, procedureKey, parameterKey);
+                if (readModel != null
+                        && values.size() <= ReadModelStore.MAX_ROWS) {
+                    readModel.put(centreId, genotypeId, strainId,
+                            procedureKey, parameterKey, lastUpdate, version,
+                            values);
+                }
+            }
+            return values;
+        }
+
+        private ContextMeasurementsPack retrieve(EntityManager em,
+                ContextMeasurementsPack c, List<ProcedureMetadataGroup> t,
+                Lookups lookups) throws InterruptedIOException {
+            Integer centreId = c.getCentreId();
+            Integer genotypeId = c.getGenotypeId();
+            Integer strainId = c.getStrainId();
+            String parameterKey = c.getParameterKey();
+            ContextMeasurementsPack p = new ContextMeasurementsPack(centreId,
+                    genotypeId, strainId, parameterKey);
+            if (lookups == null) {
+                p.setDataSet(null, 0L);
+                return p;
+            }
+            List<MeasuredValues> values = new ArrayList<>(
+                    getMutants(em, centreId, genotypeId, strainId,
+                            t.get(0).getProcedureId(), parameterKey));
+            if (genotypeId != 0 && includeBaseline) {
+                for (ProcedureMetadataGroup g : t) {
+                    values.addAll(getBaselineMeasurements(baselineCache, em,
+                            centreId, strainId, parameterKey, g));
+                }
+            }
+            MetadataGroupIndexer mgi = new MetadataGroupIndexer(em, dictionary);
+            mgi.indexAll(values);
+            p.setMetadataGroups(mgi.getMetadataGroups());
+            p.setDataSet(values, values.size());
+            StateAndUnresolvedIssuesCount r = lookups.getQc();
+            if (r == null) {
+                p.setQcStatus(QC_UNKNOWN);
+            } else {
                 p.setQcStatus(getQcStatus(r));
                 p.setLastUpdate(r.getLastUpdate());
-                p.setAssociatedMedia(getAssociatedMediaParameter(em, centreId,
-                        genotypeId, strainId, parameterKey));
-                p.setDataSet(temp);
             }
-            em.close();
+            p.setAssociatedMedia(lookups.getMedia());
+            if (lookups.hasFailed()) {
+                pack.setComplete(false);
+            }
+            return p;
+        }
+
+        @Override
+        public long writeTo(Sink sink) throws IOException {
+            long n = 0L;
+            EntityManager em = emf.createEntityManager();
+            LinkedList<Lookups> pending = new LinkedList<>();
+            try {
+                List<List<ProcedureMetadataGroup>> groups
+                        = new ArrayList<>(contexts.size());
+                List<String> checksums = new ArrayList<>();
+                for (ContextMeasurementsPack c : contexts) {
+                    List<ProcedureMetadataGroup> t = getProcedureMetadataGroups(
+                            em, c.getCentreId(), c.getGenotypeId(),
+                            c.getStrainId(), c.getParameterKey());
+                    groups.add(t);
+                    for (int i = 0; t != null && i < t.size(); ++i) {
+                        checksums.add(t.get(i).getMetadataGroup());
+                    }
+                }
+                dictionary.resolve(em, checksums);
+                int next = 0;
+                for (int i = 0; i < contexts.size(); ++i) {
+                    while (next < contexts.size()
+                            && next <= i + CONTEXTS_LOOKAHEAD) {
+                        pending.add(submit(contexts.get(next),
+                                groups.get(next)));
+                        ++next;
+                    }
+                    Lookups lookups = pending.removeFirst();
+                    try {
+                        sink.add(retrieve(em, contexts.get(i), groups.get(i),
+                                lookups));
+                    } finally {
+                        if (lookups != null) {
+                            lookups.cancel();
+                        }
+                    }
+                    ++n;
+                    em.clear();
+                }
+            } finally {
+                for (Lookups l : pending) {
+                    if (l != null) {
+                        l.cancel();
+                    }
+                }
+                em.close();
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Returns the measurements for several data contexts in one response,
+     * e.g., for all of the cells in a visualisation grid.
+     *
+     * @param contexts Comma separated list of data contexts, each given as
+     * 'cid:gid:sid:qeid'. At most MAX_NUM_CONTEXTS_IN_BATCH are retrieved.
+     * @param includeBaseline If true, include the baseline measurements.
+     * @return Measurements for each data context, in the supplied order.
+     */
+    @GET
+    @Path("batch")
+    @Produces({MediaType.APPLICATION_JSON, CborStreamWriter.APPLICATION_CBOR})
+    public MeasurementsBatchPack batch(
+            @QueryParam("t") String contexts,
+            @QueryParam("includeBaseline") Boolean includeBaseline) {
+        MeasurementsBatchPack p = new MeasurementsBatchPack();
+        Map<String, ContextMeasurementsPack> parsed = new LinkedHashMap<>();
+        if (contexts != null) {
+            for (String c : contexts.split("\\s*,\\s*")) {
+                String[] f = c.split(":");
+                if (f.length != 4 || f[3].isEmpty()
+                        || parsed.containsKey(c)) {
+                    continue;
+                }
+                try {
+                    parsed.put(c, new ContextMeasurementsPack(
+                            Integer.valueOf(f[0]), Integer.valueOf(f[1]),
+                            Integer.valueOf(f[2]), f[3]));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (parsed.size() == MAX_NUM_CONTEXTS_IN_BATCH) {
+                    break;
+                }
+            }
+        }
+        if (parsed.isEmpty()) {
+            p.setDataSet(null, 0L);
+        } else {
+            /* the measurements are retrieved on a worker thread of the
+             * asynchronous executor, within its time budget */
+            p.setDataSetStream(getAsyncStream(new ContextsStream(
+                    getPersistenceManager().getEntityManagerFactory(),
+                    getBaselineCache(), getReadModelStore(),
+                    getMetadataGroupDictionary(),
+                    new ArrayList<>(parsed.values()),
+                    includeBaseline != null && includeBaseline, p), true));
         }
         return p;
     }
 
+    /**
+     * A data context and parameter whose measurements are downloaded.
+     */
+    private static class Selection {
+
+        final MeasurementContext mc;
+        final String parameterKey;
+
+        Selection(MeasurementContext mc, String parameterKey) {
+            this.mc = mc;
+            this.parameterKey = parameterKey;
+        }
+    }
+
+    /**
+     * Retrieves the measurements for the selections in parallel on the
+     * download executor, and writes them in the order of the selections.
+     *
+     * Each selection is retrieved by a separate task with its own entity
+     * manager. At most the per-request maximum of tasks are submitted at a
+     * time, and a new task is only submitted when the oldest result has been
+     * written, so that only a few selections are held in memory.
+     */
+    private class SelectionsStream implements DataSetStream {
+
+        private final EntityManagerFactory emf;
+        private final RequestExecutor executor;
+        private final BaselineCache baselineCache;
+        private final MetadataGroupDictionary dictionary;
+        private final List<Selection> selections;
+        private final Boolean includeBaseline;
+
+        SelectionsStream(EntityManagerFactory emf, RequestExecutor executor,
+                BaselineCache baselineCache,
+                MetadataGroupDictionary dictionary,
+                List<Selection> selections, Boolean includeBaseline) {
+            this.emf = emf;
+            this.executor = executor;
+            this.baselineCache = baselineCache;
+            this.dictionary = dictionary;
+            this.selections = selections;
+            this.includeBaseline = includeBaseline;
+        }
+
+        private Future<Measurements> submit(final Selection s) {
+            return executor.submit(new Callable<Measurements>() {
+                @Override
+                public Measurements call() throws Exception {
+                    EntityManager em = emf.createEntityManager();
+                    try {
+                        return retrieveMeasurements(em, baselineCache,
+                                dictionary, s.mc, s.parameterKey,
+                                includeBaseline);
+                    } finally {
+                        em.close();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public long writeTo(Sink sink) throws IOException {
+            long n = 0L;
+            int window = executor.getMaximumPerRequest();
+            Iterator<Selection> i = selections.iterator();
+            LinkedList<Future<Measurements>> pending = new LinkedList<>();
+            try {
+                while (pending.size() < window && i.hasNext()) {
+                    pending.add(submit(i.next()));
+                }
+                while (!pending.isEmpty()) {
+                    Measurements m = pending.removeFirst().get();
+                    if (i.hasNext()) {
+                        pending.add(submit(i.next()));
+                    }
+                    if (m != null) {
+                        sink.add(m);
+                        ++n;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Download was interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException("Could not retrieve measurements",
+                        e.getCause());
+            } finally {
+                /* selections that are being retrieved are not interrupted,
+                 * so that their database connections are not disturbed */
+                for (Future<Measurements> f : pending) {
+                    f.cancel(false);
+                }
+            }
+            return n;
+        }
+    }
+
+    // The download runs on a worker thread of the asynchronous executor.
+    // Only the JSON download must finish within the time budget, since the
+    // record formats are written as the data is retrieved.
+    private MeasurementsSetPack streamSelections(List<Selection> selections,
+            Boolean includeBaseline, String format) {
+        StreamingMeasurementsSetPack p = new StreamingMeasurementsSetPack();
+        p.setDataSetStream(getAsyncStream(new SelectionsStream(
+                getPersistenceManager().getEntityManagerFactory(),
+                getDownloadExecutor(), getBaselineCache(),
+                getMetadataGroupDictionary(), selections, includeBaseline),
+                !isStreamingFormat(format)));
+        return p;
+    }
+
+    /* the streaming formats write each data context as soon as it has been
+     * retrieved, without holding the others, so they are not capped */
+    private static boolean isStreamingFormat(String format) {
+        return "ndjson".equals(format) || "csv".equals(format);
+    }
+
+    private static Response respond(MeasurementsSetPack p, String format) {
+        if ("ndjson".equals(format)) {
+            return Response.ok(p, NdjsonPackWriter.APPLICATION_NDJSON)
+                    .header("Content-Disposition",
+                            "attachment; filename=\"measurements.ndjson\"")
+                    .build();
+        }
+        if ("csv".equals(format)) {
+            return Response.ok(p, CsvPackWriter.TEXT_CSV)
+                    .header("Content-Disposition",
+                            "attachment; filename=\"measurements.csv\"")
+                    .build();
+        }
+        return Response.ok(p, MediaType.APPLICATION_JSON).build();
+    }
+
     @GET
     @Path("download")
-    @Produces(MediaType.APPLICATION_JSON)
-    public MeasurementsSetPack download(
+    @Produces({MediaType.APPLICATION_JSON, NdjsonPackWriter.APPLICATION_NDJSON,
+        CsvPackWriter.TEXT_CSV})
+    public Response download(
             @QueryParam("mgiid") String mgiId,
             @QueryParam("parameter") String parameter,
-            @QueryParam("includeBaseline") Boolean includeBaseline
+            @QueryParam("includeBaseline") Boolean includeBaseline,
+            @QueryParam("format") String format
     ) {
+        boolean capped = !isStreamingFormat(format);
         MeasurementsSetPack p = new MeasurementsSetPack();
         if (mgiId == null || parameter == null) {
             p.setDataSet(null, 0L);
-            return p;
+            return respond(p, format);
         }
         EntityManager em = getEntityManager();
         List<MeasurementContext> mcs
                 = translateMgiidStringToMeasurementContexts(em, mgiId);
+        em.close();
 
         List<String> splitParameters = Arrays.asList(parameter.split("\\s*,\\s*"));
         if (mcs == null || splitParameters.isEmpty()) {
             p.setDataSet(null, 0L);
-            em.close();
-            return p;
+            return respond(p, format);
         }
         List<String> parameters = new ArrayList<>(new HashSet<>(splitParameters));
 
         int ng = 0, np;
-        List<Measurements> measurements = new ArrayList<>();
+        List<Selection> selections = new ArrayList<>();
         for (MeasurementContext mc : mcs) {
             np = 0;
             for (String q : parameters) {
-                measurements.add(retrieveMeasurements(em, mc, q, includeBaseline));
-                if (++np == MAX_NUM_PARAMETERS_ALLOWED_FOR_DOWNLOAD) {
+                selections.add(new Selection(mc, q));
+                if (capped && ++np == MAX_NUM_PARAMETERS_ALLOWED_FOR_DOWNLOAD) {
                     break;
                 }
             }
-            if (++ng == MAX_NUM_GENES_ALLOWED_FOR_DOWNLOAD) {
+            if (capped && ++ng == MAX_NUM_GENES_ALLOWED_FOR_DOWNLOAD) {
                 break;
             }
         }
-        p.setDataSet(measurements);
-        if (mcs.size() > MAX_NUM_GENES_ALLOWED_FOR_DOWNLOAD) {
+        p = streamSelections(selections, includeBaseline, format);
+        if (capped && mcs.size() > MAX_NUM_GENES_ALLOWED_FOR_DOWNLOAD) {
             notes.add("Data for only " + MAX_NUM_GENES_ALLOWED_FOR_DOWNLOAD
                     + " genes can be downloaded at a time. Choosing first "
                     + MAX_NUM_GENES_ALLOWED_FOR_DOWNLOAD + " genes.");
         }
-        if (parameters.size() > MAX_NUM_PARAMETERS_ALLOWED_FOR_DOWNLOAD) {
+        if (capped
+                && parameters.size() > MAX_NUM_PARAMETERS_ALLOWED_FOR_DOWNLOAD) {
             notes.add("Data for only " + MAX_NUM_PARAMETERS_ALLOWED_FOR_DOWNLOAD
                     + " parameters can be downloaded at a time. Choosing first "
                     + MAX_NUM_PARAMETERS_ALLOWED_FOR_DOWNLOAD + " parameters.");
         }
         p.setNotes(notes);
-        em.close();
-        return p;
+        return respond(p, format);
     }
 
     @GET
     @Path("download/significant/genes")
-    @Produces(MediaType.APPLICATION_JSON)
-    public MeasurementsSetPack downloadSignificantGenes(
+    @Produces({MediaType.APPLICATION_JSON, NdjsonPackWriter.APPLICATION_NDJSON,
+        CsvPackWriter.TEXT_CSV})
+    public Response downloadSignificantGenes(
             @QueryParam("parameter") String parameter,
             @QueryParam("pvalueThreshold") Double pvalueThreshold,
-            @QueryParam("includeBaseline") Boolean includeBaseline
+            @QueryParam("includeBaseline") Boolean includeBaseline,
+            @QueryParam("format") String format
     ) {
+        boolean capped = !isStreamingFormat(format);
         MeasurementsSetPack p = new MeasurementsSetPack();
         if (parameter == null) {
             p.setDataSet(null, 0L);
-            return p;
+            return respond(p, format);
         }
-        EntityManager em = getEntityManager();
         List<String> splitParameters = Arrays.asList(parameter.split("\\s*,\\s*"));
         if (splitParameters.isEmpty()) {
             p.setDataSet(null, 0L);
-            em.close();
-            return p;
+            return respond(p, format);
         }
 
         if (pvalueThreshold == null || pvalueThreshold < 0.0 || pvalueThreshold > 1.0) {
@@ -354,8 +995,9 @@ public class MeasurementsFacadeREST extends AbstractFacade<MeasuredValues> {
             pvalueThreshold = DEFAULT_PVALUE_THRESHOLD;
         }
 
+        EntityManager em = getEntityManager();
         List<String> parameters = new ArrayList<>(new HashSet<>(splitParameters));
-        List<Measurements> measurements = new ArrayList<>();
+        List<Selection> selections = new ArrayList<>();
         int np = 0;
         for (String q : parameters) {
             List<MeasurementContext> mcs
@@ -364,38 +1006,39 @@ public class MeasurementsFacadeREST extends AbstractFacade<MeasuredValues> {
                 continue;
             }
             for (MeasurementContext mc : mcs) {
-                Measurements m = retrieveMeasurements(em, mc, q, includeBaseline);
-                if (m != null) {
-                    measurements.add(m);
-                }
+                selections.add(new Selection(mc, q));
             }
-            if (++np == MAX_NUM_PARAMETERS_ALLOWED_FOR_DOWNLOAD) {
+            if (capped && ++np == MAX_NUM_PARAMETERS_ALLOWED_FOR_DOWNLOAD) {
                 break;
             }
         }
-        p.setDataSet(measurements);
-        if (parameters.size() > MAX_NUM_PARAMETERS_ALLOWED_FOR_DOWNLOAD) {
+        em.close();
+        p = streamSelections(selections, includeBaseline, format);
+        if (capped
+                && parameters.size() > MAX_NUM_PARAMETERS_ALLOWED_FOR_DOWNLOAD) {
             notes.add("Data for only " + MAX_NUM_PARAMETERS_ALLOWED_FOR_DOWNLOAD
                     + " parameters can be downloaded at a time. Choosing first "
                     + MAX_NUM_PARAMETERS_ALLOWED_FOR_DOWNLOAD + " parameters.");
         }
         p.setNotes(notes);
-        em.close();
-        return p;
+        return respond(p, format);
     }
 
     @GET
     @Path("download/significant/parameters")
-    @Produces(MediaType.APPLICATION_JSON)
-    public MeasurementsSetPack downloadSignificantParameters(
+    @Produces({MediaType.APPLICATION_JSON, NdjsonPackWriter.APPLICATION_NDJSON,
+        CsvPackWriter.TEXT_CSV})
+    public Response downloadSignificantParameters(
             @QueryParam("mgiid") String mgiId,
             @QueryParam("pvalueThreshold") Double pvalueThreshold,
-            @QueryParam("includeBaseline") Boolean includeBaseline
+            @QueryParam("includeBaseline") Boolean includeBaseline,
+            @QueryParam("format") String format
     ) {
+        boolean capped = !isStreamingFormat(format);
         MeasurementsSetPack p = new MeasurementsSetPack();
         if (mgiId == null) {
             p.setDataSet(null, 0L);
-            return p;
+            return respond(p, format);
         }
         EntityManager em = getEntityManager();
         List<MeasurementContext> mcs
@@ -404,7 +1047,7 @@ public class MeasurementsFacadeREST extends AbstractFacade<MeasuredValues> {
         if (mcs == null) {
             p.setDataSet(null, 0L);
             em.close();
-            return p;
+            return respond(p, format);
         }
 
         if (pvalueThreshold == null || pvalueThreshold < 0.0 || pvalueThreshold > 1.0) {
@@ -415,7 +1058,7 @@ public class MeasurementsFacadeREST extends AbstractFacade<MeasuredValues> {
         }
 
         int ng = 0;
-        List<Measurements> measurements = new ArrayList<>();
+        List<Selection> selections = new ArrayList<>();
         for (MeasurementContext mc : mcs) {
             List<String> params
                     = getSignificantParametersForMeasurementContext(em, mc, pvalueThreshold);
@@ -423,24 +1066,21 @@ public class MeasurementsFacadeREST extends AbstractFacade<MeasuredValues> {
                 continue;
             }
             for (String q : params) {
-                Measurements m = retrieveMeasurements(em, mc, q, includeBaseline);
-                if (m != null) {
-                    measurements.add(m);
-                }
+                selections.add(new Selection(mc, q));
             }
-            if (++ng == MAX_NUM_GENES_ALLOWED_FOR_DOWNLOAD) {
+            if (capped && ++ng == MAX_NUM_GENES_ALLOWED_FOR_DOWNLOAD) {
                 break;
             }
         }
-        p.setDataSet(measurements);
-        if (mcs.size() > MAX_NUM_GENES_ALLOWED_FOR_DOWNLOAD) {
+        em.close();
+        p = streamSelections(selections, includeBaseline, format);
+        if (capped && mcs.size() > MAX_NUM_GENES_ALLOWED_FOR_DOWNLOAD) {
             notes.add("Data for only " + MAX_NUM_GENES_ALLOWED_FOR_DOWNLOAD
                     + " genes can be downloaded at a time. Choosing first "
                     + MAX_NUM_GENES_ALLOWED_FOR_DOWNLOAD + " genes.");
         }
         p.setNotes(notes);
-        em.close();
-        return p;
+        return respond(p, format);
     }
 
     private List<MeasurementContext> translateMgiidStringToMeasurementContexts(
@@ -491,8 +1131,12 @@ public class MeasurementsFacadeREST extends AbstractFacade<MeasuredValues> {
         return mcs;
     }
 
+    // This is called by the download worker threads, so the shared objects
+    // are supplied by the caller instead of being read from the context.
     private Measurements retrieveMeasurements(
             EntityManager em,
+            BaselineCache baselineCache,
+            MetadataGroupDictionary dictionary,
             MeasurementContext mc,
             String parameterKey,
             Boolean includeBaseline) {
@@ -512,11 +1156,12 @@ public class MeasurementsFacadeREST extends AbstractFacade<MeasuredValues> {
         if (mc.getGenotypeId() != 0 && includeBaseline != null && includeBaseline) {
             Iterator<ProcedureMetadataGroup> i = t.iterator();
             while (i.hasNext()) {
-                temp.addAll(getBaselineMeasurements(em, centreId,
-                        strainId, parameterKey, i.next()));
+                temp.addAll(getBaselineMeasurements(baselineCache, em,
+                        centreId, strainId, parameterKey, i.next()));
             }
         }
-        List<MetadataGroupToValues> mgs = convertMetadataGroupsToIndices(em, temp);
+        List<MetadataGroupToValues> mgs = convertMetadataGroupsToIndices(em,
+                dictionary, temp);
         m.setMetadataGroups(mgs);
         StateAndUnresolvedIssuesCount r
                 = getQcStatusCountAndLastupdate(em, centreId,
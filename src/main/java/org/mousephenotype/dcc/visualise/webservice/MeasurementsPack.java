@@ -19,10 +19,13 @@ import java.util.Date;
 import java.util.List;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlSeeAlso;
+import javax.xml.bind.annotation.XmlTransient;
 import javax.xml.bind.annotation.XmlType;
 import org.mousephenotype.dcc.entities.overviews.MeasuredValues;
 import org.mousephenotype.dcc.entities.overviews.MetadataGroupToValues;
 import org.mousephenotype.dcc.visualise.entities.AssociatedMedia;
+import org.mousephenotype.dcc.visualise.entities.BaselineBin;
+import org.mousephenotype.dcc.visualise.entities.GroupStatistics;
 
 /**
  * Response package for measurements data returned by the 
@@ -32,12 +35,18 @@ import org.mousephenotype.dcc.visualise.entities.AssociatedMedia;
  */
 @XmlSeeAlso(MeasuredValues.class)
 @XmlType(propOrder = {"success", "total", "measurements"})
-public class MeasurementsPack extends AbstractRestResponse<MeasuredValues> {
+public class MeasurementsPack extends AbstractRestResponse<MeasuredValues>
+        implements StreamedPack {
     private final int QC_DONE = 0;    
     private int qcStatus = QC_DONE;
     private List<MetadataGroupToValues> metadataGroups;
     private AssociatedMedia associatedMedia;
     private Date lastUpdate;
+    private DataSetStream dataSetStream;
+    private boolean columnar = false;
+    private boolean complete = true;
+    private List<GroupStatistics> statistics;
+    private List<BaselineBin> baselineBins;
     
     public int getQcStatus() {
         return qcStatus;
@@ -71,10 +80,56 @@ public class MeasurementsPack extends AbstractRestResponse<MeasuredValues> {
         this.lastUpdate = lastUpdate;
     }
     
+    public List<GroupStatistics> getStatistics() {
+        return statistics;
+    }
+
+    public void setStatistics(List<GroupStatistics> statistics) {
+        this.statistics = statistics;
+    }
+
+    public List<BaselineBin> getBaselineBins() {
+        return baselineBins;
+    }
+
+    public void setBaselineBins(List<BaselineBin> baselineBins) {
+        this.baselineBins = baselineBins;
+    }
+
     @Override
     @XmlElement(name = "measurements")
     public List<MeasuredValues> getDataSet() {
         return super.getDataSet();
     }
 
+    @Override
+    @XmlTransient
+    public DataSetStream getDataSetStream() {
+        return dataSetStream;
+    }
+
+    public void setDataSetStream(DataSetStream dataSetStream) {
+        this.dataSetStream = dataSetStream;
+    }
+
+    @Override
+    @XmlTransient
+    public boolean isColumnar() {
+        return columnar;
+    }
+
+    public void setColumnar(boolean columnar) {
+        this.columnar = columnar;
+    }
+
+    @Override
+    @XmlTransient
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+
 }
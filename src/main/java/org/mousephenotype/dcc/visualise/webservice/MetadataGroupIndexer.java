@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.persistence.EntityManager;
+import org.mousephenotype.dcc.entities.overviews.MeasuredValues;
+import org.mousephenotype.dcc.entities.overviews.MetadataGroupToValues;
+import org.mousephenotype.dcc.visualise.persistence.MetadataGroupDictionary;
+
+/**
+ * Replaces the meta-data group checksum of each measurement with the id of
+ * the meta-data group, and collects the distinct meta-data groups so that
+ * they can be sent once with the measurements.
+ *
+ * The meta-data groups are resolved with the process-wide meta-data group
+ * dictionary. The checksums that are known in advance (e.g., from the
+ * procedure meta-data groups of a data context) should be prefetched, so
+ * that the missing ones are retrieved with one query.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class MetadataGroupIndexer {
+
+    private final EntityManager em;
+    private final MetadataGroupDictionary dictionary;
+    private final List<MetadataGroupToValues> metadataGroups = new ArrayList<>();
+    private final HashMap<String, MetadataGroupToValues> distinct
+            = new HashMap<>();
+
+    /**
+     * Creates a meta-data group indexer.
+     *
+     * @param em Entity manager for retrieving missing meta-data groups.
+     * @param dictionary Meta-data group dictionary; or null, to use a
+     * dictionary for this indexer only.
+     */
+    public MetadataGroupIndexer(EntityManager em,
+            MetadataGroupDictionary dictionary) {
+        this.em = em;
+        this.dictionary = dictionary == null
+                ? new MetadataGroupDictionary() : dictionary;
+    }
+
+    /**
+     * Retrieves the meta-data groups for the supplied checksums that are
+     * not already in the dictionary.
+     *
+     * @param checksums Meta-data group checksums.
+     */
+    public void prefetch(Collection<String> checksums) {
+        dictionary.resolve(em, checksums);
+    }
+
+    /**
+     * Returns the index of the meta-data group with the supplied checksum,
+     * and collects the meta-data group.
+     *
+     * @param checksum Meta-data group checksum.
+     * @return Meta-data group index; or -1, if there is no such group.
+     */
+    public Long index(String checksum) {
+        MetadataGroupToValues mg = distinct.get(checksum);
+        if (mg == null) {
+            mg = dictionary.get(checksum);
+            if (mg == null && checksum != null) {
+                mg = dictionary.resolve(em,
+                        Collections.singleton(checksum)).get(checksum);
+            }
+            if (mg != null) {
+                distinct.put(checksum, mg);
+                metadataGroups.add(mg);
+            }
+        }
+        return mg == null ? -1L : mg.getMetadataGroupToValuesId();
+    }
+
+    /**
+     * Sets the meta-data group index of the supplied measurement.
+     *
+     * @param v Measurement.
+     */
+    public void index(MeasuredValues v) {
+        v.setMetadataGroupIndex(index(v.getMetadataGroup()));
+    }
+
+    /**
+     * Sets the meta-data group indices of the supplied measurements,
+     * retrieving the missing meta-data groups with one query.
+     *
+     * @param values Measurements.
+     */
+    public void indexAll(List<MeasuredValues> values) {
+        Set<String> checksums = new HashSet<>();
+        for (MeasuredValues v : values) {
+            if (!distinct.containsKey(v.getMetadataGroup())) {
+                checksums.add(v.getMetadataGroup());
+            }
+        }
+        prefetch(checksums);
+        for (MeasuredValues v : values) {
+            index(v);
+        }
+    }
+
+    public List<MetadataGroupToValues> getMetadataGroups() {
+        return metadataGroups;
+    }
+}
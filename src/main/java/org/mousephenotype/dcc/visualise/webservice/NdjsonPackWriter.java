@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.IOException;
+import java.io.Writer;
+import javax.ws.rs.Produces;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Writes the data set of a response package as newline delimited JSON, with
+ * one item of the data set on each line.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+@Provider
+@Produces(NdjsonPackWriter.APPLICATION_NDJSON)
+public class NdjsonPackWriter extends RecordPackWriter {
+
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    @Override
+    protected DataSetStream.Sink createSink(final Writer out) {
+        return new DataSetStream.Sink() {
+            @Override
+            public void add(Object item) throws IOException {
+                new JsonStreamWriter(out).value(item);
+                out.write('\n');
+            }
+        };
+    }
+}
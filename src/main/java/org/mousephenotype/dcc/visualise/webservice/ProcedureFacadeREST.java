@@ -15,10 +15,7 @@
  */
 package org.mousephenotype.dcc.visualise.webservice;
 
-import org.mousephenotype.dcc.visualise.persistence.MemcacheHandler;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.ejb.Stateless;
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
@@ -28,7 +25,6 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import org.mousephenotype.dcc.entities.impress.Procedure;
-import org.mousephenotype.dcc.visualise.entities.ProcedureData;
 
 /**
  * Web service for retrieving procedures.
@@ -39,13 +35,10 @@ import org.mousephenotype.dcc.visualise.entities.ProcedureData;
 @Path("procedure")
 public class ProcedureFacadeREST extends AbstractFacade<Procedure> {
 
-    private final String REGEX_PROC_KEY = "[A-Z]*_([A-Z]*)_[0-9]*";
-    private final Pattern pattern;
     private EntityManager em;
 
     public ProcedureFacadeREST() {
         super(Procedure.class);
-        pattern = Pattern.compile(REGEX_PROC_KEY);
     }
 
     @GET
@@ -62,38 +55,12 @@ public class ProcedureFacadeREST extends AbstractFacade<Procedure> {
         return sections;
     }
 
-    public List<ProcedureData> getAllProcedures() {
-        List<ProcedureData> result = null;
-        em = getEntityManager();
-        TypedQuery<ProcedureData> q
-                = em.createQuery("SELECT DISTINCT new org.mousephenotype.dcc.visualise.entities.ProcedureData(p.procedureId, p.procedureKey, p.name, p.majorVersion, p.minorVersion) FROM Pipeline l join PipelineHasProcedures php on (l = php.pipelineId) join Procedure p on (php.procedureId = p) WHERE l.impc = 1 and (p.procedureId NOT IN (select DISTINCT ip.procedureId FROM IgnoreProcedures ip)) ORDER BY p.name, p.majorVersion, p.minorVersion", ProcedureData.class);
-        result = q.getResultList();
-
-        for (ProcedureData d : result) {
-            String key = d.getStableid();
-            if (key != null && !key.isEmpty()) {
-                Matcher m = pattern.matcher(key);
-                if (m.find()) {
-                    d.setProcedureCode(m.group(1));
-                }
-            }
-        }
-        em.close();
-        return result;
-    }
-
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     public ProcedurePack findProcedures() {
         ProcedurePack p = new ProcedurePack();
 
-        MemcacheHandler mh = getMemcacheHandler();
-        List<ProcedureData> procedures = mh.getProcedures();
-        if (procedures == null) {
-            procedures = getAllProcedures();
-            mh.setProcedures(procedures);
-        }
-        p.setDataSet(procedures);
+        p.setDataSet(getCachedProcedures());
         return p;
     }
 }
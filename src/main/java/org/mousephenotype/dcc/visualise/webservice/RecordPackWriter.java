@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+
+/**
+ * Writes the data set of a response package as a sequence of records (e.g.,
+ * lines of JSON, or rows of CSV), without the enclosing package, so that a
+ * client can process each record as soon as it arrives.
+ *
+ * The output is flushed after every item of the data set, so that the
+ * response is sent in chunks while it is being generated. Since the items
+ * of a streamed data set are only generated when the previous item has
+ * been written, a slow client slows down the generation of the data set
+ * instead of letting the items accumulate in memory.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public abstract class RecordPackWriter
+        implements MessageBodyWriter<AbstractRestResponse<?>> {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Creates the sink that writes each item of the data set.
+     *
+     * @param out Output writer.
+     * @return Record sink.
+     */
+    protected abstract DataSetStream.Sink createSink(Writer out);
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType,
+            Annotation[] annotations, MediaType mediaType) {
+        return AbstractRestResponse.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(AbstractRestResponse<?> t, Class<?> type,
+            Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return -1L;
+    }
+
+    @Override
+    public void writeTo(AbstractRestResponse<?> t, Class<?> type,
+            Type genericType, Annotation[] annotations, MediaType mediaType,
+            MultivaluedMap<String, Object> httpHeaders,
+            OutputStream entityStream)
+            throws IOException, WebApplicationException {
+        final Writer out = new BufferedWriter(new OutputStreamWriter(
+                entityStream, StandardCharsets.UTF_8), BUFFER_SIZE);
+        final DataSetStream.Sink sink = createSink(out);
+        DataSetStream.Sink flushing = new DataSetStream.Sink() {
+            @Override
+            public void add(Object item) throws IOException {
+                sink.add(item);
+                out.flush();
+            }
+        };
+        DataSetStream s = t instanceof StreamedPack
+                ? ((StreamedPack) t).getDataSetStream() : null;
+        if (s != null) {
+            s.writeTo(flushing);
+        } else {
+            List<?> items = t.getDataSet();
+            if (items != null) {
+                for (Object item : items) {
+                    flushing.add(item);
+                }
+            }
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import javax.ejb.Stateless;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import org.mousephenotype.dcc.visualise.entities.ConnectionPoolStatistics;
+import org.mousephenotype.dcc.visualise.entities.WarmUpStatus;
+
+/**
+ * Web service for monitoring the state of the web application.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+@Stateless
+@Path("status")
+public class StatusFacadeREST extends AbstractFacade<ConnectionPoolStatistics> {
+
+    public StatusFacadeREST() {
+        super(ConnectionPoolStatistics.class);
+    }
+
+    @GET
+    @Path("pool")
+    @Produces(MediaType.APPLICATION_JSON)
+    public ConnectionPoolStatistics pool() {
+        return getPersistenceManager().getConnectionPoolStatistics();
+    }
+
+    /**
+     * Reports whether the catalogues have been built. This returns 503
+     * (service unavailable) until they are built, so that a load balancer
+     * can hold back traffic from a node after a restart.
+     */
+    @GET
+    @Path("ready")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response ready() {
+        CatalogueWarmer w = getCatalogueWarmer();
+        WarmUpStatus s;
+        if (w == null) {
+            s = new WarmUpStatus();
+            s.setReady(true);
+        } else {
+            s = w.getStatus();
+        }
+        return Response.status(s.isReady()
+                ? Response.Status.OK : Response.Status.SERVICE_UNAVAILABLE)
+                .entity(s).build();
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+/**
+ * A response package whose data set may be streamed. When the stream is
+ * set, the data set is written from the stream, and the success flag and
+ * total are set after the last item has been written.
+ *
+ * A streamed data set may also be written in columnar format, where each
+ * property of the items is sent as an array (see ColumnarEncoder).
+ *
+ * A package whose data set could only be written in part (e.g., because a
+ * lookup timed out) is marked as incomplete while it is being written, so
+ * that the response is not given an entity tag.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public interface StreamedPack {
+
+    DataSetStream getDataSetStream();
+
+    boolean isColumnar();
+
+    boolean isComplete();
+}
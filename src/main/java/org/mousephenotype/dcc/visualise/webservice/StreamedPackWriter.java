@@ -0,0 +1,130 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Writes the response packages that may stream their data sets (e.g., the
+ * measurements) as JSON.
+ *
+ * The items of a streamed data set are written as they are generated, so
+ * that the response does not have to be held in memory, and the client
+ * starts receiving data as soon as the first items are available. The
+ * other properties of the package are written after the data set, since
+ * some of them (e.g., the metadata groups) are only known at the end. In
+ * columnar format, the items are collected column by column, and written
+ * at the end. A streamed package only keeps its entity tag if it was
+ * written completely (see EntityTagOutputStream).
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+@Provider
+@Produces(MediaType.APPLICATION_JSON)
+public class StreamedPackWriter
+        implements MessageBodyWriter<AbstractRestResponse<?>> {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType,
+            Annotation[] annotations, MediaType mediaType) {
+        return StreamedPack.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(AbstractRestResponse<?> t, Class<?> type,
+            Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return -1L;
+    }
+
+    @Override
+    public void writeTo(AbstractRestResponse<?> t, Class<?> type,
+            Type genericType, Annotation[] annotations, MediaType mediaType,
+            MultivaluedMap<String, Object> httpHeaders,
+            OutputStream entityStream)
+            throws IOException, WebApplicationException {
+        EntityTagOutputStream out
+                = new EntityTagOutputStream(entityStream, httpHeaders);
+        write(new JsonStreamWriter(new BufferedWriter(
+                new OutputStreamWriter(out, StandardCharsets.UTF_8),
+                BUFFER_SIZE)), t, type);
+        out.finish(isComplete(t));
+    }
+
+    /**
+     * Returns true if the response package was written completely, e.g.,
+     * including all of the lookups of a streamed data set.
+     */
+    static boolean isComplete(AbstractRestResponse<?> t) {
+        return !(t instanceof StreamedPack) || ((StreamedPack) t).isComplete();
+    }
+
+    /**
+     * Writes a response package, streaming its data set if it has one.
+     *
+     * @param w Output writer.
+     * @param t Response package.
+     * @param type Class of the response package.
+     * @throws IOException If the package could not be written.
+     */
+    static void write(BeanStreamWriter w, AbstractRestResponse<?> t,
+            Class<?> type) throws IOException {
+        DataSetStream s = t instanceof StreamedPack
+                ? ((StreamedPack) t).getDataSetStream() : null;
+        Set<String> skip = Collections.emptySet();
+        w.beginObject();
+        if (s != null) {
+            long n;
+            w.name(BeanStreamWriter.getPropertyName(type, "dataSet"));
+            if (((StreamedPack) t).isColumnar()) {
+                ColumnarEncoder e = new ColumnarEncoder();
+                n = s.writeTo(e);
+                e.writeTo(w);
+            } else {
+                final BeanStreamWriter rw = w;
+                w.beginArray();
+                n = s.writeTo(new DataSetStream.Sink() {
+                    @Override
+                    public void add(Object item) throws IOException {
+                        rw.bean(item);
+                    }
+                });
+                w.endArray();
+            }
+            t.setSuccess(n > 0L);
+            t.setTotal(n);
+            skip = Collections.singleton("dataSet");
+        }
+        w.properties(t, skip);
+        w.endObject();
+        w.flush();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import javax.xml.bind.annotation.XmlTransient;
+
+/**
+ * Response package for measurements sets whose measurements are retrieved
+ * while the response is being written.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class StreamingMeasurementsSetPack extends MeasurementsSetPack
+        implements StreamedPack {
+
+    private DataSetStream dataSetStream;
+
+    @Override
+    @XmlTransient
+    public DataSetStream getDataSetStream() {
+        return dataSetStream;
+    }
+
+    public void setDataSetStream(DataSetStream dataSetStream) {
+        this.dataSetStream = dataSetStream;
+    }
+
+    @Override
+    @XmlTransient
+    public boolean isColumnar() {
+        return false;
+    }
+
+    /* a selection that could not be retrieved aborts the response */
+    @Override
+    @XmlTransient
+    public boolean isComplete() {
+        return true;
+    }
+}
@@ -189,6 +189,13 @@
          * results, which contains measurements and statistics for het, hom,
          * hem and all respectively. */
         measurementsSet = [{}, {}, {}, {}],
+        /* The measurements for the visible visualisations are retrieved
+         * together with one batch request. The following record the data
+         * contexts ('cid:gid:sid:qeid') of the batch requests that are in
+         * progress, and of those that have already been requested, so that
+         * these are not requested again. */
+        measurementsInFlight = {},
+        measurementsBatched = {},
         /* For every visualisation, we also display its QC status. The following
          * is a map of QC statuses for gene-parameter combinations*/
         qcstatus = {},
@@ -3989,6 +3996,175 @@
         addDiv(node, null, 'warn-parameter-key', param.e);
     }
 
+    /* binary responses require typed arrays; otherwise, we use JSON */
+    var supportsCbor = typeof ArrayBuffer !== 'undefined' &&
+        typeof DataView !== 'undefined' &&
+        typeof Uint8Array !== 'undefined';
+
+    /* the responses are retrieved in JSON, unless CBOR is enabled by
+     * setting this to true before the visualisations are loaded */
+    dcc.useCbor = false;
+
+    /**
+     * Decodes a CBOR (RFC 7049) response returned by the server (see
+     * CborStreamWriter). Only the data items that the server writes are
+     * supported: integers, text strings, arrays, maps, booleans, null,
+     * and half, single and double precision floating point numbers.
+     *
+     * @param {ArrayBuffer} buffer CBOR encoded response.
+     * @returns {Object} Decoded object, the same as the JSON response.
+     */
+    function decodeCbor(buffer) {
+        var view = new DataView(buffer), bytes = new Uint8Array(buffer),
+            offset = 0, BREAK = {};
+
+        function readArgument(info) {
+            var value;
+            if (info < 24)
+                return info;
+            switch (info) {
+                case 24:
+                    value = view.getUint8(offset);
+                    offset += 1;
+                    break;
+                case 25:
+                    value = view.getUint16(offset);
+                    offset += 2;
+                    break;
+                case 26:
+                    value = view.getUint32(offset);
+                    offset += 4;
+                    break;
+                case 27:
+                    value = view.getUint32(offset) * 4294967296 +
+                        view.getUint32(offset + 4);
+                    offset += 8;
+                    break;
+                case 31:
+                    value = -1; /* indefinite length */
+                    break;
+            }
+            return value;
+        }
+
+        function readText(length) {
+            var s = '', end = offset + length, c;
+            while (offset < end) {
+                c = bytes[offset++];
+                if (c >= 0xf0) {
+                    c = ((c & 0x07) << 18) | ((bytes[offset++] & 0x3f) << 12)
+                        | ((bytes[offset++] & 0x3f) << 6)
+                        | (bytes[offset++] & 0x3f);
+                    c -= 0x10000;
+                    s += String.fromCharCode(0xd800 + (c >> 10),
+                        0xdc00 + (c & 0x3ff));
+                    continue;
+                } else if (c >= 0xe0) {
+                    c = ((c & 0x0f) << 12) | ((bytes[offset++] & 0x3f) << 6)
+                        | (bytes[offset++] & 0x3f);
+                } else if (c >= 0xc0) {
+                    c = ((c & 0x1f) << 6) | (bytes[offset++] & 0x3f);
+                }
+                s += String.fromCharCode(c);
+            }
+            return s;
+        }
+
+        function readHalf() {
+            var h = view.getUint16(offset), exponent = (h >> 10) & 0x1f,
+                mantissa = h & 0x3ff, value;
+            offset += 2;
+            if (exponent === 0)
+                value = mantissa * Math.pow(2, -24);
+            else if (exponent === 31)
+                value = mantissa ? NaN : Infinity;
+            else
+                value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+            return h & 0x8000 ? -value : value;
+        }
+
+        function readItem() {
+            var initial = bytes[offset++], major = initial >> 5,
+                info = initial & 0x1f, length, value, key, item;
+            if (initial === 0xff)
+                return BREAK;
+            switch (major) {
+                case 0:
+                    return readArgument(info);
+                case 1:
+                    return -1 - readArgument(info);
+                case 3:
+                    return readText(readArgument(info));
+                case 4:
+                    length = readArgument(info);
+                    value = [];
+                    while (length-- !== 0) {
+                        item = readItem();
+                        if (item === BREAK)
+                            break;
+                        value.push(item);
+                    }
+                    return value;
+                case 5:
+                    length = readArgument(info);
+                    value = {};
+                    while (length-- !== 0) {
+                        key = readItem();
+                        if (key === BREAK)
+                            break;
+                        value[key] = readItem();
+                    }
+                    return value;
+                case 7:
+                    switch (info) {
+                        case 20:
+                            return false;
+                        case 21:
+                            return true;
+                        case 22:
+                        case 23:
+                            return null;
+                        case 25:
+                            return readHalf();
+                        case 26:
+                            value = view.getFloat32(offset);
+                            offset += 4;
+                            return value;
+                        case 27:
+                            value = view.getFloat64(offset);
+                            offset += 8;
+                            return value;
+                    }
+            }
+            throw new Error('Unsupported CBOR data item ' + initial +
+                ' at byte ' + (offset - 1));
+        }
+        return readItem();
+    }
+
+    /**
+     * Retrieves a response from the server in JSON, or in CBOR if it has
+     * been enabled and the browser supports typed arrays.
+     *
+     * @param {String} url Web service URL.
+     * @param {Function} callback Called with the decoded response, or
+     *     undefined if the request failed.
+     */
+    function getPack(url, callback) {
+        if (!dcc.useCbor || !supportsCbor) {
+            d3.json(url, callback);
+            return;
+        }
+        d3.xhr(url, 'application/cbor')
+            .responseType('arraybuffer')
+            .response(function (request) {
+                return decodeCbor(request.response);
+            })
+            .get(function (error, data) {
+                callback(error ? undefined : data);
+            });
+    }
+
     /**
      * Process measurements returned by the server.
      * 
@@ -4088,6 +4264,9 @@
                     status = 'issues';
                     msg = 'QC checks at PhenoDCC found possible issues';
                     break;
+                default:
+                    /* the QC status could not be retrieved */
+                    return;
             }
             node.attr('title', msg).attr('class', 'qc-' + status);
         }
@@ -4245,7 +4424,7 @@
      * @param {String} qeid Parameter key.
      */
     function retrieveAndVisualiseData(id, target, gid, sid, cid, qeid) {
-        d3.json('rest/measurements?includeBaseline=true' +
+        getPack('rest/measurements?includeBaseline=true' +
             '&cid=' + cid +
             '&gid=' + gid +
             '&sid=' + sid +
@@ -7416,49 +7595,50 @@
      * @param {type} params If supplied, select supplied parameters.
      */
     function loadConfigData(parent, handler, genes, params) {
+        var query = [];
         loadingApp(parent);
-        progress(10, 'Loading centres...');
-        d3.json("rest/centres", function (data) {
-            progress(20, 'Processing centres...');
-            processCentres(data);
-            progress(30, 'Loading centre activity...');
-            d3.json("rest/centres/activity", function (data) {
-                processCentreActivity(data);
-                progress(40, 'Loading genes and strains...');
-                d3.json("rest/genestrains" +
-                    (genes ? '?g=' + genes : ''),
-                    function (data) {
-                        progress(50, 'Processing genes and strains...');
-                        processGenes(data);
-                        progress(60, 'Loading procedures...');
-                        d3.json("rest/procedure", function (data) {
-                            progress(70, 'Processing procedures...');
-                            processProcedures(data);
-                            progress(80, 'Loading parameters...');
-                            d3.json("rest/parameter" +
-                                (params ? '?q=' + params : ''),
-                                function (data) {
-                                    progress(90, 'Processing parameters...');
-                                    processParameters(data);
-                                    progress(100, 'All done...');
-
-                                    if (genes === undefined && params === undefined)
-                                        fullConfigHasBeenLoaded = true;
-
-                                    /* only set the expiration countdown when
-                                     * configuration data was loaded */
-                                    if (genes === undefined &&
-                                        params === undefined)
-                                        dateConfigDataExpires =
-                                            addMillisecondstoDate(new Date(),
-                                                MILLISECONDS_TO_EXPIRATION);
-                                    clear(parent);
-                                    handler();
-                                });
-                        });
-                    });
+        progress(10, 'Loading configuration...');
+        if (genes)
+            query.push('g=' + genes);
+        if (params)
+            query.push('q=' + params);
+
+        /* centres, centre activity, genes and strains, procedures and
+         * parameters are all returned in one response */
+        d3.json("rest/bootstrap" +
+            (query.length > 0 ? '?' + query.join('&') : ''),
+            function (data) {
+                /* the progress message is left in place, so that the user
+                 * knows that the application could not be started */
+                if (!data) {
+                    progress(100, 'Could not load configuration...');
+                    return;
+                }
+                progress(20, 'Processing centres...');
+                processCentres(data.centres);
+                progress(30, 'Processing centre activity...');
+                processCentreActivity(data.activity);
+                progress(50, 'Processing genes and strains...');
+                processGenes(data.genestrains);
+                progress(70, 'Processing procedures...');
+                processProcedures(data.procedures);
+                progress(90, 'Processing parameters...');
+                processParameters(data.parameters);
+                progress(100, 'All done...');
+
+                if (genes === undefined && params === undefined)
+                    fullConfigHasBeenLoaded = true;
+
+                /* only set the expiration countdown when
+                 * configuration data was loaded */
+                if (genes === undefined &&
+                    params === undefined)
+                    dateConfigDataExpires =
+                        addMillisecondstoDate(new Date(),
+                            MILLISECONDS_TO_EXPIRATION);
+                clear(parent);
+                handler();
             });
-        });
     }
 
     function showConfigurationInterface() {
@@ -9185,6 +9365,71 @@
         vizContainer.isRendered = true;
     }
 
+    /* maximum number of data contexts in a batch measurements request; the
+     * batches are small (about a row of the grid) and are requested
+     * together, so that each batch is rendered as soon as it arrives */
+    var MAX_CONTEXTS_IN_BATCH = 8;
+
+    /**
+     * Returns the data context of the visualisation in a visualisation
+     * container if its measurements must be retrieved.
+     *
+     * @param {Object} vizContainer Visualisation container.
+     * @returns {String | null} Data context as 'cid:gid:sid:qeid', or null
+     *     if the measurements are not required, or have been retrieved.
+     */
+    function getMissingMeasurementsContext(vizContainer) {
+        var p = vizContainer.parameter, qeid, geneId, loaded, key;
+        if (!p || typeof p === 'string' || !vizContainer.plotType ||
+            vizContainer.plotType.t === STR_IMAGE)
+            return null;
+        qeid = p[PARAMETER_KEY_FIELD];
+        if (qeid === undefined || getEmbryoStage(qeid))
+            return null;
+        geneId = dcc.prepareGeneStrainCentreId(vizContainer.gene,
+            vizContainer.strain, vizContainer.centre);
+        loaded = measurementsSet[ZYGOSITY_ALL][geneId];
+        if (loaded && loaded[qeid])
+            return null;
+        key = vizContainer.centre + ':' + vizContainer.gene + ':' +
+            vizContainer.strain + ':' + qeid;
+        return measurementsBatched[key] ? null : key;
+    }
+
+    /**
+     * Retrieves the measurements for several data contexts with one batch
+     * request, and processes them as if they were retrieved one at a time.
+     *
+     * @param {String[]} contexts Data contexts as 'cid:gid:sid:qeid'.
+     * @param {Function} callback Called when the measurements have been
+     *     processed.
+     */
+    function retrieveMeasurementsBatch(contexts, callback) {
+        var i, c = contexts.length;
+        for (i = 0; i < c; ++i)
+            measurementsInFlight[contexts[i]] = true;
+        getPack('rest/measurements/batch?includeBaseline=true&t=' +
+            contexts.join(','),
+            function (data) {
+                var j, n, context;
+                if (data && data.success) {
+                    for (j = 0, n = data.contexts.length; j < n; ++j) {
+                        context = data.contexts[j];
+                        if (context.success)
+                            processRawDataAndQcStatus(context, context.gid,
+                                context.sid, context.cid, context.qeid);
+                    }
+                }
+                /* contexts without measurements, or whose request failed,
+                 * are retrieved individually when they are rendered */
+                for (j = 0; j < c; ++j) {
+                    delete measurementsInFlight[contexts[j]];
+                    measurementsBatched[contexts[j]] = true;
+                }
+                callback();
+            });
+    }
+
     /**
      * Refresh all of the visualisations in the visualisation cluster.
      * 
@@ -9192,7 +9437,8 @@
      */
     function refreshVisualisationCluster(forced) {
         var i, c = visualisationCluster.length, p,
-            vizContainer, clusterNode, isVisible;
+            vizContainer, clusterNode, isVisible,
+            key, contexts = [], missing = {};
         if (c > 0) {
             clusterNode = d3.select('#cluster');
             for (i = 0; i < c; ++i) {
@@ -9214,9 +9460,21 @@
                 }
                 if (isVisible && (!vizContainer.isRendered ||
                     !vizContainer.viz)) {
-                    renderVisualisation(vizContainer);
+                    /* the visualisations whose measurements are missing
+                     * are rendered when the batch request completes */
+                    key = getMissingMeasurementsContext(vizContainer);
+                    if (key === null)
+                        renderVisualisation(vizContainer);
+                    else if (!measurementsInFlight[key] && !missing[key]) {
+                        missing[key] = true;
+                        contexts.push(key);
+                    }
                 }
             }
+            for (i = 0; i < contexts.length; i += MAX_CONTEXTS_IN_BATCH)
+                retrieveMeasurementsBatch(
+                    contexts.slice(i, i + MAX_CONTEXTS_IN_BATCH),
+                    refreshVisualisationCluster);
             if (c === 1) {
                 vizContainer = visualisationCluster[0];
                 if (vizContainer.plotType.t === STR_IMAGE)
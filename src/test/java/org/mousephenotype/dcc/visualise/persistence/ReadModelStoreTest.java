@@ -0,0 +1,252 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mousephenotype.dcc.entities.overviews.MeasuredValues;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round-trip tests for the binary format of the read model store: the
+ * measurements that are appended must be decoded unchanged, also after the
+ * files have been reopened or compacted.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class ReadModelStoreTest {
+
+    private static final Integer CENTRE = 3;
+    private static final Integer STRAIN = 7;
+    private static final String PROCEDURE = "IMPC_BWT_001";
+    private static final String PARAMETER = "IMPC_BWT_001_001";
+    private static final long VERSION = -1L;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("readmodel").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    // The files are not validated without a database, so the store uses
+    // the version of a file that has not been validated yet.
+    private ReadModelStore createStore() throws NoSuchMethodException {
+        return new ReadModelStore(directory, null, null, 60L, 1L << 30) {
+            @Override
+            public long getVersion() {
+                return VERSION;
+            }
+        };
+    }
+
+    private static List<Method[]> getProperties() throws Exception {
+        List<Method[]> r = new ArrayList<>();
+        for (Method m : MeasuredValues.class.getMethods()) {
+            String n = m.getName();
+            int prefix = n.startsWith("get") ? 3 : (n.startsWith("is") ? 2 : 0);
+            if (prefix == 0 || n.length() == prefix
+                    || m.getParameterTypes().length != 0
+                    || Modifier.isStatic(m.getModifiers())
+                    || getValue(m.getReturnType(), 1) == null) {
+                continue;
+            }
+            try {
+                r.add(new Method[]{m, MeasuredValues.class.getMethod(
+                    "set" + n.substring(prefix), m.getReturnType())});
+            } catch (NoSuchMethodException e) {
+            }
+        }
+        return r;
+    }
+
+    private static Object getValue(Class<?> c, int i) {
+        if (c == Long.class || c == long.class) {
+            return i * 1000000007L;
+        } else if (c == Integer.class || c == int.class) {
+            return -i;
+        } else if (c == Short.class || c == short.class) {
+            return (short) i;
+        } else if (c == Byte.class || c == byte.class) {
+            return (byte) i;
+        } else if (c == Double.class || c == double.class) {
+            return i / 3.0;
+        } else if (c == Float.class || c == float.class) {
+            return i / 7.0f;
+        } else if (c == Boolean.class || c == boolean.class) {
+            return i % 2 == 0;
+        } else if (c == Date.class) {
+            return new Date(1400000000000L + i);
+        } else if (c == String.class) {
+            return "group-" + (i % 5) + (i % 11 == 0 ? "\u00e9" : "");
+        } else if (c == BigDecimal.class) {
+            return new BigDecimal(i).movePointLeft(3);
+        }
+        return null;
+    }
+
+    // Every third row has null values for the properties that allow them.
+    private static List<MeasuredValues> createMeasurements(int rows,
+            int seed) throws Exception {
+        List<Method[]> properties = getProperties();
+        Constructor<MeasuredValues> constructor
+                = MeasuredValues.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        List<MeasuredValues> r = new ArrayList<>(rows);
+        for (int i = 0; i < rows; ++i) {
+            MeasuredValues v = constructor.newInstance();
+            for (Method[] p : properties) {
+                Class<?> c = p[0].getReturnType();
+                p[1].invoke(v, i % 3 == 0 && !c.isPrimitive()
+                        ? null : getValue(c, seed + i));
+            }
+            r.add(v);
+        }
+        return r;
+    }
+
+    private static void assertMeasurements(List<MeasuredValues> expected,
+            List<MeasuredValues> actual) throws Exception {
+        assertNotNull(actual);
+        assertEquals(expected.size(), actual.size());
+        for (Method[] p : getProperties()) {
+            for (int i = 0; i < expected.size(); ++i) {
+                assertEquals(p[0].getName() + " of row " + i,
+                        p[0].invoke(expected.get(i)),
+                        p[0].invoke(actual.get(i)));
+            }
+        }
+    }
+
+    private static long getFileLength(File directory) {
+        long length = 0L;
+        for (File f : directory.listFiles()) {
+            length += f.length();
+        }
+        return length;
+    }
+
+    private void append(ReadModelStore s, Integer genotypeId,
+            List<MeasuredValues> values) throws Exception {
+        s.append(CENTRE, genotypeId, STRAIN, PROCEDURE, PARAMETER, 1L,
+                VERSION, values);
+    }
+
+    private List<MeasuredValues> get(ReadModelStore s, Integer genotypeId) {
+        return s.get(CENTRE, genotypeId, STRAIN, PROCEDURE, PARAMETER);
+    }
+
+    @Test
+    public void testAppendAndGet() throws Exception {
+        ReadModelStore s = createStore();
+        List<MeasuredValues> a = createMeasurements(1000, 0);
+        List<MeasuredValues> b = createMeasurements(1, 5000);
+        List<MeasuredValues> c = new ArrayList<>();
+        append(s, 1, a);
+        append(s, 2, b);
+        append(s, 3, c);
+        assertMeasurements(a, get(s, 1));
+        assertMeasurements(b, get(s, 2));
+        assertMeasurements(c, get(s, 3));
+        assertNull(get(s, 4));
+        assertNull(s.get(CENTRE + 1, 1, STRAIN, PROCEDURE, PARAMETER));
+        assertEquals(getFileLength(directory), s.getSize());
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        ReadModelStore s = createStore();
+        List<MeasuredValues> a = createMeasurements(500, 0);
+        List<MeasuredValues> b = createMeasurements(20, 100);
+        append(s, 1, a);
+        append(s, 2, b);
+        ReadModelStore r = createStore();
+        r.load();
+        assertEquals(s.getSize(), r.getSize());
+        assertMeasurements(a, get(r, 1));
+        assertMeasurements(b, get(r, 2));
+    }
+
+    @Test
+    public void testPartialSegmentIsTruncated() throws Exception {
+        ReadModelStore s = createStore();
+        List<MeasuredValues> a = createMeasurements(100, 0);
+        append(s, 1, a);
+        long complete = s.getSize();
+        append(s, 2, createMeasurements(100, 100));
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        try (RandomAccessFile raf = new RandomAccessFile(files[0], "rw")) {
+            raf.setLength(raf.length() - 5L);
+        }
+        ReadModelStore r = createStore();
+        r.load();
+        assertEquals(complete, r.getSize());
+        assertEquals(complete, files[0].length());
+        assertMeasurements(a, get(r, 1));
+        assertNull(get(r, 2));
+    }
+
+    @Test
+    public void testReplacedSegmentsAreCompacted() throws Exception {
+        ReadModelStore s = createStore();
+        List<MeasuredValues> a = createMeasurements(10, 0);
+        List<MeasuredValues> b = createMeasurements(1000, 100);
+        append(s, 1, a);
+        append(s, 2, b);
+        long before = s.getSize();
+        List<MeasuredValues> c = null;
+        for (int i = 0; i < 3; ++i) {
+            c = createMeasurements(10, 2000 + i);
+            append(s, 2, c);
+        }
+        assertTrue(s.getSize() < before);
+        assertEquals(getFileLength(directory), s.getSize());
+        assertEquals(1, directory.listFiles().length);
+        assertMeasurements(a, get(s, 1));
+        assertMeasurements(c, get(s, 2));
+        ReadModelStore r = createStore();
+        r.load();
+        assertEquals(s.getSize(), r.getSize());
+        assertMeasurements(a, get(r, 1));
+        assertMeasurements(c, get(r, 2));
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.mousephenotype.dcc.visualise.entities.GroupStatistics;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the statistics calculated on the server are the same as those
+ * calculated in the browser by calculateColumnStatistics() and
+ * calculateQuartile() in visualise.js, which sort the values.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class MeasurementStatisticsTest {
+
+    private static final double EPSILON = 1e-9;
+
+    /**
+     * A measurement with the JSON property names of the measured values.
+     */
+    public static class Item {
+
+        public Integer g;
+        public Integer s;
+        public Integer z;
+        public Double v;
+        public String i;
+
+        Item(Integer g, Integer s, Integer z, Double v, String i) {
+            this.g = g;
+            this.s = s;
+            this.z = z;
+            this.v = v;
+            this.i = i;
+        }
+    }
+
+    private static GroupStatistics calculate(double... values) {
+        GroupStatistics s = new GroupStatistics();
+        MeasurementStatistics.calculate(
+                Arrays.copyOf(values, values.length), values.length, s);
+        return s;
+    }
+
+    // calculateQuartile() in visualise.js, on sorted values
+    private static double quartile(int which, double[] sorted) {
+        double k = which * 0.25 * (sorted.length - 1) + 1;
+        int truncated = (int) Math.floor(k);
+        double fractional = k - truncated;
+        double low = sorted[truncated - 1];
+        double high = truncated < sorted.length ? sorted[truncated] : low;
+        return low + fractional * (high - low);
+    }
+
+    // The median of calculateColumnStatistics() in visualise.js
+    private static double median(double[] sorted) {
+        int i = sorted.length / 2;
+        return (sorted.length & 1) == 1 ? sorted[i]
+                : (sorted[i] + sorted[i - 1]) * 0.5;
+    }
+
+    @Test
+    public void testEvenNumberOfValues() {
+        GroupStatistics s = calculate(7.0, 1.0, 3.0, 5.0);
+        assertEquals(4, s.getCount());
+        assertEquals(16.0, s.getSum(), EPSILON);
+        assertEquals(1.0, s.getMin(), EPSILON);
+        assertEquals(7.0, s.getMax(), EPSILON);
+        assertEquals(4.0, s.getMean(), EPSILON);
+        assertEquals(4.0, s.getMedian(), EPSILON);
+        assertEquals(Math.sqrt(20.0 / 3.0), s.getSd(), EPSILON);
+        assertEquals(Math.sqrt(20.0 / 3.0) / 2.0, s.getSe(), EPSILON);
+        assertEquals(2.5, s.getQ1(), EPSILON);
+        assertEquals(5.5, s.getQ3(), EPSILON);
+    }
+
+    @Test
+    public void testOddNumberOfValues() {
+        GroupStatistics s = calculate(23.0, 8.0, 16.0, 4.0, 15.0);
+        assertEquals(15.0, s.getMedian(), EPSILON);
+        assertEquals(8.0, s.getQ1(), EPSILON);
+        assertEquals(16.0, s.getQ3(), EPSILON);
+        assertEquals(13.2, s.getMean(), EPSILON);
+    }
+
+    @Test
+    public void testSingleValue() {
+        GroupStatistics s = calculate(42.0);
+        assertEquals(1, s.getCount());
+        assertEquals(42.0, s.getMedian(), EPSILON);
+        assertEquals(42.0, s.getMin(), EPSILON);
+        assertEquals(42.0, s.getMax(), EPSILON);
+        /* the sample standard deviation is undefined, as in the browser */
+        assertTrue(Double.isNaN(s.getSd()));
+        assertNull(s.getQ1());
+        assertNull(s.getQ3());
+    }
+
+    @Test
+    public void testSameAsSortedValues() {
+        Random r = new Random(17L);
+        for (int n = 2; n < 200; ++n) {
+            double[] values = new double[n];
+            for (int i = 0; i < n; ++i) {
+                /* few distinct values, so that there are many ties */
+                values[i] = n % 3 == 0 ? r.nextInt(5) : r.nextGaussian();
+            }
+            double[] sorted = Arrays.copyOf(values, n);
+            Arrays.sort(sorted);
+            GroupStatistics s = calculate(values);
+            assertEquals("median of " + n, median(sorted), s.getMedian(),
+                    EPSILON);
+            assertEquals("q1 of " + n, quartile(1, sorted), s.getQ1(),
+                    EPSILON);
+            assertEquals("q3 of " + n, quartile(3, sorted), s.getQ3(),
+                    EPSILON);
+            assertEquals("min of " + n, sorted[0], s.getMin(), EPSILON);
+            assertEquals("max of " + n, sorted[n - 1], s.getMax(), EPSILON);
+        }
+    }
+
+    private static List<GroupStatistics> stream(final List<Item> items,
+            MeasurementStatistics.Wildtype wildtype) throws IOException {
+        MeasurementsPack p = new MeasurementsPack();
+        new MeasurementStatistics.Stream(new DataSetStream() {
+            @Override
+            public long writeTo(Sink sink) throws IOException {
+                for (Item i : items) {
+                    sink.add(i);
+                }
+                return items.size();
+            }
+        }, p, false, wildtype).writeTo(new DataSetStream.Sink() {
+            @Override
+            public void add(Object item) {
+            }
+        });
+        return p.getStatistics();
+    }
+
+    @Test
+    public void testCachedWildtypeStatistics() throws IOException {
+        Random r = new Random(5L);
+        List<Item> items = new ArrayList<>();
+        final List<Item> baseline = new ArrayList<>();
+        for (int i = 0; i < 40; ++i) {
+            items.add(new Item(12, i % 2, 1, r.nextGaussian(), "" + i % 3));
+        }
+        for (int i = 0; i < 300; ++i) {
+            Item b = new Item(0, i % 2, 0, r.nextGaussian() + 1.0,
+                    "" + i % 3);
+            baseline.add(b);
+            items.add(b);
+        }
+        List<GroupStatistics> expected = stream(items, null);
+        List<GroupStatistics> actual = stream(items,
+                new MeasurementStatistics.Wildtype() {
+                    @Override
+                    public List<GroupStatistics> getStatistics()
+                            throws IOException {
+                        MeasurementStatistics ms = new MeasurementStatistics();
+                        for (Item b : baseline) {
+                            ms.add(b);
+                        }
+                        return ms.getStatistics();
+                    }
+                });
+        assertTrue(expected.get(expected.size() - 1).isWildtype());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            GroupStatistics e = expected.get(i);
+            GroupStatistics a = actual.get(i);
+            assertEquals(e.isWildtype(), a.isWildtype());
+            assertEquals(e.getSex(), a.getSex());
+            assertEquals(e.getZygosity(), a.getZygosity());
+            assertEquals(e.getKey(), a.getKey());
+            assertEquals(e.getCount(), a.getCount());
+            assertEquals(e.getMedian(), a.getMedian(), EPSILON);
+            assertEquals(e.getQ1(), a.getQ1(), EPSILON);
+            assertEquals(e.getQ3(), a.getQ3(), EPSILON);
+        }
+    }
+}
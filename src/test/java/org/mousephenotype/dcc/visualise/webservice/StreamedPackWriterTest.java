@@ -0,0 +1,280 @@
+/*
+ * Copyright 2013 Medical Research Council Harwell.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mousephenotype.dcc.visualise.webservice;
+
+import com.sun.jersey.core.header.OutBoundHeaders;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import javax.ws.rs.core.MediaType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlTransient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mousephenotype.dcc.visualise.entities.GroupStatistics;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the streamed response packages are written with the same JSON
+ * as before: property names from the JAXB annotations, integral doubles
+ * without a fraction, dates as xsd:dateTime, and success and total after
+ * the data set. The expected responses are in the fixtures next to this
+ * class.
+ *
+ * @author Gagarine Yaikhom <g.yaikhom@har.mrc.ac.uk>
+ */
+public class StreamedPackWriterTest {
+
+    private TimeZone timeZone;
+
+    /**
+     * A measurement, as written by the web services.
+     */
+    public static class Item {
+
+        private Long measurementId;
+        private Integer genotypeId;
+        private Integer sex;
+        private Double value;
+        private Date date;
+        private String metadataGroup;
+
+        public Item() {
+        }
+
+        Item(Long measurementId, Integer genotypeId, Integer sex,
+                Double value, Date date, String metadataGroup) {
+            this.measurementId = measurementId;
+            this.genotypeId = genotypeId;
+            this.sex = sex;
+            this.value = value;
+            this.date = date;
+            this.metadataGroup = metadataGroup;
+        }
+
+        @XmlElement(name = "m")
+        public Long getMeasurementId() {
+            return measurementId;
+        }
+
+        public void setMeasurementId(Long measurementId) {
+            this.measurementId = measurementId;
+        }
+
+        @XmlElement(name = "g")
+        public Integer getGenotypeId() {
+            return genotypeId;
+        }
+
+        public void setGenotypeId(Integer genotypeId) {
+            this.genotypeId = genotypeId;
+        }
+
+        @XmlElement(name = "s")
+        public Integer getSex() {
+            return sex;
+        }
+
+        public void setSex(Integer sex) {
+            this.sex = sex;
+        }
+
+        @XmlElement(name = "v")
+        public Double getValue() {
+            return value;
+        }
+
+        public void setValue(Double value) {
+            this.value = value;
+        }
+
+        @XmlElement(name = "d")
+        public Date getDate() {
+            return date;
+        }
+
+        public void setDate(Date date) {
+            this.date = date;
+        }
+
+        public String getMetadataGroup() {
+            return metadataGroup;
+        }
+
+        public void setMetadataGroup(String metadataGroup) {
+            this.metadataGroup = metadataGroup;
+        }
+
+        @XmlTransient
+        public boolean isBaseline() {
+            return genotypeId != null && genotypeId == 0;
+        }
+    }
+
+    /**
+     * The measurements of a data context, as written by the downloads.
+     */
+    public static class Context {
+
+        private String parameterKey;
+        private int qcStatus;
+        private List<Item> measurements;
+
+        public Context() {
+        }
+
+        Context(String parameterKey, int qcStatus, List<Item> measurements) {
+            this.parameterKey = parameterKey;
+            this.qcStatus = qcStatus;
+            this.measurements = measurements;
+        }
+
+        public String getParameterKey() {
+            return parameterKey;
+        }
+
+        public void setParameterKey(String parameterKey) {
+            this.parameterKey = parameterKey;
+        }
+
+        public int getQcStatus() {
+            return qcStatus;
+        }
+
+        public void setQcStatus(int qcStatus) {
+            this.qcStatus = qcStatus;
+        }
+
+        public List<Item> getMeasurements() {
+            return measurements;
+        }
+
+        public void setMeasurements(List<Item> measurements) {
+            this.measurements = measurements;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        timeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(timeZone);
+    }
+
+    private static DataSetStream stream(final Object... items) {
+        return new DataSetStream() {
+            @Override
+            public long writeTo(Sink sink) throws IOException {
+                for (Object i : items) {
+                    sink.add(i);
+                }
+                return items.length;
+            }
+        };
+    }
+
+    private static Item[] createItems() {
+        return new Item[]{
+            new Item(1L, 0, 1, 25.0, new Date(1400000000000L), "a1b2"),
+            new Item(2L, 12, 0, 24.125, new Date(1400086400500L), null),
+            new Item(3L, 12, null, -3.0E-5, null, "a1b2")
+        };
+    }
+
+    private static String write(AbstractRestResponse<?> p) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutBoundHeaders headers = new OutBoundHeaders();
+        new StreamedPackWriter().writeTo(p, p.getClass(), p.getClass(),
+                new Annotation[0], MediaType.APPLICATION_JSON_TYPE, headers,
+                out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String readFixture(String name) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in
+                = StreamedPackWriterTest.class.getResourceAsStream(name)) {
+            assertNotNull(name, in);
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8).trim();
+    }
+
+    private static void assertAfterDataSet(String json, String dataSet) {
+        int d = json.indexOf("\"" + dataSet + "\":");
+        assertTrue(d >= 0);
+        assertTrue(json.indexOf("\"success\":") > d);
+        assertTrue(json.indexOf("\"total\":") > d);
+    }
+
+    @Test
+    public void testMeasurementsPack() throws IOException {
+        MeasurementsPack p = new MeasurementsPack();
+        p.setDataSetStream(stream((Object[]) createItems()));
+        p.setQcStatus(2);
+        p.setLastUpdate(new Date(1400000000000L));
+        GroupStatistics s = new GroupStatistics(true, 1, null, "a1b2");
+        MeasurementStatistics.calculate(new double[]{7.0, 1.0, 3.0, 5.0}, 4,
+                s);
+        List<GroupStatistics> statistics = new ArrayList<>();
+        statistics.add(s);
+        p.setStatistics(statistics);
+        /* the completeness only decides the entity tag */
+        p.setComplete(false);
+        String json = write(p);
+        assertEquals(readFixture("measurements-pack.json"), json);
+        assertAfterDataSet(json, "measurements");
+    }
+
+    @Test
+    public void testEmptyMeasurementsPack() throws IOException {
+        MeasurementsPack p = new MeasurementsPack();
+        p.setDataSetStream(stream());
+        assertEquals(readFixture("measurements-pack-empty.json"), write(p));
+    }
+
+    @Test
+    public void testMeasurementsSetPack() throws IOException {
+        StreamingMeasurementsSetPack p = new StreamingMeasurementsSetPack();
+        Item[] items = createItems();
+        p.setDataSetStream(stream(
+                new Context("IMPC_BWT_001_001", 0,
+                        Arrays.asList(items[0], items[1])),
+                new Context("IMPC_BWT_001_001", 1, new ArrayList<Item>()),
+                new Context("IMPC_HEM_001_001", 0, Arrays.asList(items[2]))));
+        String json = write(p);
+        assertEquals(readFixture("measurements-set-pack.json"), json);
+        assertAfterDataSet(json, "dataSet");
+    }
+}